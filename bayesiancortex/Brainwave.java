@@ -0,0 +1,38 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** The hard-coded brainwave input InteractiveVisualCortexWindow started with.
+Each step, a band of bandSize pixel Nodes, moving lineWidth Nodes further each step
+and wrapping around, decays chance toward a sine wave that also moves over time.
+*/
+public class Brainwave{
+
+	double wave = 0;
+
+	int lineStart = 0;
+
+	public int lineWidth = 50, bandSize = 1200;
+
+	public double decay = .03;
+
+	/** Reused for the targets of the band */
+	private double target[] = new double[0];
+
+	/** Changes chance of some of the first pixels Nodes in cortex */
+	public void step(NodeColumns cortex, int pixels){
+		wave += .1;
+		lineStart++;
+		int start = lineStart*lineWidth, end = lineStart*lineWidth+bandSize;
+		if(target.length < bandSize) target = new double[bandSize];
+		for(int i=start; i<end; i++){
+			target[i-start] = .5 + .5*Math.sin(wave+Math.PI*2*i/end);
+		}
+		//1 blendChances per time the band wraps around the pixels
+		for(int i=start; i<end; ){
+			int pixel = i%pixels, length = Math.min(end-i, pixels-pixel);
+			cortex.blendChances(pixel, target, i-start, length, decay);
+			i += length;
+		}
+	}
+
+}
@@ -1,21 +1,463 @@
 /** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
 package bayesiancortex;
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /** A group of Nodes which changes in size as less useful Nodes are removed
-and new Nodes are added to experiment with new network shapes in realtime.
+and new Nodes are added to experiment with new network shapes in realtime (see Plasticity).
+<br><br>
+Nodes start as separate objects. After useNodeArrays(), their state is copied into
+flat primitive arrays (NodeArrays) and each Node becomes a thin view of its index there,
+so run() walks arrays instead of pointers between objects.
 <br><br>
 TODO Should Cortex ever remove a child Node if that child is not useful but
-1 of its parent Nodes is useful? Does that make the child Node useful by association? 
+1 of its parent Nodes is useful? Does that make the child Node useful by association?
+For now Plasticity only removes Nodes with no parents, so yes.
 */
-public class Cortex implements Runnable{
-	
+public class Cortex implements Runnable, NodeColumns{
+
 	private List<Node> nodes = new ArrayList<Node>();
-	
+
+	/** The random network InteractiveVisualCortexWindow shows. The first Nodes are
+	pixels number of Nodes with no childs, for input and display. Then for each pixel
+	except the last 3, thinkingNodesPerPixel Nodes, each with 3 different random childs
+	which are pixels or (half the time, after the first 10) earlier thinking Nodes.
+	*/
+	public static Cortex newRandom(int pixels, int thinkingNodesPerPixel, Random rand){
+		List<Node> pixelNodes = new ArrayList<Node>();
+		List<Node> thinkingNodes = new ArrayList<Node>();
+		for(int i=0; i<pixels; i++){
+			pixelNodes.add(new Node("pixel"+i));
+		}
+		for(int i=0; i<pixelNodes.size()-3; i++){
+			for(int j=0; j<thinkingNodesPerPixel; j++){
+				List<Node> childsList = new ArrayList<Node>();
+				while(childsList.size() < 3){
+					Node n;
+					if(thinkingNodes.size() < 10 || rand.nextBoolean()){
+						n = pixelNodes.get(rand.nextInt(pixelNodes.size()));
+					}else{
+						n = thinkingNodes.get(rand.nextInt(thinkingNodes.size()));
+					}
+					if(!childsList.contains(n)) childsList.add(n);
+				}
+				//double w[] = new double[]{0, .25, 0, .25, 0, .25, .25, 0}; //NAND
+				Node childs[] = childsList.toArray(new Node[0]);
+				Node m = new Node("secondLayer_"+i+"_"+j, .5, childs, Node.newWeights(3, rand));
+				for(Node c : childs) c.addToAxon(m);
+				thinkingNodes.add(m);
+			}
+		}
+		Cortex cortex = new Cortex();
+		for(Node n : pixelNodes) cortex.add(n);
+		for(Node n : thinkingNodes) cortex.add(n);
+		return cortex;
+	}
+
+	/** Null until useNodeArrays() */
+	private NodeArrays arrays;
+
+	/** After useNodeArrays(), the Node views of arrays by index.
+	Null elements are created when first asked for by get(int).
+	*/
+	private Node views[];
+
+	/** Every child and axon Node of a Node must also be added before useNodeArrays() */
+	public void add(Node n){
+		if(arrays != null) throw new RuntimeException(
+			"TODO add Nodes after useNodeArrays()");
+		nodes.add(n);
+	}
+
+	public int size(){
+		return arrays != null ? arrays.size : nodes.size();
+	}
+
+	/** The Node at index i, which is also its index in NodeArrays */
+	public Node get(int i){
+		if(views != null){
+			Node n = views[i];
+			if(n == null) n = views[i] = new Node(arrays, i);
+			return n;
+		}
+		return nodes.get(i);
+	}
+
+	public List<Node> nodes(){
+		return new AbstractList<Node>(){
+			public Node get(int i){ return Cortex.this.get(i); }
+			public int size(){ return Cortex.this.size(); }
+		};
+	}
+
+	/** Copies all Nodes into NodeArrays and makes each Node a view of its index there.
+	Nodes are run in the same order as before, so the numbers don't change.
+	Does nothing if already done.
+	*/
+	public NodeArrays useNodeArrays(){
+		if(arrays == null){
+			NodeArrays a = new NodeArrays(nodes);
+			for(int i=0; i<nodes.size(); i++){
+				nodes.get(i).bindTo(a, i);
+			}
+			views = nodes.toArray(new Node[0]);
+			nodes = null;
+			arrays = a;
+		}
+		return arrays;
+	}
+
+	/** Moves Node i to index newIndexOf[i] (see GraphOrder), in a new NodeArrays laid out in that order.
+	Node views already made are moved with their Nodes. Calls useNodeArrays() first.
+	<br><br>
+	runSynchronous gives the same numbers as before. run() runs Nodes in the new order,
+	so each Node sees changes of a different set of Nodes earlier in the same step than before.
+	Anything holding the old NodeArrays, such as a CortexCheckpointer, must be made again.
+	*/
+	public void reorder(int newIndexOf[]){
+		NodeArrays old = useNodeArrays();
+		NodeArrays a = old.permute(newIndexOf);
+		Node views2[] = new Node[a.size];
+		for(int i=0; i<views.length; i++){
+			if(views[i] != null){
+				views[i].bindTo(a, newIndexOf[i]);
+				views2[newIndexOf[i]] = views[i];
+			}
+		}
+		arrays = a;
+		views = views2;
+		if(old.isActive()) a.setActive(true, old.activeEpsilon(), old.fullSweepEvery());
+		a.setFloatWeights(old.floatWeights());
+	}
+
+	/** Grows to size Nodes, the new ones free slots (leafs with no parents), and leaves room for
+	axonSlack more parents in each Node's axon, in a new NodeArrays (see NodeArrays.withCapacity).
+	Done once before Plasticity, so Nodes can be removed and added later without allocating.
+	Calls useNodeArrays() first. Anything holding the old NodeArrays must be made again, like reorder.
+	*/
+	public void reserve(int size, int axonSlack){
+		NodeArrays old = useNodeArrays();
+		NodeArrays a = old.withCapacity(size, axonSlack);
+		Node views2[] = new Node[a.size];
+		for(int i=0; i<views.length; i++){
+			if(views[i] != null){
+				views[i].bindTo(a, i);
+				views2[i] = views[i];
+			}
+		}
+		arrays = a;
+		views = views2;
+		if(old.isActive()) a.setActive(true, old.activeEpsilon(), old.fullSweepEvery());
+		a.setFloatWeights(old.floatWeights());
+	}
+
+	/** A Cortex of the Nodes in NodeArrays, whose Node views are created when asked for */
+	public Cortex(NodeArrays arrays){
+		this.arrays = arrays;
+		views = new Node[arrays.size];
+		nodes = null;
+	}
+
+	public Cortex(){}
+
+	/** Writes all state of all Nodes to a NodeArraysFile. Calls useNodeArrays() first. */
+	public void save(File file) throws IOException{
+		NodeArraysFile.save(useNodeArrays(), file);
+	}
+
+	/** Reads a file written by save(File) */
+	public static Cortex load(File file) throws IOException{
+		return new Cortex(NodeArraysFile.load(file));
+	}
+
+	/** Null if useNodeArrays() hasn't been called */
+	public NodeArrays getNodeArrays(){ return arrays; }
+
+	/* Bulk I/O, for using the Cortex as a high-dimensional vector from other programs,
+	such as 1 call per step to put a whole video frame into the pixel Nodes.
+	Each call checks its index range once instead of once per Node,
+	and does what setChance does for each Node (marks predictions stale, schedules if active).
+	They work before useNodeArrays() too, 1 Node at a time.
+	Call between steps or while holding synchronized(Node.class).
+	*/
+
+	/** For each k from 0 to length-1, Node start+k: chance = chance*(1-decay) + decay*target[offset+k],
+	which is what Brainwave and Paintbrush do. Throws IllegalArgumentException if a chance would leave 0 to 1.
+	*/
+	public void blendChances(int start, double target[], int offset, int length, double decay){
+		if(arrays != null){
+			arrays.blendChances(start, target, offset, length, decay);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) blend(nodes.get(start+k), target[offset+k], decay);
+	}
+
+	public void blendChances(int start, float target[], int offset, int length, double decay){
+		if(arrays != null){
+			arrays.blendChances(start, target, offset, length, decay);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) blend(nodes.get(start+k), target[offset+k], decay);
+	}
+
+	/** Reads length targets from the position of target, moving it forward */
+	public void blendChances(int start, DoubleBuffer target, int length, double decay){
+		if(arrays != null){
+			arrays.blendChances(start, target, length, decay);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) blend(nodes.get(start+k), target.get(), decay);
+	}
+
+	/** Node indexs[offset+k] blends toward target[offset+k], in order of k, so a Node listed twice blends twice */
+	public void blendChances(int indexs[], double target[], int offset, int length, double decay){
+		if(arrays != null){
+			arrays.blendChances(indexs, target, offset, length, decay);
+			return;
+		}
+		for(int k=offset; k<offset+length; k++) blend(nodes.get(indexs[k]), target[k], decay);
+	}
+
+	public void blendChances(int indexs[], float target[], int offset, int length, double decay){
+		if(arrays != null){
+			arrays.blendChances(indexs, target, offset, length, decay);
+			return;
+		}
+		for(int k=offset; k<offset+length; k++) blend(nodes.get(indexs[k]), target[k], decay);
+	}
+
+	/** blendChances with decay 1 */
+	public void setChances(int start, double chance[], int offset, int length){
+		blendChances(start, chance, offset, length, 1);
+	}
+
+	public void setChances(int start, float chance[], int offset, int length){
+		blendChances(start, chance, offset, length, 1);
+	}
+
+	public void setChances(int start, DoubleBuffer chance, int length){
+		blendChances(start, chance, length, 1);
+	}
+
+	public void setChances(int indexs[], double chance[], int offset, int length){
+		blendChances(indexs, chance, offset, length, 1);
+	}
+
+	public void setChances(int indexs[], float chance[], int offset, int length){
+		blendChances(indexs, chance, offset, length, 1);
+	}
+
+	/** Copies chance of Nodes start to start+length-1 into out[offset..offset+length-1] */
+	public void getChances(int start, double out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChances(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = nodes.get(start+k).getChance();
+	}
+
+	public void getChances(int start, float out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChances(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)nodes.get(start+k).getChance();
+	}
+
+	/** Puts length chances at the position of out, moving it forward */
+	public void getChances(int start, DoubleBuffer out, int length){
+		if(arrays != null){
+			arrays.getChances(start, out, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out.put(nodes.get(start+k).getChance());
+	}
+
+	/** out[offset+k] = chance of Node indexs[offset+k] */
+	public void getChances(int indexs[], double out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChances(indexs, out, offset, length);
+			return;
+		}
+		for(int k=offset; k<offset+length; k++) out[k] = nodes.get(indexs[k]).getChance();
+	}
+
+	public void getChances(int indexs[], float out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChances(indexs, out, offset, length);
+			return;
+		}
+		for(int k=offset; k<offset+length; k++) out[k] = (float)nodes.get(indexs[k]).getChance();
+	}
+
+	public void getChanceStdDevs(int start, double out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChanceStdDevs(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = nodes.get(start+k).getChanceStdDev();
+	}
+
+	public void getChanceStdDevs(int start, float out[], int offset, int length){
+		if(arrays != null){
+			arrays.getChanceStdDevs(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)nodes.get(start+k).getChanceStdDev();
+	}
+
+	/** Node.getAccuracyMeasuredLastRun() of Nodes start to start+length-1 */
+	public void getAccuracies(int start, double out[], int offset, int length){
+		if(arrays != null){
+			arrays.getAccuracies(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = nodes.get(start+k).getAccuracyMeasuredLastRun();
+	}
+
+	public void getAccuracies(int start, float out[], int offset, int length){
+		if(arrays != null){
+			arrays.getAccuracies(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)nodes.get(start+k).getAccuracyMeasuredLastRun();
+	}
+
+	public void getAttentions(int start, double out[], int offset, int length){
+		if(arrays != null){
+			arrays.getAttentions(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = nodes.get(start+k).getAttention();
+	}
+
+	public void getAttentions(int start, float out[], int offset, int length){
+		if(arrays != null){
+			arrays.getAttentions(start, out, offset, length);
+			return;
+		}
+		checkRange(start, length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)nodes.get(start+k).getAttention();
+	}
+
+	private void checkRange(int start, int length){
+		if(start < 0 || length < 0 || start+length > size()) throw new IllegalArgumentException(
+			"Nodes "+start+" to "+(start+length)+" but Cortex has "+size());
+	}
+
+	private static void blend(Node n, double target, double decay){
+		if(decay < 0 || decay > 1) throw new IllegalArgumentException(
+			"decay="+decay+" not in range 0 to 1");
+		n.setChance(n.getChance()*(1-decay) + decay*target);
+	}
+
+	private boolean synchronous;
+
+	/** Null to run on the thread that calls run() */
+	private ForkJoinPool pool;
+
+	/** If true, run() uses NodeArrays.runSynchronous(ForkJoinPool) where every Node reads
+	the state from before the step, so the result doesn't depend on order or number of threads.
+	If false (default), Nodes run in order and see changes from earlier Nodes in the same step.
+	*/
+	public void setSynchronous(boolean synchronous, ForkJoinPool poolOrNull){
+		if(synchronous && active) throw new RuntimeException("TODO active and synchronous at the same time");
+		if(synchronous) useNodeArrays();
+		this.synchronous = synchronous;
+		this.pool = poolOrNull;
+	}
+
+	public boolean isSynchronous(){ return synchronous; }
+
+	private boolean active;
+
+	/** How many Nodes the last run() ran */
+	private int lastRunCount;
+
+	/** If true, run() uses NodeArrays.runActive(), which runs only the Nodes whose inputs
+	or own state moved more than epsilon, and all Nodes every fullSweepEvery runs (0 for never).
+	See NodeArrays.setActive(boolean,double,int).
+	*/
+	public void setActive(boolean active, double epsilon, int fullSweepEvery){
+		if(active && synchronous) throw new RuntimeException("TODO active and synchronous at the same time");
+		useNodeArrays().setActive(active, epsilon, fullSweepEvery);
+		this.active = active;
+	}
+
+	public boolean isActive(){ return active; }
+
+	/** How many Nodes the last run() ran, which is all of them unless active */
+	public int lastRunCount(){ return lastRunCount; }
+
+	private CortexMetrics metrics;
+
+	/** Counts and samples the time of each run(), or null (default) for none */
+	public void setMetrics(CortexMetrics metricsOrNull){
+		this.metrics = metricsOrNull;
+	}
+
+	public CortexMetrics getMetrics(){ return metrics; }
+
+	private Plasticity plasticity;
+
+	/** Removes and adds some Nodes after each run(), or null (default) for none */
+	public void setPlasticity(Plasticity plasticityOrNull){
+		if(plasticityOrNull != null && plasticityOrNull.cortex != this) throw new IllegalArgumentException(
+			"Plasticity of a different Cortex");
+		this.plasticity = plasticityOrNull;
+	}
+
+	public Plasticity getPlasticity(){ return plasticity; }
+
 	public void run(){
+		CortexMetrics m = metrics;
+		if(m == null){
+			runNodes();
+		}else if(!m.sampleThisStep()){
+			runNodes();
+			m.endStep(lastRunCount, -1);
+		}else{
+			long start = System.nanoTime();
+			if(arrays != null) arrays.timeNextRun = m;
+			runNodes();
+			m.endStep(lastRunCount, System.nanoTime()-start);
+		}
+		Plasticity p = plasticity;
+		if(p != null) p.step();
+	}
+
+	private void runNodes(){
+		if(arrays != null){
+			if(active){
+				lastRunCount = arrays.runActive();
+				return;
+			}
+			if(synchronous){
+				arrays.runSynchronous(pool);
+			}else{
+				arrays.run();
+			}
+			lastRunCount = arrays.size;
+			return;
+		}
+		lastRunCount = nodes.size();
 		for(Node n : nodes){
 			n.run();
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,301 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Saves a long running Cortex as a base NodeArraysFile plus a delta log of only the Nodes
+whose chance, attention, or any weight moved more than threshold since they were last written,
+so each checkpoint costs I/O for what changed instead of the whole state.
+<br><br>
+checkpoint(long) must be called between steps on the thread that steps the Cortex
+(or while holding synchronized(Node.class)). It only compares and copies into a reused buffer.
+A writer thread does all the file I/O, so the stepping loop never waits for the disk.
+If the writer is still busy with the last 2 checkpoints, the checkpoint is skipped,
+and the Nodes that changed are written next time since they're compared to what was last written.
+<br><br>
+Delta log, little-endian, blocks of: int deltaMagic, long generation, long step, int records, then each record:
+int index, chance, attention, chanceStdDev, accuracyMeasuredLastRun, 8 weights,
+int memoryClock, int memoryLength, memory double[memoryLength] (the halfSpeed levels, which change when weights do).
+<br><br>
+Structure (childs, axons, number of Nodes) is only in the base. Call fullCheckpoint() after changing it.
+compact() folds the delta log into a new base file. restore(File,File) reads the base then the log.
+<br><br>
+Each base gets the next generation (NodeArraysFile.save(NodeArrays,File,long)) and the writer thread
+stamps it into each delta block after it. A new base is renamed into place before the log is emptied,
+so a crash between those leaves a new base and the old log, whose blocks restore skips
+instead of rolling the new base back, or writing the old state of a pruned Node into whichever Node reused its index.
+*/
+public class CortexCheckpointer{
+
+	public static final int deltaMagic = 0x42435444; //"BCTD"
+
+	/** deltaMagic, generation, step, records */
+	static final int blockHeaderBytes = 24;
+
+	public final NodeArrays arrays;
+
+	public final File baseFile, deltaFile;
+
+	/** A Node is written when any of its chance, attention, or 8 weights moved more than this */
+	public final double threshold;
+
+	/** The values last written for each Node, compared to at each checkpoint */
+	private final double lastChance[], lastAttention[], lastWeights[];
+
+	/** Checkpoints waiting for the writer thread. Elements are ByteBuffer (delta block),
+	NodeArrays (full copy to write as base), or compactRequest.
+	*/
+	private final BlockingQueue<Object> toWrite = new LinkedBlockingQueue<Object>();
+
+	/** Buffers the writer is done with. 2 so the next checkpoint can fill one while the last is written. */
+	private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(2);
+
+	private static final Object compactRequest = new Object(), stopRequest = new Object();
+
+	private final Thread writer;
+
+	/** Set by the writer thread if writing fails. Checked by checkpoint(long) and close(). */
+	private volatile IOException writeError;
+
+	/** Of the last base written. Only used by the writer thread. */
+	private long generation = -1;
+
+	public long checkpoints, skippedCheckpoints, recordsWritten;
+
+	/** Writes a full base file of the current state in the background and starts an empty delta log.
+	Call between steps.
+	*/
+	public CortexCheckpointer(Cortex cortex, File baseFile, File deltaFile, double threshold){
+		this.arrays = cortex.useNodeArrays();
+		this.baseFile = baseFile;
+		this.deltaFile = deltaFile;
+		this.threshold = threshold;
+		int size = arrays.size;
+		lastChance = new double[size];
+		lastAttention = new double[size];
+		lastWeights = new double[8*size];
+		for(int i=0; i<2; i++){
+			freeBuffers.add(ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN));
+		}
+		writer = new Thread(new Runnable(){
+			public void run(){ writeLoop(); }
+		}, "CortexCheckpointer");
+		writer.setDaemon(true);
+		writer.start();
+		fullCheckpoint();
+	}
+
+	/** Writes the Nodes that changed more than threshold since last written, as 1 block of the delta log.
+	Returns false if skipped because the writer thread is behind.
+	*/
+	public boolean checkpoint(long step) throws IOException{
+		if(writeError != null) throw writeError;
+		ByteBuffer b = freeBuffers.poll();
+		if(b == null){
+			skippedCheckpoints++;
+			return false;
+		}
+		b.clear();
+		b.putInt(deltaMagic).putLong(0).putLong(step).putInt(0); //the writer thread fills in generation
+		int records = 0;
+		double w[] = arrays.weights(), att[] = arrays.attention;
+		for(int i=0; i<arrays.size; i++){
+			if(!changed(i, w, att)) continue;
+			double memory[] = arrays.memory[i];
+			int memoryLength = memory==null ? 0 : memory.length;
+			int recordBytes = 4+12*8+8+8*memoryLength;
+			if(b.remaining() < recordBytes){
+				ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(2*b.capacity(), b.position()+recordBytes))
+					.order(ByteOrder.LITTLE_ENDIAN);
+				b.flip();
+				bigger.put(b);
+				b = bigger;
+			}
+			b.putInt(i);
+			b.putDouble(lastChance[i] = arrays.chance[i]);
+			b.putDouble(lastAttention[i] = att[i]);
+			b.putDouble(arrays.chanceStdDev[i]);
+			b.putDouble(arrays.accuracyMeasuredLastRun[i]);
+			for(int j=8*i; j<8*i+8; j++) b.putDouble(lastWeights[j] = w[j]);
+			b.putInt(arrays.memoryClock[i]);
+			b.putInt(memoryLength);
+			for(int j=0; j<memoryLength; j++) b.putDouble(memory[j]);
+			records++;
+		}
+		b.putInt(20, records);
+		b.flip();
+		checkpoints++;
+		recordsWritten += records;
+		toWrite.add(b);
+		return true;
+	}
+
+	private boolean changed(int i, double w[], double att[]){
+		if(Math.abs(arrays.chance[i]-lastChance[i]) > threshold) return true;
+		if(Math.abs(att[i]-lastAttention[i]) > threshold) return true;
+		for(int j=8*i; j<8*i+8; j++){
+			if(Math.abs(w[j]-lastWeights[j]) > threshold) return true;
+		}
+		return false;
+	}
+
+	/** Copies all state (1 arraycopy per array) and writes it as the new base in the background,
+	then empties the delta log. Call between steps, and after changing the structure of the Nodes.
+	*/
+	public void fullCheckpoint(){
+		NodeArrays copy = arrays.copy();
+		System.arraycopy(copy.chance, 0, lastChance, 0, copy.size);
+		System.arraycopy(copy.attention, 0, lastAttention, 0, copy.size);
+		System.arraycopy(copy.weights, 0, lastWeights, 0, copy.weights.length);
+		toWrite.add(copy);
+	}
+
+	/** In the background, reads the base, applies the delta log, writes a new base, and empties the log.
+	Doesn't need to be called between steps since it doesn't read the running NodeArrays.
+	*/
+	public void compact(){
+		toWrite.add(compactRequest);
+	}
+
+	/** Waits for everything already queued to be written, then stops the writer thread */
+	public void close() throws IOException{
+		toWrite.add(stopRequest);
+		try{
+			writer.join();
+		}catch(InterruptedException e){
+			throw new IOException(e);
+		}
+		if(writeError != null) throw writeError;
+	}
+
+	private void writeLoop(){
+		FileChannel log = null;
+		try{
+			while(true){
+				Object o = toWrite.take();
+				if(o == stopRequest) break;
+				if(o instanceof NodeArrays){
+					if(log != null) log.close();
+					writeBase((NodeArrays)o);
+					log = openEmptyLog();
+				}else if(o == compactRequest){
+					if(log != null) log.close();
+					writeBase(restoreArrays(baseFile, deltaFile));
+					log = openEmptyLog();
+				}else{
+					ByteBuffer b = (ByteBuffer)o;
+					b.putLong(4, generation);
+					while(b.hasRemaining()) log.write(b);
+					log.force(false);
+					freeBuffers.offer(b);
+				}
+			}
+		}catch(IOException e){
+			writeError = e;
+		}catch(InterruptedException e){
+			writeError = new IOException(e);
+		}finally{
+			try{
+				if(log != null) log.close();
+			}catch(IOException e){
+				if(writeError == null) writeError = e;
+			}
+		}
+	}
+
+	/** Saves a with the next generation. NodeArraysFile.save writes a temp file then renames it,
+	so a crash while writing leaves the old base.
+	*/
+	private void writeBase(NodeArrays a) throws IOException{
+		if(generation == -1){
+			//Continue after the generation of an old base, whose log may still be there
+			generation = 0;
+			if(baseFile.exists()){
+				try{
+					generation = NodeArraysFile.readGeneration(baseFile);
+				}catch(IOException e){
+					//Not a base, so its log can't be restored either
+				}
+			}
+		}
+		generation++;
+		NodeArraysFile.save(a, baseFile, generation);
+	}
+
+	private FileChannel openEmptyLog() throws IOException{
+		return FileChannel.open(deltaFile.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/** Reads a Cortex saved by a CortexCheckpointer, as of its last checkpoint */
+	public static Cortex restore(File baseFile, File deltaFile) throws IOException{
+		return new Cortex(restoreArrays(baseFile, deltaFile));
+	}
+
+	static NodeArrays restoreArrays(File baseFile, File deltaFile) throws IOException{
+		NodeArrays a = NodeArraysFile.load(baseFile);
+		if(deltaFile.exists()) applyDeltas(a, deltaFile, NodeArraysFile.readGeneration(baseFile));
+		return a;
+	}
+
+	/** Applies each complete block of the delta log of that generation of base in order.
+	A block cut off at the end, from stopping while it was written, is ignored,
+	and so are blocks of other generations, from a crash after a new base was written but before the log was emptied.
+	*/
+	static void applyDeltas(NodeArrays a, File deltaFile, long generation) throws IOException{
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(deltaFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		while(b.remaining() >= blockHeaderBytes){
+			int blockStart = b.position();
+			if(b.getInt() != deltaMagic) throw new IOException("Not a delta block at byte "+blockStart+": "+deltaFile);
+			long blockGeneration = b.getLong();
+			b.getLong(); //step
+			int records = b.getInt();
+			ByteBuffer end = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			if(!blockIsComplete(end, records)) break;
+			if(blockGeneration != generation){
+				b.position(end.position());
+				continue;
+			}
+			for(int r=0; r<records; r++){
+				int i = b.getInt();
+				if(i < 0 || i >= a.size) throw new IOException(
+					"Delta for Node "+i+" but base has "+a.size+" Nodes: "+deltaFile);
+				a.chance[i] = b.getDouble();
+				a.attention[i] = b.getDouble();
+				a.chanceStdDev[i] = b.getDouble();
+				a.accuracyMeasuredLastRun[i] = b.getDouble();
+				for(int j=8*i; j<8*i+8; j++) a.weights[j] = b.getDouble();
+				a.memoryClock[i] = b.getInt();
+				int memoryLength = b.getInt();
+				if(memoryLength == 0){
+					a.memory[i] = null;
+				}else{
+					if(a.memory[i] == null || a.memory[i].length != memoryLength) a.memory[i] = new double[memoryLength];
+					for(int j=0; j<memoryLength; j++) a.memory[i][j] = b.getDouble();
+				}
+			}
+		}
+	}
+
+	/** Moves b to the end of the block if it is complete */
+	private static boolean blockIsComplete(ByteBuffer b, int records){
+		for(int r=0; r<records; r++){
+			if(b.remaining() < 4+12*8+8) return false;
+			b.position(b.position()+4+12*8+4);
+			int memoryLength = b.getInt();
+			if(b.remaining() < 8L*memoryLength) return false;
+			b.position(b.position()+8*memoryLength);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,38 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** A copy, as floats, of what a display shows of a range of Nodes, so it can be drawn
+without holding synchronized(Node.class) while the Nodes keep running.
+Made once and copied into again every frame, such as 3 of them in a TripleBuffer.
+*/
+public class CortexFrame{
+
+	public final int size;
+
+	public final float chance[], chanceStdDev[], accuracy[];
+
+	/** Which step of the Cortex this was copied after, set by whoever copies it */
+	public long step;
+
+	public CortexFrame(int size){
+		this.size = size;
+		chance = new float[size];
+		chanceStdDev = new float[size];
+		accuracy = new float[size];
+	}
+
+	/** For a simulation thread to hand frames to a display thread */
+	public static TripleBuffer<CortexFrame> newTripleBuffer(int size){
+		return new TripleBuffer<CortexFrame>(new CortexFrame(size), new CortexFrame(size), new CortexFrame(size));
+	}
+
+	/** Copies Nodes start to start+size-1 of a Cortex, NodeArrays or MappedNodeArrays.
+	Call between steps or while holding synchronized(Node.class).
+	*/
+	public void copyFrom(NodeColumns nodes, int start){
+		nodes.getChances(start, chance, 0, size);
+		nodes.getChanceStdDevs(start, chanceStdDev, 0, size);
+		nodes.getAccuracies(start, accuracy, 0, size);
+	}
+
+}
@@ -0,0 +1,219 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Counts and times the steps of a Cortex cheaply enough to leave on. See Cortex.setMetrics(CortexMetrics).
+Every step adds to 2 LongAdders. Every sampleEvery steps is timed with System.nanoTime(),
+split into leaf Nodes (the pixels), thinking Nodes, and halfSpeed levels, where NodeArrays.run()
+or runSynchronous timed that step (runActive and Node objects time only the whole step).
+With runSynchronous in a ForkJoinPool, the split is nanoseconds summed over threads.
+Nothing is allocated per step.
+<br><br>
+Means and the axon size histogram are calculated when read, by whoever reads them (such as JMX or log),
+from the arrays the stepping thread is changing, so they're approximate.
+<br><br>
+register(String) shows these in JMX (jconsole, VisualVM) and startLog(double) prints getLogLine() periodically.
+*/
+public class CortexMetrics implements CortexMetricsMBean{
+
+	/** Counted where those RuntimeExceptions are thrown, for all Cortexs, since they usually stop the thread
+	that steps and the count is seen after that
+	*/
+	public static final LongAdder attentionOutOfRange = new LongAdder(), brokenLinks = new LongAdder();
+
+	public final Cortex cortex;
+
+	final LongAdder steps = new LongAdder(), nodeUpdates = new LongAdder();
+
+	final LongAdder sampledSteps = new LongAdder(), stepNanos = new LongAdder();
+
+	/** Nanoseconds of sampled steps */
+	final LongAdder leafNanos = new LongAdder(), thinkingNanos = new LongAdder(), halfSpeedNanos = new LongAdder();
+
+	final LongAdder renders = new LongAdder(), renderNanos = new LongAdder();
+
+	private volatile int sampleEvery = 16;
+
+	/** Only used by the stepping thread */
+	private int stepsUntilSample = 1;
+
+	/** Updated by the stepping thread about once per second, at a sampled step */
+	private volatile double stepsPerSecond, nodeUpdatesPerSecond;
+
+	/** Only used by the stepping thread */
+	private long rateStart = System.nanoTime(), stepsAtRateStart, nodeUpdatesAtRateStart;
+
+	public CortexMetrics(Cortex cortex){
+		this.cortex = cortex;
+	}
+
+	/** Called by Cortex.run() before the step. Returns true if this step is to be timed. */
+	boolean sampleThisStep(){
+		if(--stepsUntilSample > 0) return false;
+		stepsUntilSample = sampleEvery;
+		return true;
+	}
+
+	/** Called by Cortex.run() after the step, with its nanoseconds if sampled, else -1 */
+	void endStep(int nodesRun, long nanos){
+		steps.increment();
+		nodeUpdates.add(nodesRun);
+		if(nanos < 0) return;
+		sampledSteps.increment();
+		stepNanos.add(nanos);
+		long now = System.nanoTime();
+		if(now-rateStart >= 1000000000L){
+			long s = steps.sum(), n = nodeUpdates.sum();
+			double seconds = (now-rateStart)/1e9;
+			stepsPerSecond = (s-stepsAtRateStart)/seconds;
+			nodeUpdatesPerSecond = (n-nodeUpdatesAtRateStart)/seconds;
+			rateStart = now;
+			stepsAtRateStart = s;
+			nodeUpdatesAtRateStart = n;
+		}
+	}
+
+	/** Called by NodeArrays for a timed step, from each thread that ran part of it */
+	void addTimes(long leaf, long thinking, long halfSpeed){
+		leafNanos.add(leaf);
+		thinkingNanos.add(thinking);
+		halfSpeedNanos.add(halfSpeed);
+	}
+
+	/** Called by a display after drawing a frame */
+	public void addRender(long nanos){
+		renders.increment();
+		renderNanos.add(nanos);
+	}
+
+	public long getSteps(){ return steps.sum(); }
+
+	public long getNodeUpdates(){ return nodeUpdates.sum(); }
+
+	public double getStepsPerSecond(){ return stepsPerSecond; }
+
+	public double getNodeUpdatesPerSecond(){ return nodeUpdatesPerSecond; }
+
+	public int getSampleEvery(){ return sampleEvery; }
+
+	public void setSampleEvery(int sampleEvery){
+		if(sampleEvery < 1) throw new IllegalArgumentException("sampleEvery="+sampleEvery);
+		this.sampleEvery = sampleEvery;
+	}
+
+	public long getSampledSteps(){ return sampledSteps.sum(); }
+
+	/** Mean of sampled steps */
+	public double getStepMillis(){ return perSampledStep(stepNanos); }
+
+	public double getLeafNodeMillisPerStep(){ return perSampledStep(leafNanos); }
+
+	public double getThinkingNodeMillisPerStep(){ return perSampledStep(thinkingNanos); }
+
+	public double getHalfSpeedMillisPerStep(){ return perSampledStep(halfSpeedNanos); }
+
+	private double perSampledStep(LongAdder nanos){
+		long s = sampledSteps.sum();
+		return s==0 ? 0 : nanos.sum()/1e6/s;
+	}
+
+	public long getRenders(){ return renders.sum(); }
+
+	public double getRenderMillis(){
+		long r = renders.sum();
+		return r==0 ? 0 : renderNanos.sum()/1e6/r;
+	}
+
+	public double getMeanAccuracy(){
+		NodeArrays a = cortex.getNodeArrays();
+		int size = cortex.size();
+		if(size == 0) return 0;
+		double sum = 0;
+		if(a != null){
+			double acc[] = a.accuracyMeasuredLastRun;
+			for(int i=0; i<size; i++) sum += acc[i];
+		}else{
+			for(int i=0; i<size; i++) sum += cortex.get(i).getAccuracyMeasuredLastRun();
+		}
+		return sum/size;
+	}
+
+	public double getMeanChanceStdDev(){
+		NodeArrays a = cortex.getNodeArrays();
+		int size = cortex.size();
+		if(size == 0) return 0;
+		double sum = 0;
+		if(a != null){
+			double s[] = a.chanceStdDev;
+			for(int i=0; i<size; i++) sum += s[i];
+		}else{
+			for(int i=0; i<size; i++) sum += cortex.get(i).getChanceStdDev();
+		}
+		return sum/size;
+	}
+
+	/** Index 0 counts Nodes with axonSize 0 (no parents), and index k counts axonSize 2^(k-1) to 2^k-1 */
+	public long[] getAxonSizeHistogram(){
+		long counts[] = new long[33];
+		int highest = 0;
+		NodeArrays a = cortex.getNodeArrays();
+		int size = cortex.size();
+		for(int i=0; i<size; i++){
+			int axonSize = a!=null ? a.axonSize[i] : cortex.get(i).axonSize();
+			int k = 32-Integer.numberOfLeadingZeros(axonSize);
+			counts[k]++;
+			highest = Math.max(highest, k);
+		}
+		long h[] = new long[highest+1];
+		System.arraycopy(counts, 0, h, 0, h.length);
+		return h;
+	}
+
+	public long getAttentionOutOfRange(){ return attentionOutOfRange.sum(); }
+
+	public long getBrokenLinks(){ return brokenLinks.sum(); }
+
+	public String getLogLine(){
+		return "steps="+getSteps()+" steps/sec="+(float)stepsPerSecond
+			+" node-updates/sec="+(float)nodeUpdatesPerSecond
+			+" step ms="+(float)getStepMillis()+" (leaf "+(float)getLeafNodeMillisPerStep()
+			+" thinking "+(float)getThinkingNodeMillisPerStep()+" halfSpeed "+(float)getHalfSpeedMillisPerStep()+")"
+			+" render ms="+(float)getRenderMillis()
+			+" meanAccuracy="+(float)getMeanAccuracy()+" meanChanceStdDev="+(float)getMeanChanceStdDev()
+			+" attentionOutOfRange="+getAttentionOutOfRange()+" brokenLinks="+getBrokenLinks();
+	}
+
+	/** Shows these metrics in the platform MBeanServer as bayesiancortex:type=CortexMetrics,name=name */
+	public void register(String name){
+		try{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("bayesiancortex:type=CortexMetrics,name="+ObjectName.quote(name)));
+		}catch(JMException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Starts a daemon thread that prints getLogLine() every seconds */
+	public Thread startLog(final double seconds){
+		Thread t = new Thread(new Runnable(){
+			public void run(){
+				while(true){
+					try{
+						Thread.sleep((long)(seconds*1000));
+					}catch(InterruptedException e){
+						return;
+					}
+					System.out.println(getLogLine());
+				}
+			}
+		}, "CortexMetrics log");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+}
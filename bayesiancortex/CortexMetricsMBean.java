@@ -0,0 +1,45 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** What CortexMetrics shows in JMX, such as in jconsole under bayesiancortex */
+public interface CortexMetricsMBean{
+
+	public long getSteps();
+
+	public long getNodeUpdates();
+
+	public double getStepsPerSecond();
+
+	public double getNodeUpdatesPerSecond();
+
+	public int getSampleEvery();
+
+	public void setSampleEvery(int sampleEvery);
+
+	public long getSampledSteps();
+
+	public double getStepMillis();
+
+	public double getLeafNodeMillisPerStep();
+
+	public double getThinkingNodeMillisPerStep();
+
+	public double getHalfSpeedMillisPerStep();
+
+	public long getRenders();
+
+	public double getRenderMillis();
+
+	public double getMeanAccuracy();
+
+	public double getMeanChanceStdDev();
+
+	public long[] getAxonSizeHistogram();
+
+	public long getAttentionOutOfRange();
+
+	public long getBrokenLinks();
+
+	public String getLogLine();
+
+}
@@ -0,0 +1,240 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/** Records columns (chance, chanceStdDev, accuracy, attention) of a range of Nodes every few steps,
+for looking at a run later, such as with CortexRecording and bayesiancortex.ui.RecordingPlayer.
+<br><br>
+record(Cortex,long) only copies the columns as floats into 1 of a few reused buffers, on the thread that steps.
+A writer thread encodes and writes them. If the writer is behind and no buffer is free, the frame is dropped
+(counted in dropped) so recording never slows the simulation.
+<br><br>
+Formats:
+<br>
+bcr: little-endian header (magic, version, start, size, number of columns, each column's index in columnNames,
+bits, delta), then for each frame a long step then each column's size values.
+bits is 32 for floats, or 8 or 16 to quantize each value to 0..255 or 0..65535 of 0 to columnScale.
+If delta, each value is stored as its difference (wrapping, so no precision is lost) from the same value
+in the frame before, or for floats the xor of their bits, which is mostly 0 bits for Nodes that didn't change.
+That makes the stream much more compact when the file name ends with .gz, which gzips it.
+<br>
+grey8: 1 column as raw video, 1 byte per Node, such as for ffmpeg -f rawvideo -pix_fmt gray -s 50x50.
+<br>
+rgb24: 3 columns as red, green, and blue of raw video. chanceStdDev,chance,accuracy is the colors
+of OneNodePerPixelDisplay, except red is 5 times darker.
+*/
+public class CortexRecorder{
+
+	public static final int magic = 0x42435243; //"BCRC"
+
+	public static final int version = 1;
+
+	public static final String columnNames[] = {"chance", "chanceStdDev", "accuracy", "attention"};
+
+	/** Each column is scaled from 0 to this, to 0 to 1, for quantizing and video, clamping bigger values.
+	chanceStdDev is at most .5 since chance is 0 to 1. OneNodePerPixelDisplay shows it brighter, as 0 to .1.
+	*/
+	public static final float columnScale[] = {1, .5f, 1, 1};
+
+	public final File file;
+
+	/** bcr, grey8, or rgb24 */
+	public final String format;
+
+	/** Indexs in columnNames */
+	public final int columns[];
+
+	/** Records Nodes start to start+size-1 */
+	public final int start, size;
+
+	/** For bcr: 8, 16, or 32 */
+	public final int bits;
+
+	public final boolean delta;
+
+	/** record(Cortex,long) records only steps that are a multiple of this */
+	public int every = 1;
+
+	/** Only changed by the thread calling record */
+	public long recorded, dropped;
+
+	private final OutputStream out;
+
+	private static class Recorded{
+		long step;
+		final float values[][];
+		Recorded(int columns, int size){ values = new float[columns][size]; }
+	}
+
+	/** Buffers the writer is done with */
+	private final BlockingQueue<Recorded> free;
+
+	/** Recorded frames waiting for the writer, then stopRequest */
+	private final BlockingQueue<Object> toWrite = new LinkedBlockingQueue<Object>();
+
+	private static final Object stopRequest = new Object();
+
+	private final Thread writer;
+
+	/** Set by the writer thread if writing fails. Checked by record and close. */
+	private volatile IOException writeError;
+
+	/** columns is names from columnNames separated by commas, such as "chance,chanceStdDev,accuracy".
+	Starts the writer thread. buffers is how many frames can wait for the writer before frames are dropped.
+	*/
+	public CortexRecorder(File file, String format, String columns, int start, int size, int bits, boolean delta,
+			int buffers) throws IOException{
+		String names[] = columns.split(",");
+		this.columns = new int[names.length];
+		for(int c=0; c<names.length; c++){
+			this.columns[c] = Arrays.asList(columnNames).indexOf(names[c].trim());
+			if(this.columns[c] == -1) throw new IllegalArgumentException("Unknown column: "+names[c]);
+		}
+		if(format.equals("bcr")){
+			if(bits != 8 && bits != 16 && bits != 32) throw new IllegalArgumentException("bits="+bits);
+		}else if(format.equals("grey8")){
+			if(names.length != 1) throw new IllegalArgumentException("grey8 needs 1 column: "+columns);
+		}else if(format.equals("rgb24")){
+			if(names.length != 3) throw new IllegalArgumentException("rgb24 needs 3 columns: "+columns);
+		}else{
+			throw new IllegalArgumentException("Unknown format: "+format);
+		}
+		if(start < 0 || size < 1) throw new IllegalArgumentException("start="+start+" size="+size);
+		if(buffers < 1) throw new IllegalArgumentException("buffers="+buffers);
+		this.file = file;
+		this.format = format;
+		this.start = start;
+		this.size = size;
+		this.bits = bits;
+		this.delta = delta;
+		OutputStream o = new BufferedOutputStream(new FileOutputStream(file), 1<<16);
+		out = file.getName().endsWith(".gz") ? new GZIPOutputStream(o, 1<<16) : o;
+		if(format.equals("bcr")){
+			ByteBuffer b = ByteBuffer.allocate(4*(7+this.columns.length)).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(magic).putInt(version).putInt(start).putInt(size).putInt(this.columns.length);
+			for(int c : this.columns) b.putInt(c);
+			b.putInt(bits).putInt(delta ? 1 : 0);
+			out.write(b.array());
+		}
+		free = new ArrayBlockingQueue<Recorded>(buffers);
+		for(int i=0; i<buffers; i++) free.add(new Recorded(this.columns.length, size));
+		writer = new Thread(new Runnable(){
+			public void run(){ writeLoop(); }
+		}, "CortexRecorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** Call between steps or while holding synchronized(Node.class). If step is a multiple of every,
+	copies the columns for the writer thread and returns true, or returns false if dropped since the writer is behind.
+	*/
+	public boolean record(NodeColumns cortex, long step) throws IOException{
+		if(step % every != 0) return false;
+		if(writeError != null) throw writeError;
+		Recorded r = free.poll();
+		if(r == null){
+			dropped++;
+			return false;
+		}
+		r.step = step;
+		for(int c=0; c<columns.length; c++){
+			float v[] = r.values[c];
+			switch(columns[c]){
+			case 0: cortex.getChances(start, v, 0, size); break;
+			case 1: cortex.getChanceStdDevs(start, v, 0, size); break;
+			case 2: cortex.getAccuracies(start, v, 0, size); break;
+			default: cortex.getAttentions(start, v, 0, size);
+			}
+		}
+		recorded++;
+		toWrite.add(r);
+		return true;
+	}
+
+	/** Bytes of each frame after the header */
+	public int frameBytes(){
+		if(format.equals("grey8")) return size;
+		if(format.equals("rgb24")) return 3*size;
+		return 8+columns.length*size*(bits/8);
+	}
+
+	/** Value 0 to columnScale as 0 to levels, rounded, clamped. For 8 bits, the same as OneNodePerPixelDisplay. */
+	static int quantize(float value, float scale, int levels){
+		float f = value/scale;
+		return f<=0 ? 0 : f>=1 ? levels : (int)(f*levels+.5f);
+	}
+
+	private void writeLoop(){
+		ByteBuffer b = ByteBuffer.allocate(frameBytes()).order(ByteOrder.LITTLE_ENDIAN);
+		int previous[][] = delta ? new int[columns.length][size] : null;
+		try{
+			while(true){
+				Object o = toWrite.take();
+				if(o == stopRequest) break;
+				Recorded r = (Recorded)o;
+				b.clear();
+				if(format.equals("bcr")){
+					b.putLong(r.step);
+					int levels = (1<<bits)-1;
+					for(int c=0; c<columns.length; c++){
+						float v[] = r.values[c];
+						float scale = columnScale[columns[c]];
+						for(int i=0; i<size; i++){
+							int x = bits==32 ? Float.floatToRawIntBits(v[i]) : quantize(v[i], scale, levels);
+							if(delta){
+								int p = previous[c][i];
+								previous[c][i] = x;
+								x = bits==32 ? x^p : x-p;
+							}
+							if(bits == 8) b.put((byte)x);
+							else if(bits == 16) b.putShort((short)x);
+							else b.putInt(x);
+						}
+					}
+				}else{
+					for(int i=0; i<size; i++){
+						for(int c=0; c<columns.length; c++){
+							b.put((byte)quantize(r.values[c][i], columnScale[columns[c]], 255));
+						}
+					}
+				}
+				free.add(r);
+				out.write(b.array(), 0, b.position());
+			}
+		}catch(IOException e){
+			writeError = e;
+		}catch(InterruptedException e){
+			writeError = new IOException(e);
+		}finally{
+			try{
+				out.close();
+			}catch(IOException e){
+				if(writeError == null) writeError = e;
+			}
+		}
+	}
+
+	/** Waits for the frames already recorded to be written, then closes the file */
+	public void close() throws IOException{
+		toWrite.add(stopRequest);
+		try{
+			writer.join();
+		}catch(InterruptedException e){
+			throw new IOException(e);
+		}
+		if(writeError != null) throw writeError;
+	}
+
+}
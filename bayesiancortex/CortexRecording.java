@@ -0,0 +1,141 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/** Reads a bcr file written by CortexRecorder, 1 frame at a time, without the Cortex that was recorded.
+Quantized values are read back as the nearest of their levels, so they differ from what was recorded
+by at most half of columnScale/levels (if it was in range 0 to columnScale).
+*/
+public class CortexRecording{
+
+	public final File file;
+
+	/** The Nodes recorded were start to start+size-1 */
+	public final int start, size;
+
+	/** Indexs in CortexRecorder.columnNames */
+	public final int columns[];
+
+	public final int bits;
+
+	public final boolean delta;
+
+	/** Of the last frame read by next() */
+	public long step;
+
+	/** values[c][i] is column columns[c] of Node start+i in the last frame read by next() */
+	public final float values[][];
+
+	private final DataInputStream in;
+
+	/** The raw values of the last frame, for delta */
+	private final int raw[][];
+
+	private final ByteBuffer frame;
+
+	public CortexRecording(File file) throws IOException{
+		this.file = file;
+		InputStream i = new BufferedInputStream(new FileInputStream(file), 1<<16);
+		i.mark(2);
+		boolean gzip = i.read() == 0x1f && i.read() == 0x8b;
+		i.reset();
+		in = new DataInputStream(gzip ? new GZIPInputStream(i, 1<<16) : i);
+		try{
+			ByteBuffer h = readLittleEndian(20);
+			if(h.getInt() != CortexRecorder.magic) throw new IOException("Not a CortexRecorder bcr file: "+file);
+			int v = h.getInt();
+			if(v != CortexRecorder.version) throw new IOException("Unknown version "+v+": "+file);
+			start = h.getInt();
+			size = h.getInt();
+			columns = new int[h.getInt()];
+			h = readLittleEndian(4*(columns.length+2));
+			for(int c=0; c<columns.length; c++){
+				columns[c] = h.getInt();
+				if(columns[c] < 0 || columns[c] >= CortexRecorder.columnNames.length) throw new IOException(
+					"Unknown column "+columns[c]+": "+file);
+			}
+			bits = h.getInt();
+			delta = h.getInt() != 0;
+		}catch(IOException e){
+			in.close();
+			throw e;
+		}
+		values = new float[columns.length][size];
+		raw = new int[columns.length][size];
+		frame = ByteBuffer.allocate(8+columns.length*size*(bits/8)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private ByteBuffer readLittleEndian(int bytes) throws IOException{
+		byte b[] = new byte[bytes];
+		in.readFully(b);
+		return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Reads the next frame into step and values. Returns false at the end of the file,
+	including a frame cut off by stopping while it was written.
+	*/
+	public boolean next() throws IOException{
+		try{
+			in.readFully(frame.array());
+		}catch(EOFException e){
+			return false;
+		}
+		frame.clear();
+		step = frame.getLong();
+		int levels = (1<<bits)-1;
+		for(int c=0; c<columns.length; c++){
+			float v[] = values[c];
+			int r[] = raw[c];
+			float scale = CortexRecorder.columnScale[columns[c]];
+			for(int i=0; i<size; i++){
+				int x = bits==8 ? frame.get()&0xff : bits==16 ? frame.getShort()&0xffff : frame.getInt();
+				if(delta) x = bits==32 ? x^r[i] : (x+r[i])&levels;
+				r[i] = x;
+				v[i] = bits==32 ? Float.intBitsToFloat(x) : x*scale/levels;
+			}
+		}
+		return true;
+	}
+
+	/** Index in values of column name, or -1 if it wasn't recorded */
+	public int column(String name){
+		for(int c=0; c<columns.length; c++){
+			if(CortexRecorder.columnNames[columns[c]].equals(name)) return c;
+		}
+		return -1;
+	}
+
+	/** Copies the last frame into a CortexFrame of size Nodes, for a display.
+	Columns not recorded are 0.
+	*/
+	public void copyTo(CortexFrame f){
+		if(f.size != size) throw new IllegalArgumentException(
+			"CortexFrame has "+f.size+" Nodes but recording has "+size);
+		copyColumn("chance", f.chance);
+		copyColumn("chanceStdDev", f.chanceStdDev);
+		copyColumn("accuracy", f.accuracy);
+		f.step = step;
+	}
+
+	private void copyColumn(String name, float to[]){
+		int c = column(name);
+		if(c == -1) Arrays.fill(to, 0);
+		else System.arraycopy(values[c], 0, to, 0, size);
+	}
+
+	public void close() throws IOException{
+		in.close();
+	}
+
+}
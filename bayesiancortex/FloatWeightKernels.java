@@ -0,0 +1,20 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** The weight update of WeightKernels for weights stored as float32 (NodeArrays.setFloatWeights),
+with the arithmetic in float, so 8 weights are 1 256-bit vector. WeightKernels.float32 is the one to use:
+bayesiancortex.vector.VectorWeightKernels if it loads, else WeightKernels.scalarFloat32,
+which give exactly the same numbers.
+*/
+public interface FloatWeightKernels{
+
+	/** Same as WeightKernels.updateWeights, in float */
+	public void updateWeights(float in[], float out[], double observe[], double decay[], int childs[],
+		int from, int to);
+
+	/** Divides the 8 weights of each Node from to to-1 by their sum,
+	summed as ((w0+w4)+(w2+w6))+((w1+w5)+(w3+w7)) like a vector sum of lanes, in float
+	*/
+	public void normWeights(float w[], int from, int to);
+
+}
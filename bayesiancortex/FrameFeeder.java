@@ -0,0 +1,165 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Feeds a FrameSource into a range of Nodes (such as the pixel Nodes), 1 frame per stepsPerFrame steps.
+A decoder thread reads frames ahead of time into a few reused buffers, already in the order of the Nodes,
+so feed(Cortex) on the stepping thread only takes the next ready buffer and does 1 Cortex.blendChances.
+<br><br>
+Backpressure: when stepping falls behind, all buffers are full of frames not fed yet,
+and the decoder waits for feed to give 1 back (counted in decoderWaits) instead of dropping frames
+or allocating more. When decoding falls behind, feed keeps blending the last frame (counted in underruns)
+instead of waiting for the decoder.
+*/
+public class FrameFeeder{
+
+	public final FrameSource source;
+
+	/** Node firstNode+k is fed channel channelOfNode[k] of each frame, or channel k if channelOfNode is null */
+	public final int firstNode, nodes;
+
+	private final int channelOfNode[];
+
+	/** Each step, chance = chance*(1-decay) + decay*(the value of the current frame). 1 sets chance to it. */
+	public double decay = 1;
+
+	/** Steps per frame, such as 2 for 30 frames per second at 60 steps per second */
+	public int stepsPerFrame = 1;
+
+	/** Buffers feed is done with, for the decoder to fill */
+	private final BlockingQueue<float[]> free;
+
+	/** Buffers the decoder filled, in order, then endOfStream */
+	private final BlockingQueue<float[]> ready = new LinkedBlockingQueue<float[]>();
+
+	private static final float endOfStream[] = new float[0];
+
+	/** The frame feed blends each step, which the decoder doesn't have */
+	private float current[];
+
+	private final Thread decoder;
+
+	/** Set by the decoder thread if reading fails. Thrown by feed. */
+	private volatile IOException readError;
+
+	private boolean ended;
+
+	private long feeds;
+
+	/** Frames fed, and frames due when none were ready */
+	public long framesFed, underruns;
+
+	/** Times the decoder waited for feed to free a buffer. Only changed by the decoder thread. */
+	public volatile long decoderWaits;
+
+	/** Starts the decoder thread. buffers is how many frames can be decoded ahead plus the 1 being fed, at least 2.
+	channelOfNode may be null, to feed channel k to Node firstNode+k for every channel.
+	*/
+	public FrameFeeder(FrameSource source, int firstNode, int channelOfNode[], int buffers){
+		if(buffers < 2) throw new IllegalArgumentException("buffers="+buffers+" must be at least 2");
+		int frameSize = source.frameSize();
+		if(channelOfNode != null){
+			for(int c : channelOfNode){
+				if(c < 0 || c >= frameSize) throw new IllegalArgumentException(
+					"channel "+c+" but frames have "+frameSize+" channels");
+			}
+		}
+		this.source = source;
+		this.firstNode = firstNode;
+		this.channelOfNode = channelOfNode;
+		nodes = channelOfNode==null ? frameSize : channelOfNode.length;
+		free = new ArrayBlockingQueue<float[]>(buffers);
+		for(int i=0; i<buffers; i++) free.add(new float[nodes]);
+		decoder = new Thread(new Runnable(){
+			public void run(){ decodeLoop(); }
+		}, "FrameFeeder");
+		decoder.setDaemon(true);
+		decoder.start();
+	}
+
+	/** channelOfNode for a grid of gridWidth by gridHeight Nodes (such as the pixel Nodes, virtualWidth per row)
+	and frames of frameWidth by frameHeight pixels, each channelsPerPixel values (3 for rgb24).
+	Each Node reads the given channel of the nearest pixel, so the frame is scaled to fit the grid.
+	*/
+	public static int[] scaleToGrid(int frameWidth, int frameHeight, int channelsPerPixel, int channel,
+			int gridWidth, int gridHeight){
+		if(channel < 0 || channel >= channelsPerPixel) throw new IllegalArgumentException(
+			"channel="+channel+" channelsPerPixel="+channelsPerPixel);
+		int channelOfNode[] = new int[gridWidth*gridHeight];
+		for(int y=0; y<gridHeight; y++){
+			int frameY = (int)((long)y*frameHeight/gridHeight);
+			for(int x=0; x<gridWidth; x++){
+				int frameX = (int)((long)x*frameWidth/gridWidth);
+				channelOfNode[y*gridWidth+x] = (frameY*frameWidth+frameX)*channelsPerPixel+channel;
+			}
+		}
+		return channelOfNode;
+	}
+
+	/** Call once per step before cortex.run(), between steps or while holding synchronized(Node.class).
+	Never waits for the decoder. Returns false after the FrameSource ran out of frames, and then doesn't change the Cortex.
+	*/
+	public boolean feed(NodeColumns cortex) throws IOException{
+		if(ended) return false;
+		if(feeds++ % stepsPerFrame == 0){
+			float next[] = ready.poll();
+			if(next == endOfStream){
+				if(readError != null) throw readError;
+				ended = true;
+				return false;
+			}
+			if(next == null){
+				underruns++;
+			}else{
+				if(current != null) free.add(current);
+				current = next;
+				framesFed++;
+			}
+		}
+		if(current != null) cortex.blendChances(firstNode, current, 0, nodes, decay);
+		return true;
+	}
+
+	private void decodeLoop(){
+		float frame[] = channelOfNode==null ? null : new float[source.frameSize()];
+		try{
+			while(true){
+				float buffer[] = free.poll();
+				if(buffer == null){
+					decoderWaits++;
+					buffer = free.take();
+				}
+				if(channelOfNode == null){
+					if(!source.read(buffer)) break;
+				}else{
+					if(!source.read(frame)) break;
+					for(int k=0; k<nodes; k++) buffer[k] = frame[channelOfNode[k]];
+				}
+				ready.add(buffer);
+			}
+		}catch(IOException e){
+			readError = e;
+		}catch(InterruptedException e){
+			return; //close()
+		}
+		ready.add(endOfStream);
+	}
+
+	/** Stops the decoder thread and closes the FrameSource */
+	public void close() throws IOException{
+		decoder.interrupt();
+		try{
+			decoder.join(1000);
+			//If still blocked reading (such as from a pipe), closing the source ends the read
+			source.close();
+			decoder.join();
+		}catch(InterruptedException e){
+			throw new IOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** A stream of frames of input, such as video or audio, each frameSize() values in range 0 to 1.
+RawFrameSource reads them from files. A generator can implement this directly.
+FrameFeeder calls read on its own thread, ahead of the thread that steps the Cortex.
+*/
+public interface FrameSource extends Closeable{
+
+	public int frameSize();
+
+	/** Fills frame[0..frameSize()-1] with the next frame and returns true,
+	or returns false if there are no more frames
+	*/
+	public boolean read(float frame[]) throws IOException;
+
+}
@@ -0,0 +1,263 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Builds a network straight into NodeArrays, without Node objects, in parallel,
+and the same network for the same seed no matter how many threads build it.
+The first pixels Nodes have no childs, virtualWidth per row, for input and display like Cortex.newRandom.
+Topologies of the thinking Nodes after them, each with 3 different childs:
+<br>
+random: the same as Cortex.newRandom (but not the same random numbers). For each pixel but the last 3,
+thinkingNodesPerPixel Nodes, each child a random pixel or (half the time, after the first 10) earlier thinking Node.
+<br>
+gridLocal: thinkingNodesPerPixel Nodes per pixel, whose childs are pixels within radius in x and y,
+or (half the time) earlier thinking Nodes of those pixels, so what a Node sees is a small area.
+<br>
+hierarchical: layers of grids, each half the width and height of the one before, down to 1 by 1,
+with thinkingNodesPerPixel Nodes per cell. Childs are from the layer before, in the 4 by 4 cells
+around the 2 by 2 cells under it, so each layer sees a wider area.
+<br><br>
+Pass 1 fills the Nodes in chunks of nodesPerChunk, each with its own SplittableRandom split from the seed
+in chunk order. Pass 2 counts the parents of each Node, sizes the axon exactly from a prefix sum of the counts,
+and fills it in order of parent index, the same order Node.addToAxon would.
+*/
+public class GraphBuilder{
+
+	public static final String random = "random", gridLocal = "gridLocal", hierarchical = "hierarchical";
+
+	static final int nodesPerChunk = 1<<14;
+
+	public final String topology;
+
+	public final int pixels, virtualWidth, virtualHeight, thinkingNodesPerPixel;
+
+	public final long seed;
+
+	/** For gridLocal, how far in x and y a child can be from the pixel of its parent. At least 1, checked by build. */
+	public int radius = 3;
+
+	/** For hierarchical: index of the first Node of each layer, its width and height in cells,
+	and Nodes per cell (1 for the pixels). The last element of layerStart is the number of Nodes.
+	*/
+	private int layerStart[], layerWidth[], layerHeight[], layerCopies[];
+
+	public GraphBuilder(String topology, int pixels, int virtualWidth, int thinkingNodesPerPixel, long seed){
+		if(!topology.equals(random) && !topology.equals(gridLocal) && !topology.equals(hierarchical)){
+			throw new IllegalArgumentException("Unknown topology: "+topology);
+		}
+		if(pixels < 3 || virtualWidth < 1 || pixels % virtualWidth != 0) throw new IllegalArgumentException(
+			"pixels="+pixels+" virtualWidth="+virtualWidth);
+		if(thinkingNodesPerPixel < 1) throw new IllegalArgumentException("thinkingNodesPerPixel="+thinkingNodesPerPixel);
+		this.topology = topology;
+		this.pixels = pixels;
+		this.virtualWidth = virtualWidth;
+		this.virtualHeight = pixels/virtualWidth;
+		this.thinkingNodesPerPixel = thinkingNodesPerPixel;
+		this.seed = seed;
+	}
+
+	/** Number of Nodes build() makes */
+	public int size(){
+		long size;
+		if(topology.equals(random)) size = pixels+(long)(pixels-3)*thinkingNodesPerPixel;
+		else if(topology.equals(gridLocal)) size = pixels+(long)pixels*thinkingNodesPerPixel;
+		else size = layers()[layerStart.length-1];
+		if(size > Integer.MAX_VALUE/8) throw new IllegalArgumentException(
+			"TODO NodeArrays of more than "+Integer.MAX_VALUE/8+" Nodes. "+size);
+		return (int)size;
+	}
+
+	private int[] layers(){
+		if(layerStart == null){
+			int n = 1, w = virtualWidth, h = virtualHeight;
+			while(w > 1 || h > 1){
+				w = (w+1)/2;
+				h = (h+1)/2;
+				n++;
+			}
+			int start[] = new int[n+1], width[] = new int[n], height[] = new int[n], copies[] = new int[n];
+			w = virtualWidth;
+			h = virtualHeight;
+			long total = 0;
+			for(int L=0; L<n; L++){
+				if(L > 0){
+					w = (w+1)/2;
+					h = (h+1)/2;
+				}
+				width[L] = w;
+				height[L] = h;
+				copies[L] = L==0 ? 1 : thinkingNodesPerPixel;
+				start[L] = (int)Math.min(total, Integer.MAX_VALUE);
+				total += (long)w*h*copies[L];
+				if(L > 0 && childCandidates(width[L-1], height[L-1], copies[L-1]) < 3){
+					throw new IllegalArgumentException("TODO hierarchical layer "+L+" has fewer than 3 childs to choose from."
+						+" pixels="+pixels+" virtualWidth="+virtualWidth+" thinkingNodesPerPixel="+thinkingNodesPerPixel);
+				}
+			}
+			start[n] = (int)Math.min(total, Integer.MAX_VALUE);
+			layerStart = start;
+			layerWidth = width;
+			layerHeight = height;
+			layerCopies = copies;
+		}
+		return layerStart;
+	}
+
+	/** Throws unless every gridLocal thinking Node has at least 3 different childs to choose from,
+	else pickChild would try forever. The fewest are for the first one, at pixel 0 with no Nodes before it,
+	which can only choose the pixels in its corner of the window.
+	*/
+	private void checkGridLocal(){
+		if(radius < 1) throw new IllegalArgumentException("gridLocal radius="+radius+" must be at least 1");
+		if(Math.min(virtualWidth, radius+1)*Math.min(virtualHeight, radius+1) < 3){
+			throw new IllegalArgumentException("gridLocal corner pixel has fewer than 3 childs to choose from."
+				+" pixels="+pixels+" virtualWidth="+virtualWidth+" radius="+radius);
+		}
+	}
+
+	/** The fewest Nodes a Node in the next layer can choose childs from, which is at its corner */
+	private static int childCandidates(int width, int height, int copies){
+		return Math.min(width, 3)*Math.min(height, 3)*copies;
+	}
+
+	/** Builds on the current thread if pool is null */
+	public NodeArrays build(ForkJoinPool poolOrNull){
+		if(topology.equals(gridLocal)) checkGridLocal();
+		int size = size();
+		NodeArrays a = new NodeArrays(size, 3*(size-pixels));
+		if(topology.equals(hierarchical)) layers();
+		int chunks = (size+nodesPerChunk-1)/nodesPerChunk;
+		SplittableRandom root = new SplittableRandom(seed);
+		SplittableRandom rands[] = new SplittableRandom[chunks];
+		for(int c=0; c<chunks; c++) rands[c] = root.split();
+		if(poolOrNull == null){
+			for(int c=0; c<chunks; c++) buildChunk(a, c, rands[c]);
+		}else{
+			poolOrNull.invoke(new BuildChunks(a, rands, 0, chunks));
+		}
+		buildAxons(a);
+		return a;
+	}
+
+	public Cortex buildCortex(ForkJoinPool poolOrNull){
+		return new Cortex(build(poolOrNull));
+	}
+
+	private class BuildChunks extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final NodeArrays a;
+		final SplittableRandom rands[];
+		final int from, to;
+		BuildChunks(NodeArrays a, SplittableRandom rands[], int from, int to){
+			this.a = a;
+			this.rands = rands;
+			this.from = from;
+			this.to = to;
+		}
+		protected void compute(){
+			if(to-from == 1){
+				buildChunk(a, from, rands[from]);
+			}else{
+				int mid = (from+to)>>>1;
+				invokeAll(new BuildChunks(a, rands, from, mid), new BuildChunks(a, rands, mid, to));
+			}
+		}
+	}
+
+	/** Everything about each Node in the chunk except its axon, with the same defaults as the Node constructor */
+	private void buildChunk(NodeArrays a, int chunk, SplittableRandom rand){
+		int from = chunk*nodesPerChunk, to = Math.min(from+nodesPerChunk, a.size);
+		Arrays.fill(a.chance, from, to, .5);
+		Arrays.fill(a.attention, from, to, .5);
+		Arrays.fill(a.chanceStdDev, from, to, .01);
+		Arrays.fill(a.attention_decayToward_aveAccuracyOfChance, from, to, .1);
+		Arrays.fill(a.bayesianWeights_decay, from, to, .1);
+		int c[] = a.childs;
+		double w[] = a.weights;
+		for(int i=from; i<to; i++){
+			int k = 3*i, o = 8*i;
+			if(i < pixels){
+				c[k] = c[k+1] = c[k+2] = -1;
+				Arrays.fill(w, o, o+8, 1./8);
+				continue;
+			}
+			int x, y, z;
+			do{
+				x = pickChild(i, rand);
+				do{
+					y = pickChild(i, rand);
+				}while(y == x);
+				z = pickChild(i, rand);
+			}while(z == x || z == y);
+			c[k] = x;
+			c[k+1] = y;
+			c[k+2] = z;
+			double sum;
+			do{
+				sum = 0;
+				for(int j=o; j<o+8; j++) sum += w[j] = rand.nextDouble();
+			}while(sum == 0);
+			for(int j=o; j<o+8; j++) w[j] /= sum;
+		}
+	}
+
+	/** 1 random child of thinking Node i, which may equal its other childs */
+	private int pickChild(int i, SplittableRandom rand){
+		int t = i-pixels, k = thinkingNodesPerPixel;
+		if(topology.equals(random)){
+			if(t < 10 || rand.nextBoolean()) return rand.nextInt(pixels);
+			return pixels+rand.nextInt(t);
+		}
+		if(topology.equals(gridLocal)){
+			int p = t/k, j = t%k;
+			int px = p%virtualWidth, py = p/virtualWidth, qx, qy;
+			do{
+				qx = px+rand.nextInt(2*radius+1)-radius;
+			}while(qx < 0 || qx >= virtualWidth);
+			do{
+				qy = py+rand.nextInt(2*radius+1)-radius;
+			}while(qy < 0 || qy >= virtualHeight);
+			int q = qy*virtualWidth+qx;
+			if(rand.nextBoolean()){
+				int earlier = q<p ? k : q==p ? j : 0;
+				if(earlier > 0) return pixels+q*k+rand.nextInt(earlier);
+			}
+			return q;
+		}
+		int L = 1;
+		while(i >= layerStart[L+1]) L++;
+		int cell = (i-layerStart[L])/layerCopies[L];
+		int cx = cell%layerWidth[L], cy = cell/layerWidth[L];
+		int w = layerWidth[L-1], h = layerHeight[L-1];
+		int minX = Math.max(0, 2*cx-1), maxX = Math.min(w-1, 2*cx+2);
+		int minY = Math.max(0, 2*cy-1), maxY = Math.min(h-1, 2*cy+2);
+		int qx = minX+rand.nextInt(maxX-minX+1), qy = minY+rand.nextInt(maxY-minY+1);
+		return layerStart[L-1]+(qy*w+qx)*layerCopies[L-1]+rand.nextInt(layerCopies[L-1]);
+	}
+
+	/** CSR axon from the childs: count, prefix sum, then fill in order of parent */
+	private static void buildAxons(NodeArrays a){
+		int c[] = a.childs;
+		for(int k=0; k<c.length; k++){
+			if(c[k] != -1) a.axonSize[c[k]]++;
+		}
+		int total = 0;
+		for(int i=0; i<a.size; i++){
+			a.axonStart[i] = total;
+			total += a.axonSize[i];
+		}
+		int next[] = a.axonStart.clone();
+		for(int k=0; k<c.length; k++){
+			int child = c[k];
+			if(child == -1) continue;
+			int pos = next[child]++;
+			a.axon[pos] = k/3;
+			a.axonSlot[pos] = (byte)(k%3);
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.Arrays;
+
+/** Orders of Nodes for Cortex.reorder(int[]) so Nodes that read eachother are near eachother
+in NodeArrays, and running them reads fewer cache lines. Cortex.newRandom connects each thinking Node
+to 3 random Nodes, so in the order it makes them, the childs and axon of a Node are anywhere in memory.
+This matters most when NodeArrays is bigger than the last level cache.
+*/
+public class GraphOrder{
+
+	/** Cuthill-McKee order: breadth first from the first fixedPrefix Nodes, which keep their indexs
+	(such as the pixels, so displays and inputs still find them at the same index),
+	through both childs and axon, visiting the neighbors of each Node with the fewest neighbors first.
+	Nodes not connected to those are numbered the same way, starting from the lowest index not yet numbered.
+	Returns newIndexOf, where Node i moves to newIndexOf[i].
+	<br><br>
+	This is not reversed (RCM) since that would move the fixedPrefix Nodes to the end.
+	*/
+	public static int[] cuthillMcKee(NodeArrays a, int fixedPrefix){
+		if(fixedPrefix < 0 || fixedPrefix > a.size) throw new IllegalArgumentException(
+			"fixedPrefix="+fixedPrefix+" size="+a.size);
+		int newIndexOf[] = new int[a.size];
+		Arrays.fill(newIndexOf, -1);
+		int order[] = new int[a.size];
+		for(int i=0; i<fixedPrefix; i++){
+			newIndexOf[i] = i;
+			order[i] = i;
+		}
+		int maxNeighbors = 3;
+		for(int i=0; i<a.size; i++) maxNeighbors = Math.max(maxNeighbors, 3+a.axonSize[i]);
+		int neighbors[] = new int[maxNeighbors];
+		int numbered = fixedPrefix, head = 0, lowestNotNumbered = 0;
+		while(numbered < a.size){
+			if(head == numbered){
+				while(newIndexOf[lowestNotNumbered] != -1) lowestNotNumbered++;
+				newIndexOf[lowestNotNumbered] = numbered;
+				order[numbered++] = lowestNotNumbered;
+			}
+			int u = order[head++];
+			int count = 0;
+			for(int c=3*u; c<3*u+3; c++){
+				int child = a.childs[c];
+				if(child != -1 && newIndexOf[child] == -1) count = addNeighbor(a, neighbors, count, child);
+			}
+			int end = a.axonStart[u]+a.axonSize[u];
+			for(int k=a.axonStart[u]; k<end; k++){
+				int parent = a.axon[k];
+				if(newIndexOf[parent] == -1) count = addNeighbor(a, neighbors, count, parent);
+			}
+			for(int k=0; k<count; k++){
+				newIndexOf[neighbors[k]] = numbered;
+				order[numbered++] = neighbors[k];
+			}
+		}
+		return newIndexOf;
+	}
+
+	/** Inserts n into neighbors[0..count-1], sorted by number of neighbors then index.
+	Skips n if already there, since a Node can be both a child and parent of another.
+	*/
+	private static int addNeighbor(NodeArrays a, int neighbors[], int count, int n){
+		int degree = degree(a, n);
+		int k = count;
+		while(k > 0){
+			int m = neighbors[k-1];
+			if(m == n) return count;
+			int dm = degree(a, m);
+			if(dm < degree || (dm == degree && m < n)) break;
+			k--;
+		}
+		for(int j=0; j<k; j++) if(neighbors[j] == n) return count;
+		System.arraycopy(neighbors, k, neighbors, k+1, count-k);
+		neighbors[k] = n;
+		return count+1;
+	}
+
+	private static int degree(NodeArrays a, int n){
+		return (a.childs[3*n]==-1 ? 0 : 3)+a.axonSize[n];
+	}
+
+}
@@ -0,0 +1,332 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/** Runs the same network and inputs as InteractiveVisualCortexWindow without Swing,
+for servers with no display. The Brainwave is the same, and instead of the mouse
+a Paintbrush moves along a scripted curve. Steps as fast as possible or at a fixed rate,
+and prints steps/sec and node-updates/sec.
+<br><br>
+Usage: java bayesiancortex.HeadlessCortex [name=value]...
+<br>
+pixels=2500 virtualWidth=50 thinkingNodesPerPixel=5 seed=(random)
+topology=newRandom (Cortex.newRandom like the window, or a GraphBuilder topology: random, gridLocal, hierarchical,
+built in parallel with the threads)
+steps=0 (0 means forever) stepsPerSecond=0 (0 means as fast as possible)
+threads=0 (0 runs Nodes in order like the window, 1 or more runs synchronous, 1 on this thread)
+floatWeights=false (true stores weights as float32 when synchronous, see NodeArrays.setFloatWeights.
+java --add-modules jdk.incubator.vector uses VectorWeightKernels for them)
+reportSeconds=1
+<br>
+reorder=false (true renumbers thinking Nodes with GraphOrder.cuthillMcKee for cache locality)
+<br>
+activeEpsilon=(none) runs only Nodes whose inputs or state moved more than this (Cortex.setActive), when threads=0.
+fullSweepEvery=100 (runs all Nodes every this many steps when activeEpsilon is set, 0 for never)
+<br>
+checkpoint=(none) a base file to save to with CortexCheckpointer, and its delta log is that plus .delta.
+checkpointSeconds=60 checkpointThreshold=.001 compactEvery=10 (checkpoints between compacting the log)
+<br>
+input=(none) a RawFrameSource file to feed into the pixel Nodes with a FrameFeeder, instead of the Brainwave and Paintbrush.
+inputFormat=grey8 (or rgb24, rgb24grey, pcm16le) inputWidth=virtualWidth inputHeight=(pixels/virtualWidth)
+(for audio, inputWidth is samples per frame and inputHeight=1) inputChannel=0 (of rgb24)
+inputDecay=.03 stepsPerFrame=1 inputLoop=true inputBuffers=4
+<br>
+record=(none) a file to record the pixel Nodes to with CortexRecorder (gzipped if it ends with .gz).
+recordFormat=bcr (or grey8, rgb24) recordColumns=chance,chanceStdDev,accuracy,attention
+recordEvery=10 recordBits=8 recordDelta=true recordBuffers=4
+<br>
+metrics=false (true adds CortexMetrics, in JMX and printed as another line each report) metricsSampleEvery=16
+<br>
+plasticity=false (true removes and adds thinking Nodes while running, see Plasticity, and each checkpoint is full)
+maxNodes=(Nodes built) axonSlack=8 prunePerStep=1 scanPerStep=64 minAge=200 pruneBelow=1
+<br>
+image=(none) a NodeArraysFile to run in place as a MappedNodeArrays, off the Java heap.
+If it doesn't exist, the network is built, saved there, and the heap copy dropped.
+If it exists, it continues from the state in it, which must have at least pixels Nodes.
+A bayesiancortex.ui.ImageViewer can watch it while it runs. The OS writes it back as it runs,
+and it is forced on exit. threads is only for building, and checkpoint, reorder, activeEpsilon,
+plasticity, metrics and floatWeights need a Cortex so can't be used with it.
+*/
+public class HeadlessCortex{
+
+	/** Null if image isn't */
+	public final Cortex cortex;
+
+	/** If not null, what step() runs instead of cortex */
+	public final MappedNodeArrays image;
+
+	public final int pixels, virtualWidth;
+
+	/** Screen pixels per virtual pixel that the scripted Paintbrush moves in,
+	the same as InteractiveVisualCortexWindow so the brush paints the same amount.
+	*/
+	public final int magnify = 6;
+
+	public final Brainwave brainwave = new Brainwave();
+
+	public final Paintbrush paintbrush = new Paintbrush();
+
+	/** If not null, step() feeds this into the pixel Nodes instead of the Brainwave and Paintbrush */
+	public FrameFeeder input;
+
+	long runs;
+
+	public HeadlessCortex(int pixels, int virtualWidth, int thinkingNodesPerPixel, long seed, int threads){
+		this(pixels, virtualWidth, thinkingNodesPerPixel, seed, threads, "newRandom");
+	}
+
+	/** topology is newRandom for Cortex.newRandom, else a GraphBuilder topology */
+	public HeadlessCortex(int pixels, int virtualWidth, int thinkingNodesPerPixel, long seed, int threads,
+			String topology){
+		if(virtualWidth < 1) throw new IllegalArgumentException("virtualWidth="+virtualWidth);
+		this.pixels = pixels;
+		this.virtualWidth = virtualWidth;
+		image = null;
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		if(topology.equals("newRandom")){
+			cortex = Cortex.newRandom(pixels, thinkingNodesPerPixel, new Random(seed));
+			cortex.useNodeArrays();
+		}else{
+			cortex = new GraphBuilder(topology, pixels, virtualWidth, thinkingNodesPerPixel, seed).buildCortex(pool);
+		}
+		if(threads > 0){
+			cortex.setSynchronous(true, pool);
+		}
+	}
+
+	/** Runs a MappedNodeArrays image with the same inputs, whose first pixels Nodes are the pixels */
+	public HeadlessCortex(MappedNodeArrays image, int pixels, int virtualWidth){
+		if(virtualWidth < 1) throw new IllegalArgumentException("virtualWidth="+virtualWidth);
+		if(pixels > image.size) throw new IllegalArgumentException(
+			"pixels="+pixels+" but "+image.file+" has "+image.size+" Nodes");
+		this.pixels = pixels;
+		this.virtualWidth = virtualWidth;
+		this.image = image;
+		cortex = null;
+	}
+
+	/** What step() feeds and reads: image, else cortex */
+	public NodeColumns nodes(){
+		return image != null ? image : cortex;
+	}
+
+	/** Same as InteractiveVisualCortexWindow.nextState() with a scripted Paintbrush instead of the mouse */
+	public void step() throws java.io.IOException{
+		synchronized(Node.class){
+			runs++;
+			NodeColumns nodes = nodes();
+			if(input != null){
+				input.feed(nodes);
+				runNodes();
+				return;
+			}
+			brainwave.step(nodes, pixels);
+			int screenWidth = virtualWidth*magnify, screenHeight = pixels/virtualWidth*magnify;
+			int x = (int)(screenWidth*(.5 + .4*Math.sin(runs*.031)));
+			int y = (int)(screenHeight*(.5 + .4*Math.sin(runs*.047)));
+			paintbrush.paint(nodes, pixels, virtualWidth, magnify, magnify, x, y);
+			runNodes();
+		}
+	}
+
+	private void runNodes(){
+		if(image != null) image.run();
+		else cortex.run();
+	}
+
+	public static void main(String args[]) throws java.io.IOException{
+		int pixels = 2500, virtualWidth = 50, thinkingNodesPerPixel = 5, threads = 0;
+		long seed = System.nanoTime(), steps = 0;
+		String topology = "newRandom";
+		double stepsPerSecond = 0, reportSeconds = 1;
+		boolean reorder = false, floatWeights = false;
+		double activeEpsilon = -1;
+		int fullSweepEvery = 100;
+		String checkpoint = null;
+		double checkpointSeconds = 60, checkpointThreshold = .001;
+		int compactEvery = 10;
+		String input = null, inputFormat = "grey8";
+		int inputWidth = 0, inputHeight = 0, inputChannel = 0, stepsPerFrame = 1, inputBuffers = 4;
+		double inputDecay = .03;
+		boolean inputLoop = true;
+		String record = null, recordFormat = "bcr", recordColumns = "chance,chanceStdDev,accuracy,attention";
+		int recordEvery = 10, recordBits = 8, recordBuffers = 4;
+		boolean recordDelta = true;
+		boolean metrics = false;
+		int metricsSampleEvery = 16;
+		boolean plasticity = false;
+		int maxNodes = 0, axonSlack = 8, prunePerStep = 1, scanPerStep = 64, minAge = 200;
+		double pruneBelow = 1;
+		String image = null;
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0) throw new IllegalArgumentException("Not name=value: "+arg);
+			String name = arg.substring(0, eq), value = arg.substring(eq+1);
+			if(name.equals("pixels")) pixels = Integer.parseInt(value);
+			else if(name.equals("virtualWidth")) virtualWidth = Integer.parseInt(value);
+			else if(name.equals("thinkingNodesPerPixel")) thinkingNodesPerPixel = Integer.parseInt(value);
+			else if(name.equals("seed")) seed = Long.parseLong(value);
+			else if(name.equals("topology")) topology = value;
+			else if(name.equals("steps")) steps = Long.parseLong(value);
+			else if(name.equals("stepsPerSecond")) stepsPerSecond = Double.parseDouble(value);
+			else if(name.equals("threads")) threads = Integer.parseInt(value);
+			else if(name.equals("reportSeconds")) reportSeconds = Double.parseDouble(value);
+			else if(name.equals("reorder")) reorder = Boolean.parseBoolean(value);
+			else if(name.equals("floatWeights")) floatWeights = Boolean.parseBoolean(value);
+			else if(name.equals("activeEpsilon")) activeEpsilon = Double.parseDouble(value);
+			else if(name.equals("fullSweepEvery")) fullSweepEvery = Integer.parseInt(value);
+			else if(name.equals("checkpoint")) checkpoint = value;
+			else if(name.equals("checkpointSeconds")) checkpointSeconds = Double.parseDouble(value);
+			else if(name.equals("checkpointThreshold")) checkpointThreshold = Double.parseDouble(value);
+			else if(name.equals("compactEvery")) compactEvery = Integer.parseInt(value);
+			else if(name.equals("input")) input = value;
+			else if(name.equals("inputFormat")) inputFormat = value;
+			else if(name.equals("inputWidth")) inputWidth = Integer.parseInt(value);
+			else if(name.equals("inputHeight")) inputHeight = Integer.parseInt(value);
+			else if(name.equals("inputChannel")) inputChannel = Integer.parseInt(value);
+			else if(name.equals("inputDecay")) inputDecay = Double.parseDouble(value);
+			else if(name.equals("stepsPerFrame")) stepsPerFrame = Integer.parseInt(value);
+			else if(name.equals("inputLoop")) inputLoop = Boolean.parseBoolean(value);
+			else if(name.equals("inputBuffers")) inputBuffers = Integer.parseInt(value);
+			else if(name.equals("record")) record = value;
+			else if(name.equals("recordFormat")) recordFormat = value;
+			else if(name.equals("recordColumns")) recordColumns = value;
+			else if(name.equals("recordEvery")) recordEvery = Integer.parseInt(value);
+			else if(name.equals("recordBits")) recordBits = Integer.parseInt(value);
+			else if(name.equals("recordDelta")) recordDelta = Boolean.parseBoolean(value);
+			else if(name.equals("recordBuffers")) recordBuffers = Integer.parseInt(value);
+			else if(name.equals("metrics")) metrics = Boolean.parseBoolean(value);
+			else if(name.equals("metricsSampleEvery")) metricsSampleEvery = Integer.parseInt(value);
+			else if(name.equals("plasticity")) plasticity = Boolean.parseBoolean(value);
+			else if(name.equals("maxNodes")) maxNodes = Integer.parseInt(value);
+			else if(name.equals("axonSlack")) axonSlack = Integer.parseInt(value);
+			else if(name.equals("prunePerStep")) prunePerStep = Integer.parseInt(value);
+			else if(name.equals("scanPerStep")) scanPerStep = Integer.parseInt(value);
+			else if(name.equals("minAge")) minAge = Integer.parseInt(value);
+			else if(name.equals("pruneBelow")) pruneBelow = Double.parseDouble(value);
+			else if(name.equals("image")) image = value;
+			else throw new IllegalArgumentException("Unknown name: "+arg);
+		}
+		long buildStart = System.nanoTime();
+		HeadlessCortex h;
+		if(image != null){
+			if(checkpoint != null || reorder || activeEpsilon >= 0 || plasticity || metrics || floatWeights){
+				throw new IllegalArgumentException(
+					"TODO checkpoint, reorder, activeEpsilon, plasticity, metrics and floatWeights with image="+image);
+			}
+			java.io.File file = new java.io.File(image);
+			if(!file.exists()){
+				new HeadlessCortex(pixels, virtualWidth, thinkingNodesPerPixel, seed, threads, topology).cortex.save(file);
+			}
+			h = new HeadlessCortex(MappedNodeArrays.open(file, false), pixels, virtualWidth);
+			System.out.println("Opened image "+file+" of "+h.image.size+" Nodes in "
+				+(System.nanoTime()-buildStart)/1e9+" seconds");
+		}else{
+			h = new HeadlessCortex(pixels, virtualWidth, thinkingNodesPerPixel, seed, threads, topology);
+			System.out.println("Built "+h.cortex.size()+" Nodes in "+(System.nanoTime()-buildStart)/1e9
+				+" seconds. seed="+seed+" topology="+topology+" threads="+threads+" reorder="+reorder);
+		}
+		if(reorder) h.cortex.reorder(GraphOrder.cuthillMcKee(h.cortex.getNodeArrays(), pixels));
+		if(floatWeights){
+			h.cortex.getNodeArrays().setFloatWeights(true);
+			System.out.println("floatWeights with "+(WeightKernels.float32==WeightKernels.scalarFloat32
+				? "scalar" : "vector")+" kernels");
+		}
+		if(activeEpsilon >= 0) h.cortex.setActive(true, activeEpsilon, fullSweepEvery);
+		Plasticity p = null;
+		if(plasticity){
+			p = new Plasticity(h.cortex, pixels, Math.max(maxNodes, h.cortex.size()), axonSlack, seed);
+			p.prunePerStep = prunePerStep;
+			p.scanPerStep = scanPerStep;
+			p.minAge = minAge;
+			p.pruneBelow = pruneBelow;
+			h.cortex.setPlasticity(p);
+		}
+		if(input != null){
+			if(inputWidth == 0) inputWidth = virtualWidth;
+			if(inputHeight == 0) inputHeight = pixels/virtualWidth;
+			int channelsPerPixel = inputFormat.equals("rgb24") ? 3 : 1;
+			FrameSource source = new RawFrameSource(new java.io.File(input), inputFormat,
+				inputWidth*inputHeight*channelsPerPixel, inputLoop);
+			h.input = new FrameFeeder(source, 0, FrameFeeder.scaleToGrid(inputWidth, inputHeight, channelsPerPixel,
+				inputChannel, virtualWidth, pixels/virtualWidth), inputBuffers);
+			h.input.decay = inputDecay;
+			h.input.stepsPerFrame = stepsPerFrame;
+		}
+		if(metrics){
+			CortexMetrics m = new CortexMetrics(h.cortex);
+			m.setSampleEvery(metricsSampleEvery);
+			h.cortex.setMetrics(m);
+			m.register("HeadlessCortex");
+		}
+		CortexRecorder recorder = null;
+		if(record != null){
+			recorder = new CortexRecorder(new java.io.File(record), recordFormat, recordColumns, 0, pixels,
+				recordBits, recordDelta, recordBuffers);
+			recorder.every = recordEvery;
+		}
+		long nanosPerStep = stepsPerSecond > 0 ? (long)(1e9/stepsPerSecond) : 0;
+		long nanosPerReport = (long)(reportSeconds*1e9);
+		CortexCheckpointer checkpointer = checkpoint==null ? null : new CortexCheckpointer(h.cortex,
+			new java.io.File(checkpoint), new java.io.File(checkpoint+".delta"), checkpointThreshold);
+		long nanosPerCheckpoint = (long)(checkpointSeconds*1e9), lastCheckpoint = System.nanoTime();
+		long start = System.nanoTime(), lastReport = start, stepsAtLastReport = 0, nodeRuns = 0;
+		long nextStep = start;
+		for(long step=0; steps==0 || step<steps; step++){
+			if(nanosPerStep > 0){
+				long sleep = nextStep-System.nanoTime();
+				if(sleep > 0){
+					try{
+						Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+					}catch(InterruptedException e){}
+				}
+				//If behind, don't try to catch up by running faster later
+				nextStep = Math.max(nextStep+nanosPerStep, System.nanoTime());
+			}
+			h.step();
+			nodeRuns += h.image != null ? h.image.size : h.cortex.lastRunCount();
+			if(recorder != null) recorder.record(h.nodes(), h.runs);
+			long now = System.nanoTime();
+			if(checkpointer != null && now-lastCheckpoint >= nanosPerCheckpoint){
+				if(p != null){
+					checkpointer.fullCheckpoint();
+				}else if(checkpointer.checkpoint(h.runs) && checkpointer.checkpoints%compactEvery == 0){
+					checkpointer.compact();
+				}
+				lastCheckpoint = now;
+			}
+			if(now-lastReport >= nanosPerReport || step+1 == steps){
+				double seconds = (now-lastReport)/1e9;
+				double stepsPerSec = (h.runs-stepsAtLastReport)/seconds;
+				System.out.println("steps="+h.runs+" steps/sec="+(float)stepsPerSec
+					+" node-updates/sec="+(float)(nodeRuns/seconds)
+					+" nodes-run/step="+(float)((double)nodeRuns/(h.runs-stepsAtLastReport))
+					+(h.input==null ? "" : " frames="+h.input.framesFed+" underruns="+h.input.underruns
+						+" decoderWaits="+h.input.decoderWaits));
+				if(h.cortex != null && h.cortex.getMetrics() != null) System.out.println(h.cortex.getMetrics().getLogLine());
+				if(p != null) System.out.println("alive="+p.alive+" pruned="+p.pruned+" grown="+p.grown
+					+" growFailed="+p.growFailed);
+				lastReport = now;
+				stepsAtLastReport = h.runs;
+				nodeRuns = 0;
+			}
+		}
+		if(checkpointer != null){
+			if(p != null) checkpointer.fullCheckpoint();
+			else checkpointer.checkpoint(h.runs);
+			checkpointer.close();
+			System.out.println("Checkpoints="+checkpointer.checkpoints+" skipped="+checkpointer.skippedCheckpoints
+				+" Node records="+checkpointer.recordsWritten);
+		}
+		if(h.input != null) h.input.close();
+		if(recorder != null){
+			recorder.close();
+			System.out.println("Recorded "+recorder.recorded+" frames, dropped "+recorder.dropped);
+		}
+		if(h.image != null) h.image.close();
+		System.out.println("Total "+h.runs+" steps in "+(System.nanoTime()-start)/1e9+" seconds");
+	}
+
+}
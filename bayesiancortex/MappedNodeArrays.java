@@ -0,0 +1,301 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** The state of a NodeArrays kept in a NodeArraysFile, memory-mapped, instead of on the Java heap,
+and run() there in place, so a network of tens of millions of Nodes costs the garbage collector nothing
+and the file is always the latest state (the OS writes it back, force() waits for that).
+Save a Cortex with Cortex.save(File), then open(file, false) to keep running it from the file.
+<br><br>
+run() is the same as NodeArrays.run(), Node by Node in index order, and gives the same numbers,
+because it is the same code: NodeKernel over the buffers, then NodeArrays.learn on a copy of each Node.
+Only the predictions cache (as direct ByteBuffers) and where each Node's halfSpeed levels start
+are kept outside the file, and they are off the heap too.
+<br><br>
+Other processes can open(file, true) the same file at the same time, such as bayesiancortex.ui.ImageViewer,
+and see the Nodes change as they run, without copying or a socket. They read without locking
+so can see a step half done, which is fine for display but not for saving.
+Nothing else may write into the file while it is open. Cortex.save to the same name replaces it with a new file,
+which those already open don't see.
+<br><br>
+Each section of the file must be under 2 GB, so up to about 33 million Nodes by the weights.
+TODO MemorySegment and a shared Arena (final in Java 22) instead of MappedByteBuffer,
+for bigger sections and to unmap in close() instead of when garbage collected.
+<br><br>
+Not thread-safe. Synchronize on Node.class like the rest of BayesianCortex.
+There is no runSynchronous, setActive, reorder, or Plasticity here. Use a Cortex for those.
+*/
+public class MappedNodeArrays implements NodeColumns{
+
+	public final File file;
+
+	public final int size;
+
+	public final boolean readOnly;
+
+	/** Little-endian views of the sections of the file, the same as the arrays of NodeArrays */
+	private final DoubleBuffer weights, chance, attention, chanceStdDev, accuracyMeasuredLastRun,
+		attention_decayToward_aveAccuracyOfChance, bayesianWeights_decay, memory;
+
+	private final IntBuffer childs, axonStart, axonSize, axon, memoryLength, memoryClock;
+
+	private final ByteBuffer axonSlot;
+
+	/** Every mapped section, for force() */
+	private final MappedByteBuffer sections[] = new MappedByteBuffer[NodeArraysFile.sections];
+
+	/** Same as in NodeArrays, off the heap. Null if readOnly. predictionsStale is 1 byte per Node. */
+	private final DoubleBuffer predictions;
+	private final ByteBuffer predictionsStale;
+
+	/** Index in memory of the first halfSpeed level of each Node. Null if readOnly. */
+	private final IntBuffer memoryStart;
+
+	/** Runs observe, the part of Node.run() that reads other Nodes, here, the same code as NodeArrays */
+	private final Kernel kernel = new Kernel();
+
+	/** The Node running, copied from the buffers, to run the rest of Node.run() the same as NodeArrays.
+	Its observe is what that Node observed of its 3 childs.
+	*/
+	private final NodeArrays one = new NodeArrays(1, 0);
+
+	/** readOnly maps the file read-only, for viewers, and then run() and blendChances throw */
+	public static MappedNodeArrays open(File file, boolean readOnly) throws IOException{
+		FileChannel channel = readOnly ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+			: FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			return new MappedNodeArrays(file, channel, readOnly);
+		}finally{
+			channel.close();
+		}
+	}
+
+	private MappedNodeArrays(File file, FileChannel channel, boolean readOnly) throws IOException{
+		this.file = file;
+		this.readOnly = readOnly;
+		int header[] = NodeArraysFile.readHeader(channel, file);
+		size = header[0];
+		long offsets[] = NodeArraysFile.sectionOffsets(size, header[1], header[2]);
+		for(int s=0; s<NodeArraysFile.sections; s++){
+			sections[s] = NodeArraysFile.section(channel, offsets, s, readOnly);
+		}
+		weights = sections[NodeArraysFile.weightsSection].asDoubleBuffer();
+		chance = sections[NodeArraysFile.chanceSection].asDoubleBuffer();
+		attention = sections[NodeArraysFile.attentionSection].asDoubleBuffer();
+		chanceStdDev = sections[NodeArraysFile.chanceStdDevSection].asDoubleBuffer();
+		accuracyMeasuredLastRun = sections[NodeArraysFile.accuracySection].asDoubleBuffer();
+		attention_decayToward_aveAccuracyOfChance = sections[NodeArraysFile.attentionDecaySection].asDoubleBuffer();
+		bayesianWeights_decay = sections[NodeArraysFile.weightsDecaySection].asDoubleBuffer();
+		childs = sections[NodeArraysFile.childsSection].asIntBuffer();
+		axonStart = sections[NodeArraysFile.axonStartSection].asIntBuffer();
+		axonSize = sections[NodeArraysFile.axonSizeSection].asIntBuffer();
+		axon = sections[NodeArraysFile.axonSection].asIntBuffer();
+		axonSlot = sections[NodeArraysFile.axonSlotSection];
+		memoryLength = sections[NodeArraysFile.memoryLengthSection].asIntBuffer();
+		memoryClock = sections[NodeArraysFile.memoryClockSection].asIntBuffer();
+		memory = sections[NodeArraysFile.memorySection].asDoubleBuffer();
+		if(readOnly){
+			predictions = null;
+			predictionsStale = null;
+			memoryStart = null;
+		}else{
+			predictions = ByteBuffer.allocateDirect(8*3*size).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			predictionsStale = ByteBuffer.allocateDirect(size);
+			for(int i=0; i<size; i++) predictionsStale.put(i, (byte)1);
+			memoryStart = ByteBuffer.allocateDirect(4*size).order(ByteOrder.nativeOrder()).asIntBuffer();
+			int m = 0;
+			for(int i=0; i<size; i++){
+				memoryStart.put(i, m);
+				m += memoryLength.get(i);
+			}
+		}
+	}
+
+	private void checkWritable(){
+		if(readOnly) throw new RuntimeException("Opened read-only: "+file);
+	}
+
+	/** Waits until the OS has written all changes to the file */
+	public void force(){
+		if(readOnly) return;
+		for(MappedByteBuffer b : sections) b.force();
+	}
+
+	/** force(). The file stays mapped until this is garbage collected, and must not be used after. */
+	public void close(){
+		force();
+	}
+
+	public double getChance(int i){ return chance.get(i); }
+	public void setChance(int i, double c){
+		if(c < 0 || c > 1) throw new IllegalArgumentException(
+			"set chance="+c+" not in range 0 to 1");
+		checkWritable();
+		changeChance(i, c);
+	}
+
+	/** Same as NodeArrays.changeChance, without active scheduling */
+	private void changeChance(int i, double c){
+		if(chance.get(i) != c){
+			chance.put(i, c);
+			int end = axonStart.get(i)+axonSize.get(i);
+			for(int a=axonStart.get(i); a<end; a++){
+				predictionsStale.put(axon.get(a), (byte)1);
+			}
+		}
+	}
+
+	public double getAttention(int i){ return attention.get(i); }
+
+	public double getChanceStdDev(int i){ return chanceStdDev.get(i); }
+
+	public double getAccuracyMeasuredLastRun(int i){ return accuracyMeasuredLastRun.get(i); }
+
+	public int getAxonSize(int i){ return axonSize.get(i); }
+
+	/** Throws unless start to start+length-1 are all Node indexs */
+	private void checkRange(int start, int length){
+		if(start < 0 || length < 0 || start+length > size) throw new IllegalArgumentException(
+			"Nodes "+start+" to "+(start+length)+" but MappedNodeArrays has "+size);
+	}
+
+	private void blend(int i, double target, double decay){
+		if(i < 0 || i >= size) throw new IllegalArgumentException(
+			"Node "+i+" but MappedNodeArrays has "+size);
+		double c = chance.get(i)*(1-decay) + decay*target;
+		if(c < 0 || c > 1) throw new IllegalArgumentException(
+			"set chance="+c+" not in range 0 to 1, Node "+i);
+		changeChance(i, c);
+	}
+
+	private void checkBlend(double decay){
+		if(decay < 0 || decay > 1) throw new IllegalArgumentException(
+			"decay="+decay+" not in range 0 to 1");
+		checkWritable();
+	}
+
+	public void blendChances(int start, double target[], int offset, int length, double decay){
+		checkRange(start, length);
+		checkBlend(decay);
+		for(int k=0; k<length; k++) blend(start+k, target[offset+k], decay);
+	}
+
+	public void blendChances(int start, float target[], int offset, int length, double decay){
+		checkRange(start, length);
+		checkBlend(decay);
+		for(int k=0; k<length; k++) blend(start+k, target[offset+k], decay);
+	}
+
+	public void blendChances(int indexs[], double target[], int offset, int length, double decay){
+		checkBlend(decay);
+		for(int k=offset; k<offset+length; k++) blend(indexs[k], target[k], decay);
+	}
+
+	public void blendChances(int indexs[], float target[], int offset, int length, double decay){
+		checkBlend(decay);
+		for(int k=offset; k<offset+length; k++) blend(indexs[k], target[k], decay);
+	}
+
+	public void getChances(int start, float out[], int offset, int length){
+		copy(chance, start, out, offset, length);
+	}
+
+	public void getChanceStdDevs(int start, float out[], int offset, int length){
+		copy(chanceStdDev, start, out, offset, length);
+	}
+
+	public void getAccuracies(int start, float out[], int offset, int length){
+		copy(accuracyMeasuredLastRun, start, out, offset, length);
+	}
+
+	public void getAttentions(int start, float out[], int offset, int length){
+		copy(attention, start, out, offset, length);
+	}
+
+	private void copy(DoubleBuffer from, int start, float out[], int offset, int length){
+		checkRange(start, length);
+		if(offset < 0 || offset+length > out.length) throw new IllegalArgumentException(
+			"out["+offset+" to "+(offset+length)+"] but out.length="+out.length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)from.get(start+k);
+	}
+
+	/** Runs every Node once, in index order, the same as NodeArrays.run() */
+	public void run(){
+		checkWritable();
+		for(int i=0; i<size; i++){
+			run(i);
+		}
+	}
+
+	/** Same as NodeArrays.run(int) and Node.run() for Node i */
+	public void run(int i){
+		kernel.observe(i, one.observe, 0);
+		//The rest only reads and writes Node i, so runs on a copy of it in one
+		int w = 8*i;
+		for(int k=0; k<8; k++) one.weights[k] = weights.get(w+k);
+		one.attention[0] = attention.get(i);
+		one.bayesianWeights_decay[0] = bayesianWeights_decay.get(i);
+		one.childs[0] = childs.get(3*i);
+		int length = memoryLength.get(i), m = length==0 ? 0 : memoryStart.get(i);
+		double levels[] = null;
+		if(length > 0){
+			levels = oneMemory(length);
+			for(int k=0; k<length; k++) levels[k] = memory.get(m+k);
+			one.memoryClock[0] = memoryClock.get(i);
+		}
+		one.memory[0] = levels;
+		one.learn(0);
+		for(int k=0; k<8; k++) weights.put(w+k, one.weights[k]);
+		attention.put(i, one.attention[0]);
+		if(length > 0){
+			for(int k=0; k<length; k++) memory.put(m+k, levels[k]);
+			memoryClock.put(i, one.memoryClock[0]);
+		}
+	}
+
+	/** Reused halfSpeed levels for one, by how many levels, since NodeArrays gets that from their length */
+	private double oneMemory[][] = new double[0][];
+
+	private double[] oneMemory(int length){
+		int levels = length/9;
+		if(levels >= oneMemory.length) oneMemory = Arrays.copyOf(oneMemory, levels+1);
+		if(oneMemory[levels] == null) oneMemory[levels] = new double[length];
+		return oneMemory[levels];
+	}
+
+	/** NodeKernel over the buffers, in place */
+	private class Kernel extends NodeKernel{
+		Kernel(){
+			super(true);
+		}
+		double chance(int i){ return chance.get(i); }
+		double chanceStdDev(int i){ return chanceStdDev.get(i); }
+		void setChanceStdDev(int i, double stdDev){ chanceStdDev.put(i, stdDev); }
+		double attentionIn(int i){ return attention.get(i); }
+		void setAttentionOut(int i, double a){ attention.put(i, a); }
+		double accuracyIn(int i){ return accuracyMeasuredLastRun.get(i); }
+		void setAccuracyOut(int i, double a){ accuracyMeasuredLastRun.put(i, a); }
+		double attentionDecay(int i){ return attention_decayToward_aveAccuracyOfChance.get(i); }
+		int child(int c){ return childs.get(c); }
+		int axonStart(int i){ return axonStart.get(i); }
+		int axonSize(int i){ return axonSize.get(i); }
+		int axon(int a){ return axon.get(a); }
+		int axonSlot(int a){ return axonSlot.get(a); }
+		double weight(int w){ return weights.get(w); }
+		double prediction(int p){ return predictions.get(p); }
+		void setPrediction(int p, double prediction){ predictions.put(p, prediction); }
+		boolean predictionsStale(int i){ return predictionsStale.get(i) != 0; }
+		void setPredictionsStale(int i, boolean stale){ predictionsStale.put(i, (byte)(stale ? 1 : 0)); }
+	}
+
+}
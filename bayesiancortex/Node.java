@@ -1,8 +1,14 @@
 /** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
 package bayesiancortex;
 
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /** Running a Node changes the state of that Node and nothing else.
 Nodes connected to it will only change when they are run,
@@ -26,18 +32,39 @@ this Node can see recursively and how they relate to eachother?
 I was planning to do it randomly in Cortex and see if each Node works out. 
 */
 public class Node implements Runnable{
+	
+	/** If not null, this Node is a thin view of index arraysIndex in NodeArrays,
+	and its state is there instead of in the vars of this Node.
+	See Cortex.useNodeArrays().
+	*/
+	private NodeArrays arrays;
+	private int arraysIndex;
 
 	private double chance = .5;
-	public double getChance(){ return chance; }
+	public double getChance(){
+		if(arrays != null) return arrays.getChance(arraysIndex);
+		return chance;
+	}
 	public void setChance(double c){
+		if(arrays != null){
+			arrays.setChance(arraysIndex, c);
+			return;
+		}
 		if(c < 0 || c > 1) throw new IllegalArgumentException(
 			"set chance="+c+" not in range 0 to 1");
 		chance = c;
 	}
 	
 	private double attention = .5;
-	public double getAttention(){ return attention; }
+	public double getAttention(){
+		if(arrays != null) return arrays.getAttention(arraysIndex);
+		return attention;
+	}
 	public void setAttention(double a){
+		if(arrays != null){
+			arrays.setAttention(arraysIndex, a);
+			return;
+		}
 		if(a <= 0) throw new IllegalArgumentException(
 			"set attention="+a+" must be positive");
 		attention = a;
@@ -48,7 +75,10 @@ public class Node implements Runnable{
 	*/
 	private double chanceStdDev = .01;
 	//private static final double chanceStdDev_min = .001;
-	public double getChanceStdDev(){ return chanceStdDev; }
+	public double getChanceStdDev(){
+		if(arrays != null) return arrays.getChanceStdDev(arraysIndex);
+		return chanceStdDev;
+	}
 	
 	/** 3 Child bayesian nodes which the 2^3=8 weights
 	are about combinations of being true or false.
@@ -61,33 +91,31 @@ public class Node implements Runnable{
 	*/
 	private double zyx, zyX, zYx, zYX, Zyx, ZyX, ZYx, ZYX;
 	
-	/** This linked list is all log_base_2 levels
-	between short-term and long-term memory.
+	/** All log_base_2 levels between short-term and long-term memory,
+	9 doubles per halfSpeed level (8 bayesian weights then attention),
+	or null if there are none. Level 0 is the halfSpeed of this Node,
+	and level k+1 is the halfSpeed of level k.
 	<br><br>
-	Each halfSpeed Node runs every other time its parent runs,
+	Each halfSpeed level runs every other time its parent runs,
 	so its like a time-based (instead of positional) binary number
 	where each digit is a bayesian node.
 	*/
-	private Node halfSpeed;
+	private double memory[];
 	
-	/** Returns 1 if this Node is the last in the halfSpeed linked list */
+	/** Returns 1 if this Node has no halfSpeed levels */
 	private int halfSpeedDepth(){
-		Node n = halfSpeed;
-		int i = 1;
-		while(n != null){
-			n = n.halfSpeed;
-			i++;
-		}
-		return i;
+		if(arrays != null) return arrays.halfSpeedDepth(arraysIndex);
+		return memory==null ? 1 : 1+memory.length/9;
 	}
 
-	/** Used with the halfSpeed Node, which itself may have a halfSpeed Node,
-	and ends with null at the most-significant-digit end.
+	/** Counts runs, for when each halfSpeed level runs. Level k runs when
+	the lowest k+1 bits of memoryClock are 0, so once per 2^(k+1) runs,
+	the way a binary counter carries into its more significant digits.
 	<br><br>
 	My intuition about this is its similar to Fast Fourier Transform (FFT)
 	except done in a more digital way, using booleans instead of complex numbers
 	which rotate around a complex unit circle.
-	Each level in the halfSpeed linked list is like a digit in a binary number
+	Each halfSpeed level is like a digit in a binary number
 	or 1 of log_base_2 number of levels in FFT. I'll think about it more later.
 	For now I'm not trying to make use of waves in that way. I'm using only
 	the simpler waves that flow between attention and bayesian weights.
@@ -95,7 +123,7 @@ public class Node implements Runnable{
 	waves in the continuous path between short-term and long-term memory
 	which is now a discrete path with log_base_2 number of levels.
 	*/
-	private boolean recurseAlternator;
+	private int memoryClock;
 	
 	/** Range 0 to axonSize-1 are parent Nodes if we think of xX, yY, and zZ as child Nodes.
 	<br><br>
@@ -122,6 +150,11 @@ public class Node implements Runnable{
 	private Node axon[];
 	private int axonSize;
 	
+	/** Which bayesian child (0 for X, 1 for Y, 2 for Z) this Node is in each axon Node,
+	found once by addToAxon instead of every run().
+	*/
+	private byte axonSlot[];
+	
 	private double attention_decayToward_aveAccuracyOfChance = .1;
 	//private float attention_decayToward_aveChanceOfThisNode = .5;
 	
@@ -133,7 +166,10 @@ public class Node implements Runnable{
 	private double bayesianWeights_decay = .1;
 	
 	private double accuracyMeasuredLastRun;
-	public double getAccuracyMeasuredLastRun(){ return accuracyMeasuredLastRun; }
+	public double getAccuracyMeasuredLastRun(){
+		if(arrays != null) return arrays.getAccuracyMeasuredLastRun(arraysIndex);
+		return accuracyMeasuredLastRun;
+	}
 	
 	private final String nameForTesting;
 	
@@ -164,6 +200,13 @@ public class Node implements Runnable{
 		//testWeights();
 	}
 	
+	/** A view of index i in NodeArrays that has no Node object yet */
+	Node(NodeArrays arrays, int i){
+		this.nameForTesting = "node"+i;
+		this.arrays = arrays;
+		this.arraysIndex = i;
+	}
+	
 	
 	/** Updates only variables in this Node, not its 3 childs (x, y, z)
 	or its axon nodes (variable size).
@@ -178,36 +221,29 @@ public class Node implements Runnable{
 	be a different var? It depends if we want to use "attention" recursively.
 	<br><br>
 	Updates the 8 bayesian weights (zyx, zyX, zYx, zYX, Zyx, ZyX, ZYx, ZYX),
-	and recursively into the halfSpeed Node if it exists,
+	and into the halfSpeed levels that are scheduled this run,
 	a little toward the 3 bayesian childs.
 	<br><br>
 	*/
 	public void run(){
+		if(arrays != null){
+			arrays.run(arraysIndex);
+			return;
+		}
 		if(axonSize > 0){
 			//testWeights();
 			//(1) Average (TODO median?) chance of this Node in each axon Node, if axon isn't empty.
-			double sum = 0;
-			double observations[] = new double[axonSize];
-			double observation_attention[] = new double[axonSize];
+			//Weighted mean and variance of observations are streamed (West 1979)
+			//so nothing is allocated per run.
+			double aveObservation = 0;
+			double sumOfSquares = 0;
 			double accuracySum = 0;
 			double totalAttentionSummedWithChance = 0;
 			for(int i=0; i<axonSize; i++){
 				Node n = axon[i];
 				//n.testWeights();
-				double myChanceInN;
-				if(n.xX == this){
-					//myChanceInN = n.predictChanceWithoutObservingAny(0);
-					myChanceInN = n.observeOthersThenPredictChanceOf(0);
-				}else if(n.yY == this){
-					//myChanceInN = n.predictChanceWithoutObservingAny(1);
-					myChanceInN = n.observeOthersThenPredictChanceOf(1);
-				}else if(n.zZ == this){
-					//myChanceInN = n.predictChanceWithoutObservingAny(2);
-					myChanceInN = n.observeOthersThenPredictChanceOf(2);
-				}else{
-					throw new RuntimeException("Pair of links is broken. Found "+n
-						+" in my axon Nodes but I'm not 1 of its bayesian childs. I am: "+this);
-				}
+				//myChanceInN = n.predictChanceWithoutObservingAny(axonSlot[i]);
+				double myChanceInN = n.observeOthersThenPredictChanceOf(axonSlot[i]);
 				//TODO use current average instead of attention which is a decaying average
 				
 				double stdDevScale = 1.5; //Display this many standard deviations
@@ -220,12 +256,11 @@ public class Node implements Runnable{
 				//attention amount of chance_range_0_to_1.
 				//Attention can be any positive number and is conserved overall between Nodes.
 				
-				sum += normedObservation*n.attention;
 				//sum += myChanceInN*n.attention;
 				totalAttentionSummedWithChance += n.attention;
-				observations[i] = normedObservation;
-				//observations[i] = myChanceInN;
-				observation_attention[i] = n.attention;
+				double diff = normedObservation - aveObservation;
+				aveObservation += diff*n.attention/totalAttentionSummedWithChance;
+				sumOfSquares += n.attention*diff*(normedObservation - aveObservation);
 				
 				
 				//n.testWeights();
@@ -235,12 +270,6 @@ public class Node implements Runnable{
 			
 			if(axonSize > 1){
 				//double aveObservation = sum/axonSize;
-				double aveObservation = sum/totalAttentionSummedWithChance;
-				double sumOfSquares = 0;
-				for(int i=0; i<axonSize; i++){
-					double diff = observations[i] - aveObservation;
-					sumOfSquares += observation_attention[i]*diff*diff;
-				}
 				double stdDev = Math.sqrt(sumOfSquares/totalAttentionSummedWithChance);
 				//stdDev = Math.max(chanceStdDev_min, stdDev);
 				//chanceStdDev = stdDev;
@@ -255,6 +284,7 @@ public class Node implements Runnable{
 			//chance = chance*(1-decay) + decay*aveChanceOfThisNode;
 			//testWeights();
 			if(chance < 0 || chance > 1){
+				CortexMetrics.attentionOutOfRange.increment();
 				throw new RuntimeException("attention out of range: "+chance);
 			}
 			//testWeights();
@@ -341,45 +371,49 @@ public class Node implements Runnable{
 		double targetAtt = .5+.1*accuracyMeasuredLastRun;
 		attention = attention*(1-attDecay) + attDecay*targetAtt;
 		
-		runFullMemoryLinkedList();
+		runHalfSpeedLevels();
 		normWeights();
 		
 		//testWeights();
 	}
 	
-	/** Recursively runs the end of the halfSpeed linked list first,
-	1 pair of Node in that list at a time,
-	the runs pairs earlier in the list. Each cycle, 2 nodes average their
-	8 bayesian weights together to get 8 weights in 2 duplicates each.
-	Next run(), the earliest Node in the linked list changes those weights.
+	/** Runs the halfSpeed levels scheduled by memoryClock, deepest first,
+	1 pair of levels at a time, then the pair of this Node and level 0.
+	Each pair averages its 8 bayesian weights (and attention) together to get
+	8 weights in 2 duplicates each. Next run(), this Node changes those weights.
 	That is the input and output to the rest of the network.
 	<br><br>
-	TODO use recurseAlternator instead of running the whole linked list.
-	*/
-	private void runFullMemoryLinkedList(){
-		if(halfSpeed == null) return;
-		halfSpeed.runFullMemoryLinkedList();
-		zyx = (zyx+halfSpeed.zyx)/2;
-		zyX = (zyX+halfSpeed.zyX)/2;
-		zYx = (zYx+halfSpeed.zYx)/2;
-		zYX = (zYX+halfSpeed.zYX)/2;
-		Zyx = (Zyx+halfSpeed.Zyx)/2;
-		ZyX = (ZyX+halfSpeed.ZyX)/2;
-		ZYx = (ZYx+halfSpeed.ZYx)/2;
-		ZYX = (ZYX+halfSpeed.ZYX)/2;
-		attention = (attention+halfSpeed.attention)/2;
-		normWeights();
-		halfSpeed.zyx = zyx;
-		halfSpeed.zyX = zyX;
-		halfSpeed.zYx = zYx;
-		halfSpeed.zYX = zYX;
-		halfSpeed.Zyx = Zyx;
-		halfSpeed.ZyX = ZyX;
-		halfSpeed.ZYx = ZYx;
-		halfSpeed.ZYX = ZYX; //normed
-		halfSpeed.attention = attention;
-		//testWeights();
-		//halfSpeed.testWeights();
+	Level k runs once per 2^(k+1) runs, so the average cost per run is
+	at most 1 pair no matter how deep the memory is.
+	*/
+	private void runHalfSpeedLevels(){
+		if(memory == null) return;
+		int levels = NodeArrays.halfSpeedLevelsToRun(++memoryClock, memory.length/9);
+		for(int level=levels-1; level>0; level--){
+			NodeArrays.averageHalfSpeedPair(memory, 9*(level-1), 9*level);
+		}
+		if(levels > 0){
+			double m[] = memory;
+			zyx = (zyx+m[0])/2;
+			zyX = (zyX+m[1])/2;
+			zYx = (zYx+m[2])/2;
+			zYX = (zYX+m[3])/2;
+			Zyx = (Zyx+m[4])/2;
+			ZyX = (ZyX+m[5])/2;
+			ZYx = (ZYx+m[6])/2;
+			ZYX = (ZYX+m[7])/2;
+			attention = (attention+m[8])/2;
+			normWeights();
+			m[0] = zyx;
+			m[1] = zyX;
+			m[2] = zYx;
+			m[3] = zYX;
+			m[4] = Zyx;
+			m[5] = ZyX;
+			m[6] = ZYx;
+			m[7] = ZYX; //normed
+			m[8] = attention;
+		}
 	}
 	
 	private void testWeights(){
@@ -427,6 +461,62 @@ public class Node implements Runnable{
 	chance(X, given Y) * chance(Y) = chance(Y, given X) * chance(X)
 	*/
 	private double observeOthersThenPredictChanceOf(int bayesianChild){
+		return observeOthersThenPredictChanceOf(bayesianChild, zyx, zyX, zYx, zYX, Zyx, ZyX, ZYx, ZYX,
+			xX.chance, yY.chance, zZ.chance);
+	}
+	
+	/** Same as observeOthersThenPredictChanceOf(int) for any 8 weights and 3 observed chances,
+	without changing anything, so its safe to call from any thread.
+	<br><br>
+	The 2 observed childs (a and b) and the predicted child (c) are arranged as a 2x2 table
+	of (a,b) cells, each with a total weight s and a weight t where c is true.
+	Setting a to chanceA scales each cell by chanceA/oldChanceA or (1-chanceA)/(1-oldChanceA).
+	Setting b then scales by the same kind of ratio using chance of b after the first scaling.
+	The prediction is the sum of t times both scales. This is done setting a first
+	and setting b first, and the 2 predictions are averaged, the same as setting
+	and restoring the weights twice used to do.
+	*/
+	public static double observeOthersThenPredictChanceOf(int bayesianChild,
+			double zyx, double zyX, double zYx, double zYX, double Zyx, double ZyX, double ZYx, double ZYX,
+			double chanceX, double chanceY, double chanceZ){
+		switch(bayesianChild){
+		case 0: //predict X. a=Y, b=Z
+			return setBothThenPredict(zyx+zyX, zYx+zYX, Zyx+ZyX, ZYx+ZYX, zyX, zYX, ZyX, ZYX, chanceY, chanceZ);
+		case 1: //predict Y. a=X, b=Z
+			return setBothThenPredict(zyx+zYx, zyX+zYX, Zyx+ZYx, ZyX+ZYX, zYx, zYX, ZYx, ZYX, chanceX, chanceZ);
+		case 2: //predict Z. a=X, b=Y
+			return setBothThenPredict(zyx+Zyx, zyX+ZyX, zYx+ZYx, zYX+ZYX, Zyx, ZyX, ZYx, ZYX, chanceX, chanceY);
+		}
+		throw new RuntimeException("bayesianChild="+bayesianChild);
+	}
+	
+	/** Cells are named by (b,a) bits like the weights, so s10 is b true and a false.
+	Returns the average of setting a then b, and setting b then a, then predicting c.
+	*/
+	private static double setBothThenPredict(double s00, double s01, double s10, double s11,
+			double t00, double t01, double t10, double t11, double chanceA, double chanceB){
+		//Set a, then b
+		double oldA = s01+s11;
+		double aTrue = chanceA/oldA, aFalse = (1-chanceA)/(1-oldA);
+		double oldB = aFalse*s10 + aTrue*s11;
+		double bTrue = chanceB/oldB, bFalse = (1-chanceB)/(1-oldB);
+		double predictA = bFalse*(aFalse*t00 + aTrue*t01) + bTrue*(aFalse*t10 + aTrue*t11);
+		//Set b, then a
+		oldB = s10+s11;
+		bTrue = chanceB/oldB;
+		bFalse = (1-chanceB)/(1-oldB);
+		oldA = bFalse*s01 + bTrue*s11;
+		aTrue = chanceA/oldA;
+		aFalse = (1-chanceA)/(1-oldA);
+		double predictB = bFalse*(aFalse*t00 + aTrue*t01) + bTrue*(aFalse*t10 + aTrue*t11);
+		return (predictA+predictB)/2;
+	}
+	
+	/** The old way of observeOthersThenPredictChanceOf(int), by changing the weights
+	with setPredictedChanceWithoutObservingAny twice in each order and restoring them.
+	Only used to test the closed form is the same.
+	*/
+	private double observeOthersThenPredictChanceOfByChangingWeights(int bayesianChild){
 		double observedChanceX = xX.chance;
 		double observedChanceY = yY.chance;
 		double observedChanceZ = zZ.chance;
@@ -547,28 +637,117 @@ public class Node implements Runnable{
 	}
 	
 	
-	/** Does not check for duplicates. Enlarges axon array if needed. */
+	/** Does not check for duplicates. Enlarges axon array if needed.
+	This Node must already be 1 of the 3 bayesian childs of n.
+	*/
 	public void addToAxon(Node n){
+		if(arrays != null) throw new RuntimeException(
+			"TODO change axon of a Node after Cortex.useNodeArrays(). "+this);
+		byte slot;
+		if(n.xX == this){
+			slot = 0;
+		}else if(n.yY == this){
+			slot = 1;
+		}else if(n.zZ == this){
+			slot = 2;
+		}else{
+			CortexMetrics.brokenLinks.increment();
+			throw new RuntimeException("Pair of links is broken. Adding "+n
+				+" to my axon Nodes but I'm not 1 of its bayesian childs. I am: "+this);
+		}
 		if(axon == null){
 			axon = new Node[4];
+			axonSlot = new byte[4];
 		}else if(axonSize == axon.length){
 			Node axon2[] = new Node[axon.length*2];
 			System.arraycopy(axon, 0, axon2, 0, axon.length);
 			axon = axon2;
+			byte axonSlot2[] = new byte[axon2.length];
+			System.arraycopy(axonSlot, 0, axonSlot2, 0, axonSize);
+			axonSlot = axonSlot2;
 		}
+		axonSlot[axonSize] = slot;
 		axon[axonSize++] = n;
 	}
 	
 	
-	/** Adds 1 more Node to the halfSpeed linked list */
+	/** Adds 1 more halfSpeed level, starting as a copy of the weights of the deepest level */
 	public void growMemoryBinaryList(){
-		if(halfSpeed != null){
-			halfSpeed.growMemoryBinaryList();
+		if(arrays != null){
+			arrays.growMemoryBinaryList(arraysIndex);
 		}else{
-			Node childs[] = new Node[]{xX, yY, zZ};
 			double weights[] = new double[]{zyx, zyX, zYx, zYX, Zyx, ZyX, ZYx, ZYX};
-			halfSpeed = new Node(nameForTesting+"+", chance, childs, weights);
+			memory = NodeArrays.growHalfSpeedLevels(memory, weights, 0);
+		}
+	}
+	
+	/** Copies the state of this Node, except axon, into index i of NodeArrays.
+	The childs must be in indexOf. Sets arrays.axonSize[i] so the axon can be copied later.
+	*/
+	void copyInto(NodeArrays a, int i, Map<Node,Integer> indexOf){
+		if(arrays != null) throw new RuntimeException("Already a view of NodeArrays: "+this);
+		int w = 8*i;
+		a.weights[w] = zyx;
+		a.weights[w+1] = zyX;
+		a.weights[w+2] = zYx;
+		a.weights[w+3] = zYX;
+		a.weights[w+4] = Zyx;
+		a.weights[w+5] = ZyX;
+		a.weights[w+6] = ZYx;
+		a.weights[w+7] = ZYX;
+		a.chance[i] = chance;
+		a.attention[i] = attention;
+		a.chanceStdDev[i] = chanceStdDev;
+		a.accuracyMeasuredLastRun[i] = accuracyMeasuredLastRun;
+		a.attention_decayToward_aveAccuracyOfChance[i] = attention_decayToward_aveAccuracyOfChance;
+		a.bayesianWeights_decay[i] = bayesianWeights_decay;
+		Node childs[] = {xX, yY, zZ};
+		for(int c=0; c<3; c++){
+			if(childs[c] == null){
+				a.childs[3*i+c] = -1;
+			}else{
+				Integer childIndex = indexOf.get(childs[c]);
+				if(childIndex == null){
+					CortexMetrics.brokenLinks.increment();
+					throw new RuntimeException("Child "+childs[c]+" of "+this+" is not in the same NodeArrays");
+				}
+				a.childs[3*i+c] = childIndex;
+			}
 		}
+		a.axonSize[i] = axonSize;
+		if(memory != null) a.memory[i] = memory.clone();
+		a.memoryClock[i] = memoryClock;
+	}
+	
+	int axonSize(){
+		if(arrays != null) return arrays.getAxonSize(arraysIndex);
+		return axonSize;
+	}
+	
+	/** Copies axon into NodeArrays after copyInto(NodeArrays,int,Map) set axonStart[i] */
+	void copyAxonInto(NodeArrays a, int i, Map<Node,Integer> indexOf){
+		for(int j=0; j<axonSize; j++){
+			Integer parentIndex = indexOf.get(axon[j]);
+			if(parentIndex == null){
+				CortexMetrics.brokenLinks.increment();
+				throw new RuntimeException("Axon Node "+axon[j]+" of "+this+" is not in the same NodeArrays");
+			}
+			a.axon[a.axonStart[i]+j] = parentIndex;
+			a.axonSlot[a.axonStart[i]+j] = axonSlot[j];
+		}
+	}
+	
+	/** After this, all state of this Node is read and written at index i of NodeArrays.
+	The old pointers are dropped so they cant get out of sync with it.
+	*/
+	void bindTo(NodeArrays a, int i){
+		arrays = a;
+		arraysIndex = i;
+		xX = yY = zZ = null;
+		memory = null;
+		axon = null;
+		axonSlot = null;
+		axonSize = 0;
 	}
 	
 	
@@ -599,7 +778,7 @@ public class Node implements Runnable{
 	
 	
 	/** Test this class */
-	private static void main(String args[]) throws Exception{
+	public static void main(String args[]) throws Exception{
 		Node x = new Node("x"), y = new Node("y"), z = new Node("z");
 		double weights[] = new double[]{ //sums to 1, except for roundoff error
 			     //zyx since its little-endian alignment to bits in each index.
@@ -665,9 +844,711 @@ public class Node implements Runnable{
 		//TODO use -1 as bayesianfalse and 1 as bayesiantrue, instead of 0 to 1,
 		//but do the same calculation as if it was 0 to 1, just scaling and moving the range.
 		*/
+		testClosedFormPrediction();
+		testNoAllocationPerRun();
+		testHalfSpeedSchedule();
+		testActiveScheduling();
+		testBulkChances();
+		testFrameFeeder();
+		testRecorder();
+		testMetrics();
+		testSynchronousThreads();
+		testReorder();
+		testGraphBuilder();
+		testPlasticity();
+		testShards();
+		testMappedNodeArrays();
+		testCheckpointer();
+		testTilePyramid();
+		WeightKernels.testFloatAccuracy();
 		throw new RuntimeException("Passed all tests. TODO uncomment and translate tests above, originally from Human AI Net 0.6.3 bayesianvector.vecnets.wavefunctions.BayesianPowerset");
 	}
 	
+	/** The closed form observeOthersThenPredictChanceOf must match changing and restoring
+	the weights to within 1e-12, and must not change the weights.
+	*/
+	private static void testClosedFormPrediction() throws Exception{
+		Random rand = new Random(2);
+		for(int test=0; test<100000; test++){
+			Node x = new Node("x"), y = new Node("y"), z = new Node("z");
+			x.chance = rand.nextDouble();
+			y.chance = rand.nextDouble();
+			z.chance = rand.nextDouble();
+			Node b = new Node("b", .5, new Node[]{x, y, z}, newWeights(3, rand));
+			String weightsBefore = b.weightsToString();
+			for(int child=0; child<3; child++){
+				double closedForm = b.observeOthersThenPredictChanceOf(child);
+				double changingWeights = b.observeOthersThenPredictChanceOfByChangingWeights(child);
+				double diff = Math.abs(closedForm-changingWeights);
+				if(!(diff <= 1e-12)) throw new Exception("testClosedFormPrediction failed. closedForm="+closedForm
+					+" changingWeights="+changingWeights+" child="+child+" "+b);
+			}
+			if(!weightsBefore.equals(b.weightsToString())) throw new Exception(
+				"testClosedFormPrediction failed. Weights changed from "+weightsBefore+" in "+b);
+		}
+	}
+	
+	/** Runs a small random network of Node objects, and the same network as NodeArrays,
+	until the JIT compiles them, then uses ThreadMXBean to check run() allocates nothing.
+	*/
+	private static void testNoAllocationPerRun() throws Exception{
+		Random rand = new Random(1);
+		Cortex objects = new Cortex(), arrays = new Cortex();
+		for(Cortex c : new Cortex[]{objects, arrays}){
+			List<Node> leafs = new ArrayList<Node>();
+			for(int i=0; i<100; i++) leafs.add(new Node("leaf"+i));
+			for(Node n : leafs) c.add(n);
+			for(int i=0; i<300; i++){
+				Node childs[] = new Node[]{leafs.get(i%100), leafs.get((i+1)%100), leafs.get((i+7)%100)};
+				Node m = new Node("parent"+i, .5, childs, newWeights(3, rand));
+				for(Node child : childs) child.addToAxon(m);
+				if(i%10 == 0) for(int level=0; level<5; level++) m.growMemoryBinaryList();
+				c.add(m);
+			}
+		}
+		arrays.useNodeArrays();
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for(Cortex c : new Cortex[]{objects, arrays}){
+			for(int i=0; i<20000; i++) c.run();
+			long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+			for(int i=0; i<1000; i++) c.run();
+			long bytes = threads.getThreadAllocatedBytes(threadId)-bytesBefore;
+			if(bytes != 0) throw new Exception("testNoAllocationPerRun failed. "+bytes
+				+" bytes allocated in 1000 runs of "+c.size()+" Nodes. NodeArrays="+c.getNodeArrays());
+		}
+	}
+	
+	/** Level k of the halfSpeed levels runs once per 2^(k+1) runs,
+	and a Node object and NodeArrays give the same numbers with deep memory
+	*/
+	private static void testHalfSpeedSchedule() throws Exception{
+		int levels = 7, runs = 1<<12;
+		int ranLevel[] = new int[levels];
+		for(int clock=1; clock<=runs; clock++){
+			for(int k=0; k<NodeArrays.halfSpeedLevelsToRun(clock, levels); k++) ranLevel[k]++;
+		}
+		for(int k=0; k<levels; k++){
+			if(ranLevel[k] != runs>>(k+1)) throw new Exception("testHalfSpeedSchedule failed. Level "+k
+				+" ran "+ranLevel[k]+" times in "+runs+" runs");
+		}
+		Random rand = new Random(2);
+		Cortex objects = new Cortex(), arrays = new Cortex();
+		for(Cortex c : new Cortex[]{objects, arrays}){
+			rand.setSeed(2);
+			Node childs[] = {new Node("x"), new Node("y"), new Node("z")};
+			Node node = new Node("node", .5, childs, newWeights(3, rand));
+			for(Node child : childs){
+				child.addToAxon(node);
+				c.add(child);
+			}
+			c.add(node);
+			for(int k=0; k<levels; k++) node.growMemoryBinaryList();
+		}
+		arrays.useNodeArrays();
+		for(int i=0; i<1000; i++){
+			for(Cortex c : new Cortex[]{objects, arrays}){
+				for(int j=0; j<3; j++) c.get(j).setChance(.5+.4*Math.sin(i*(j+1)*.1));
+				c.run();
+			}
+		}
+		String o = objects.get(3).toString(), a = arrays.get(3).toString();
+		if(!o.equals(a)) throw new Exception("testHalfSpeedSchedule failed. Node object "+o+" but NodeArrays "+a);
+	}
+	
+	/** Cortex.setActive runs all Nodes in the same order as run() when fullSweepEvery is 1,
+	runs no Nodes once a Cortex with no input settles, and runs a Node and its parents after setChance
+	*/
+	private static void testActiveScheduling() throws Exception{
+		Cortex all = Cortex.newRandom(100, 5, new Random(3)), active = Cortex.newRandom(100, 5, new Random(3));
+		all.useNodeArrays();
+		active.setActive(true, .0001, 1);
+		for(int i=0; i<100; i++){
+			all.run();
+			active.run();
+		}
+		for(int i=0; i<all.size(); i++){
+			if(!all.get(i).toString().equals(active.get(i).toString())) throw new Exception(
+				"testActiveScheduling failed. run() "+all.get(i)+" but runActive() "+active.get(i));
+		}
+		active.setActive(true, .0001, 0);
+		for(int i=0; i<5000 && active.lastRunCount()>0; i++) active.run();
+		if(active.lastRunCount() != 0) throw new Exception(
+			"testActiveScheduling failed. Still running "+active.lastRunCount()+" Nodes with no input");
+		Node pixel = active.get(0);
+		pixel.setChance(pixel.getChance() > .5 ? .1 : .9);
+		active.run();
+		if(active.lastRunCount() < 1+pixel.axonSize()) throw new Exception(
+			"testActiveScheduling failed. Ran "+active.lastRunCount()+" Nodes after setChance of a Node with "
+			+pixel.axonSize()+" parents");
+	}
+	
+	/** Cortex.blendChances and setChances, before and after useNodeArrays(),
+	do the same as setChance 1 Node at a time
+	*/
+	private static void testBulkChances() throws Exception{
+		Cortex one = Cortex.newRandom(100, 5, new Random(6)), objects = Cortex.newRandom(100, 5, new Random(6)),
+			arrays = Cortex.newRandom(100, 5, new Random(6));
+		arrays.useNodeArrays();
+		double target[] = new double[100];
+		int indexs[] = new int[50];
+		float floats[] = new float[50];
+		for(int step=0; step<20; step++){
+			for(int i=0; i<100; i++) target[i] = .5+.5*Math.sin(step+i);
+			for(int k=0; k<50; k++){
+				indexs[k] = (7*k+step)%100;
+				floats[k] = (float)target[k];
+			}
+			for(int i=10; i<60; i++){
+				Node n = one.get(i);
+				n.setChance(n.getChance()*(1-.1) + .1*target[i]);
+			}
+			for(int k=0; k<50; k++) one.get(indexs[k]).setChance(floats[k]);
+			for(Cortex c : new Cortex[]{objects, arrays}){
+				c.blendChances(10, DoubleBuffer.wrap(target, 10, 50), 50, .1);
+				c.setChances(indexs, floats, 0, 50);
+			}
+			one.run();
+			objects.run();
+			arrays.run();
+		}
+		double chances[] = new double[one.size()];
+		arrays.getChances(0, chances, 0, chances.length);
+		for(int i=0; i<one.size(); i++){
+			if(!one.get(i).toString().equals(objects.get(i).toString())
+					|| !one.get(i).toString().equals(arrays.get(i).toString())
+					|| chances[i] != one.get(i).getChance()) throw new Exception(
+				"testBulkChances failed. setChance "+one.get(i)+" but blendChances "+objects.get(i)
+				+" and in NodeArrays "+arrays.get(i));
+		}
+		try{
+			arrays.setChances(arrays.size()-1, target, 0, 2);
+			throw new Exception("testBulkChances failed. setChances past the last Node");
+		}catch(IllegalArgumentException e){}
+	}
+	
+	/** FrameFeeder feeds every frame of a FrameSource in order, decodes only a few frames ahead,
+	and RawFrameSource scales each format to 0 to 1
+	*/
+	private static void testFrameFeeder() throws Exception{
+		final int frames = 200, buffers = 3;
+		final long reads[] = new long[1];
+		FrameSource generator = new FrameSource(){
+			public int frameSize(){ return 100; }
+			public boolean read(float frame[]){
+				if(reads[0] == frames) return false;
+				reads[0]++;
+				for(int k=0; k<100; k++) frame[k] = (float)((reads[0]+k)%10)/10;
+				return true;
+			}
+			public void close(){}
+		};
+		Cortex cortex = Cortex.newRandom(100, 5, new Random(7));
+		cortex.useNodeArrays();
+		FrameFeeder feeder = new FrameFeeder(generator, 0, null, buffers);
+		long lastFed = 0;
+		while(feeder.feed(cortex)){
+			if(reads[0] > feeder.framesFed+buffers) throw new Exception(
+				"testFrameFeeder failed. Decoded "+reads[0]+" frames when "+feeder.framesFed+" were fed, with "
+				+buffers+" buffers");
+			if(feeder.framesFed != lastFed){
+				lastFed = feeder.framesFed;
+				for(int k=0; k<100; k++){
+					if(cortex.get(k).getChance() != (float)((lastFed+k)%10)/10) throw new Exception(
+						"testFrameFeeder failed. Node "+k+" chance="+cortex.get(k).getChance()+" after frame "+lastFed);
+				}
+			}
+			cortex.run();
+			Thread.yield();
+		}
+		feeder.close();
+		if(feeder.framesFed != frames) throw new Exception(
+			"testFrameFeeder failed. Fed "+feeder.framesFed+" of "+frames+" frames");
+
+		byte bytes[] = {0, (byte)255, (byte)255, 0, 0, (byte)0x80};
+		float frame[] = new float[3];
+		new RawFrameSource(new java.io.ByteArrayInputStream(bytes), "pcm16le", 3).read(frame);
+		testNear(frame[0], (-256+32768)/65535f, "pcm16le 0xff00");
+		testNear(frame[1], (255+32768)/65535f, "pcm16le 0x00ff");
+		testNear(frame[2], 0, "pcm16le -32768");
+		float grey[] = new float[2];
+		new RawFrameSource(new java.io.ByteArrayInputStream(bytes), "rgb24grey", 2).read(grey);
+		testNear(grey[0], 510/765f, "rgb24grey 0,255,255");
+		testNear(grey[1], 128/765f, "rgb24grey 0,0,128");
+		if(new RawFrameSource(new java.io.ByteArrayInputStream(bytes), "grey8", 7).read(new float[7])) throw new Exception(
+			"testFrameFeeder failed. Read a frame of 7 bytes from 6 bytes");
+	}
+	
+	/** CortexRecording reads back what CortexRecorder wrote, exactly for 32 bits,
+	and within half a level when quantized, with and without delta and gzip
+	*/
+	private static void testRecorder() throws Exception{
+		int steps = 30, size = 100;
+		for(String options : new String[]{"32 delta .bcr", "8 delta .bcr.gz", "16 - .bcr"}){
+			String o[] = options.split(" ");
+			int bits = Integer.parseInt(o[0]);
+			java.io.File file = java.io.File.createTempFile("testRecorder", o[2]);
+			file.deleteOnExit();
+			Cortex cortex = Cortex.newRandom(size, 5, new Random(8));
+			cortex.useNodeArrays();
+			CortexRecorder recorder = new CortexRecorder(file, "bcr", "accuracy,chance,chanceStdDev,attention",
+				0, size, bits, o[1].equals("delta"), steps);
+			recorder.every = 3;
+			float expected[][][] = new float[steps][4][size];
+			Brainwave brainwave = new Brainwave();
+			for(int step=0; step<steps; step++){
+				brainwave.step(cortex, size);
+				cortex.run();
+				cortex.getAccuracies(0, expected[step][0], 0, size);
+				cortex.getChances(0, expected[step][1], 0, size);
+				cortex.getChanceStdDevs(0, expected[step][2], 0, size);
+				cortex.getAttentions(0, expected[step][3], 0, size);
+				recorder.record(cortex, step);
+			}
+			recorder.close();
+			CortexRecording recording = new CortexRecording(file);
+			for(int step=0; step<steps; step+=3){
+				if(!recording.next() || recording.step != step) throw new Exception(
+					"testRecorder failed. "+options+" no frame for step "+step);
+				for(int c=0; c<4; c++){
+					float scale = CortexRecorder.columnScale[recording.columns[c]];
+					double maxDiff = bits==32 ? 0 : .5*scale/((1<<bits)-1)+1e-6;
+					for(int i=0; i<size; i++){
+						float e = bits==32 ? expected[step][c][i] : Math.min(expected[step][c][i], scale);
+						if(Math.abs(recording.values[c][i]-e) > maxDiff) throw new Exception(
+							"testRecorder failed. "+options+" step "+step+" "+CortexRecorder.columnNames[recording.columns[c]]
+							+" of Node "+i+" recorded "+e+" but read "+recording.values[c][i]);
+					}
+				}
+			}
+			if(recording.next()) throw new Exception("testRecorder failed. "+options+" more frames than recorded");
+			recording.close();
+		}
+	}
+	
+	/** runSynchronous of a Cortex big enough that RunRange splits it into many tasks
+	gives exactly the same numbers on a ForkJoinPool of 4 threads as on the calling thread
+	*/
+	private static void testSynchronousThreads() throws Exception{
+		ForkJoinPool pool = new ForkJoinPool(4);
+		Cortex one = Cortex.newRandom(2500, 5, new Random(16)), four = Cortex.newRandom(2500, 5, new Random(16));
+		for(Cortex c : new Cortex[]{one, four}){
+			for(int i=2500; i<c.size(); i+=11) c.get(i).growMemoryBinaryList();
+		}
+		one.setSynchronous(true, null);
+		four.setSynchronous(true, pool);
+		if(four.size() < 8*NodeArrays.nodesPerTask) throw new Exception(
+			"testSynchronousThreads failed. Only "+four.size()+" Nodes, too few to split");
+		Brainwave brainwaveOne = new Brainwave(), brainwaveFour = new Brainwave();
+		for(int step=0; step<20; step++){
+			brainwaveOne.step(one, 2500);
+			brainwaveFour.step(four, 2500);
+			one.run();
+			four.run();
+		}
+		pool.shutdown();
+		NodeArrays a = one.getNodeArrays(), b = four.getNodeArrays();
+		if(!Arrays.equals(a.weights, b.weights)) throw new Exception("testSynchronousThreads failed. weights differ");
+		if(!Arrays.equals(a.chance, b.chance)) throw new Exception("testSynchronousThreads failed. chance differs");
+		if(!Arrays.equals(a.attention, b.attention)) throw new Exception(
+			"testSynchronousThreads failed. attention differs");
+		if(!Arrays.equals(a.chanceStdDev, b.chanceStdDev)) throw new Exception(
+			"testSynchronousThreads failed. chanceStdDev differs");
+		if(!Arrays.equals(a.accuracyMeasuredLastRun, b.accuracyMeasuredLastRun)) throw new Exception(
+			"testSynchronousThreads failed. accuracy differs");
+		for(int i=0; i<a.size; i++){
+			if(!Arrays.equals(a.memory[i], b.memory[i])) throw new Exception(
+				"testSynchronousThreads failed. halfSpeed levels of Node "+i+" differ");
+		}
+	}
+	
+	/** After Cortex.reorder in Cuthill-McKee order, which renumbers childs and rebuilds the axons,
+	runSynchronous gives exactly the same numbers for each Node at its new index, including halfSpeed levels,
+	and the pixel Nodes keep their indexs
+	*/
+	private static void testReorder() throws Exception{
+		int pixels = 400;
+		Cortex a = Cortex.newRandom(pixels, 5, new Random(18)), b = Cortex.newRandom(pixels, 5, new Random(18));
+		for(Cortex c : new Cortex[]{a, b}){
+			for(int i=pixels; i<c.size(); i+=9) c.get(i).growMemoryBinaryList();
+		}
+		int newIndexOf[] = GraphOrder.cuthillMcKee(b.useNodeArrays(), pixels);
+		b.reorder(newIndexOf);
+		int moved = 0;
+		for(int i=0; i<newIndexOf.length; i++){
+			if(i < pixels && newIndexOf[i] != i) throw new Exception(
+				"testReorder failed. pixel "+i+" moved to "+newIndexOf[i]);
+			if(newIndexOf[i] != i) moved++;
+		}
+		if(moved == 0) throw new Exception("testReorder failed. No Node moved");
+		a.setSynchronous(true, null);
+		b.setSynchronous(true, null);
+		Brainwave brainwaveA = new Brainwave(), brainwaveB = new Brainwave();
+		for(int step=0; step<50; step++){
+			brainwaveA.step(a, pixels);
+			brainwaveB.step(b, pixels);
+			a.run();
+			b.run();
+		}
+		NodeArrays x = a.getNodeArrays(), y = b.getNodeArrays();
+		for(int i=0; i<x.size; i++){
+			int j = newIndexOf[i];
+			if(!Arrays.equals(Arrays.copyOfRange(x.weights, 8*i, 8*i+8), Arrays.copyOfRange(y.weights, 8*j, 8*j+8))
+					|| x.chance[i] != y.chance[j] || x.attention[i] != y.attention[j]
+					|| x.chanceStdDev[i] != y.chanceStdDev[j]
+					|| !Arrays.equals(x.memory[i], y.memory[j])) throw new Exception(
+				"testReorder failed. Node "+i+" at new index "+j+" differs");
+		}
+	}
+	
+	/** Timed steps of CortexMetrics give the same numbers as steps without metrics, and are counted */
+	private static void testMetrics() throws Exception{
+		for(int threads=0; threads<2; threads++){
+			Cortex plain = Cortex.newRandom(100, 5, new Random(9)), measured = Cortex.newRandom(100, 5, new Random(9));
+			for(Cortex c : new Cortex[]{plain, measured}){
+				for(int i=100; i<c.size(); i+=7) c.get(i).growMemoryBinaryList();
+				if(threads == 0) c.useNodeArrays();
+				else c.setSynchronous(true, null);
+			}
+			CortexMetrics m = new CortexMetrics(measured);
+			m.setSampleEvery(2);
+			measured.setMetrics(m);
+			for(int i=0; i<20; i++){
+				plain.run();
+				measured.run();
+			}
+			for(int i=0; i<plain.size(); i++){
+				if(!plain.get(i).toString().equals(measured.get(i).toString())) throw new Exception(
+					"testMetrics failed. threads="+threads+" without metrics "+plain.get(i)+" but with "+measured.get(i));
+			}
+			if(m.getSteps() != 20 || m.getSampledSteps() != 10 || m.getNodeUpdates() != 20L*measured.size()) throw new Exception(
+				"testMetrics failed. steps="+m.getSteps()+" sampled="+m.getSampledSteps()+" nodeUpdates="+m.getNodeUpdates());
+			if(m.getLeafNodeMillisPerStep() <= 0 || m.getThinkingNodeMillisPerStep() <= 0
+					|| m.getHalfSpeedMillisPerStep() <= 0) throw new Exception("testMetrics failed. "+m.getLogLine());
+			long histogram[] = m.getAxonSizeHistogram(), sum = 0;
+			for(long h : histogram) sum += h;
+			if(sum != measured.size()) throw new Exception(
+				"testMetrics failed. Axon size histogram counts "+sum+" of "+measured.size()+" Nodes");
+		}
+	}
+	
+	private static void testGraphBuilder() throws Exception{
+		ForkJoinPool pool = new ForkJoinPool(3);
+		for(String topology : new String[]{GraphBuilder.random, GraphBuilder.gridLocal, GraphBuilder.hierarchical}){
+			GraphBuilder b = new GraphBuilder(topology, 120*100, 120, 3, 5);
+			NodeArrays x = b.build(null), y = b.build(pool);
+			if(!Arrays.equals(x.childs, y.childs) || !Arrays.equals(x.weights, y.weights)
+					|| !Arrays.equals(x.axon, y.axon) || !Arrays.equals(x.axonSlot, y.axonSlot)) throw new Exception(
+				"testGraphBuilder failed. "+topology+" differs when built by a ForkJoinPool");
+			int thinking = 0;
+			for(int i=0; i<x.size; i++){
+				int c0 = x.childs[3*i], c1 = x.childs[3*i+1], c2 = x.childs[3*i+2];
+				if(i < b.pixels){
+					if(c0 != -1 || c1 != -1 || c2 != -1) throw new Exception("testGraphBuilder failed. Pixel "+i+" has childs");
+					continue;
+				}
+				thinking++;
+				if(c0 == c1 || c0 == c2 || c1 == c2 || c0 >= i || c1 >= i || c2 >= i || c0 < 0 || c1 < 0 || c2 < 0){
+					throw new Exception("testGraphBuilder failed. "+topology+" Node "+i+" has childs "+c0+" "+c1+" "+c2);
+				}
+				for(int s=0; s<3; s++){
+					int c = x.childs[3*i+s], found = 0;
+					for(int a=x.axonStart[c]; a<x.axonStart[c]+x.axonSize[c]; a++){
+						if(x.axon[a] == i && x.axonSlot[a] == s) found++;
+					}
+					if(found != 1) throw new Exception("testGraphBuilder failed. "+topology+" Node "+i+" is "+found
+						+" times in the axon of its child "+c);
+				}
+			}
+			if(x.axon.length != 3*thinking || thinking == 0) throw new Exception(
+				"testGraphBuilder failed. "+topology+" axon size "+x.axon.length+" for "+thinking+" thinking Nodes");
+			Cortex c = new Cortex(x);
+			for(int i=0; i<5; i++) c.run();
+		}
+		if(Arrays.equals(new GraphBuilder(GraphBuilder.random, 100, 10, 5, 1).build(null).childs,
+				new GraphBuilder(GraphBuilder.random, 100, 10, 5, 2).build(null).childs)) throw new Exception(
+			"testGraphBuilder failed. Seeds 1 and 2 built the same graph");
+		//gridLocal grids too small for 3 different childs must throw instead of trying forever
+		for(int bad[] : new int[][]{{3, 1, 1}, {100, 10, 0}, {4, 2, -1}}){
+			GraphBuilder b = new GraphBuilder(GraphBuilder.gridLocal, bad[0], bad[1], 1, 1);
+			b.radius = bad[2];
+			try{
+				b.build(null);
+				throw new Exception("testGraphBuilder failed. gridLocal pixels="+bad[0]+" virtualWidth="+bad[1]
+					+" radius="+bad[2]+" built");
+			}catch(IllegalArgumentException e){}
+		}
+		//The smallest gridLocal that can be built: 3 pixels in 1 column, the first Node's window is all 3
+		NodeArrays tiny = new GraphBuilder(GraphBuilder.gridLocal, 3, 1, 1, 1).build(null);
+		for(int i=3; i<tiny.size; i++){
+			if(tiny.childs[3*i] == tiny.childs[3*i+1] || tiny.childs[3*i] == tiny.childs[3*i+2]
+					|| tiny.childs[3*i+1] == tiny.childs[3*i+2]) throw new Exception(
+				"testGraphBuilder failed. gridLocal 3 pixels Node "+i+" has the same child twice");
+		}
+		pool.shutdown();
+	}
+	
+	/** Plasticity keeps every axon the same as the childs that point into it, holds its budget,
+	and allocates nothing per step
+	*/
+	private static void testPlasticity() throws Exception{
+		Cortex c = Cortex.newRandom(100, 5, new Random(11));
+		for(int i=100; i<c.size(); i+=13) c.get(i).growMemoryBinaryList();
+		Plasticity p = new Plasticity(c, 100, c.size()+200, 4, 12);
+		p.minAge = 5;
+		p.prunePerStep = 3;
+		c.setPlasticity(p);
+		for(int i=0; i<300; i++) c.run();
+		checkPlasticity(p);
+		if(p.pruned == 0 || p.grown == 0) throw new Exception(
+			"testPlasticity failed. pruned="+p.pruned+" grown="+p.grown);
+		p.budget = p.alive-50;
+		for(int i=0; i<100; i++) c.run();
+		checkPlasticity(p);
+		if(p.alive != p.budget) throw new Exception("testPlasticity failed. alive="+p.alive+" budget="+p.budget);
+		p.budget += 150;
+		for(int i=0; i<5000; i++) c.run();
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long prunedBefore = p.pruned, bytesBefore = threads.getThreadAllocatedBytes(threadId);
+		for(int i=0; i<1000; i++) c.run();
+		long bytes = threads.getThreadAllocatedBytes(threadId)-bytesBefore;
+		if(bytes != 0 || p.pruned == prunedBefore) throw new Exception("testPlasticity failed. "+bytes
+			+" bytes allocated in 1000 runs which pruned "+(p.pruned-prunedBefore));
+		checkPlasticity(p);
+	}
+	
+	private static void checkPlasticity(Plasticity p) throws Exception{
+		NodeArrays a = p.arrays;
+		int alive = 0, axonTotal = 0;
+		for(int i=0; i<a.size; i++){
+			axonTotal += a.axonSize[i];
+			if(a.axonSize[i] > a.axonCapacity(i)) throw new Exception("testPlasticity failed. Node "+i
+				+" axonSize "+a.axonSize[i]+" capacity "+a.axonCapacity(i));
+			if(a.childs[3*i] == -1){
+				if(i >= p.pixels && a.axonSize[i] != 0) throw new Exception(
+					"testPlasticity failed. Free slot "+i+" has parents");
+				continue;
+			}
+			alive++;
+			for(int s=0; s<3; s++){
+				int child = a.childs[3*i+s], found = 0;
+				if(child == i || (child >= p.pixels && a.childs[3*child] == -1)) throw new Exception(
+					"testPlasticity failed. Node "+i+" has child "+child+" which is itself or free");
+				for(int k=a.axonStart[child]; k<a.axonStart[child]+a.axonSize[child]; k++){
+					if(a.axon[k] == i && a.axonSlot[k] == s) found++;
+				}
+				if(found != 1) throw new Exception("testPlasticity failed. Node "+i+" is "+found
+					+" times in the axon of its child "+child);
+			}
+		}
+		if(alive != p.alive || axonTotal != 3*alive) throw new Exception("testPlasticity failed. alive="+alive
+			+" but Plasticity says "+p.alive+". axon total "+axonTotal);
+	}
+	
+	/** ShardedCortex, with workers as threads of this JVM, gives exactly the same numbers
+	as runSynchronous of the whole network, including halfSpeed levels and inputs
+	*/
+	private static void testShards() throws Exception{
+		NodeArrays whole = new GraphBuilder(GraphBuilder.gridLocal, 30*20, 30, 3, 13).build(null);
+		for(int i=600; i<whole.size; i+=17) whole.growMemoryBinaryList(i);
+		ShardedCortex sc = new ShardedCortex(whole, ShardedCortex.shardsByRegion(whole, 600, 30, 3), 3, false, 1);
+		double target[] = new double[600], got[] = new double[whole.size];
+		for(int step=0; step<30; step++){
+			for(int i=0; i<600; i++) target[i] = .5+.5*Math.sin(step*.3+i*.05);
+			sc.blendChances(0, target, 0, 600, .1);
+			for(int i=0; i<600; i++) whole.setChance(i, whole.chance[i]*(1-.1) + .1*target[i]);
+			sc.step();
+			whole.runSynchronous(null);
+		}
+		sc.get(ShardedCortex.attention, 0, got, 0, whole.size);
+		if(!Arrays.equals(got, whole.attention)) throw new Exception("testShards failed. attention differs");
+		sc.get(ShardedCortex.chanceStdDev, 0, got, 0, whole.size);
+		if(!Arrays.equals(got, whole.chanceStdDev)) throw new Exception("testShards failed. chanceStdDev differs");
+		sc.get(ShardedCortex.chance, 0, got, 0, whole.size);
+		if(!Arrays.equals(got, whole.chance)) throw new Exception("testShards failed. chance differs");
+		if(sc.haloBytes == 0) throw new Exception("testShards failed. No halo exchanged");
+		sc.close();
+	}
+	
+	/** MappedNodeArrays.run() on a saved Cortex gives exactly the same numbers as NodeArrays.run(),
+	including halfSpeed levels and inputs, and they are in the file after force()
+	*/
+	private static void testMappedNodeArrays() throws Exception{
+		java.io.File file = java.io.File.createTempFile("testMappedNodeArrays", ".bctx");
+		file.deleteOnExit();
+		Cortex cortex = Cortex.newRandom(100, 5, new Random(14));
+		for(int i=100; i<cortex.size(); i+=7) cortex.get(i).growMemoryBinaryList();
+		cortex.save(file);
+		NodeArrays heap = cortex.getNodeArrays();
+		MappedNodeArrays mapped = MappedNodeArrays.open(file, false);
+		MappedNodeArrays viewer = MappedNodeArrays.open(file, true);
+		Brainwave brainwaveA = new Brainwave(), brainwaveB = new Brainwave();
+		Paintbrush brush = new Paintbrush();
+		for(int step=0; step<100; step++){
+			brainwaveA.step(heap, 100);
+			brainwaveB.step(mapped, 100);
+			brush.paint(heap, 100, 10, 6, 6, step%60, 30);
+			brush.paint(mapped, 100, 10, 6, 6, step%60, 30);
+			heap.run();
+			mapped.run();
+		}
+		mapped.force();
+		NodeArrays saved = NodeArraysFile.load(file);
+		if(!Arrays.equals(saved.weights, heap.weights)) throw new Exception("testMappedNodeArrays failed. weights differ");
+		if(!Arrays.equals(saved.chance, heap.chance)) throw new Exception("testMappedNodeArrays failed. chance differs");
+		if(!Arrays.equals(saved.attention, heap.attention)) throw new Exception(
+			"testMappedNodeArrays failed. attention differs");
+		if(!Arrays.equals(saved.chanceStdDev, heap.chanceStdDev)) throw new Exception(
+			"testMappedNodeArrays failed. chanceStdDev differs");
+		if(!Arrays.equals(saved.accuracyMeasuredLastRun, heap.accuracyMeasuredLastRun)) throw new Exception(
+			"testMappedNodeArrays failed. accuracy differs");
+		if(!Arrays.equals(saved.memoryClock, heap.memoryClock)) throw new Exception(
+			"testMappedNodeArrays failed. memoryClock differs");
+		for(int i=0; i<heap.size; i++){
+			if(!Arrays.equals(saved.memory[i], heap.memory[i])) throw new Exception(
+				"testMappedNodeArrays failed. halfSpeed levels of Node "+i+" differ");
+		}
+		float seen[] = new float[heap.size];
+		viewer.getChances(0, seen, 0, heap.size);
+		for(int i=0; i<heap.size; i++){
+			if(seen[i] != (float)heap.chance[i]) throw new Exception(
+				"testMappedNodeArrays failed. read-only view of chance of Node "+i+" is "+seen[i]);
+		}
+		mapped.close();
+		//Saving again replaces the file by rename, so the open view still reads the old file
+		float before = seen[0];
+		cortex.setChances(0, new double[100], 0, 100);
+		cortex.save(file);
+		viewer.getChances(0, seen, 0, heap.size);
+		if(seen[0] != before || before == 0) throw new Exception(
+			"testMappedNodeArrays failed. view of replaced file changed");
+		if(NodeArraysFile.load(file).chance[0] != 0) throw new Exception("testMappedNodeArrays failed. not saved again");
+	}
+	
+	/** CortexCheckpointer with threshold 0 restores exactly the state of its last checkpoint: from the delta log,
+	after fullCheckpoint() and compact(), without a last block cut off in the middle, and without blocks
+	of an older base, as if it crashed after writing a new base but before emptying the log
+	*/
+	private static void testCheckpointer() throws Exception{
+		java.io.File base = java.io.File.createTempFile("testCheckpointer", ".bctx");
+		java.io.File delta = new java.io.File(base.getPath()+".delta");
+		base.deleteOnExit();
+		delta.deleteOnExit();
+		Cortex cortex = Cortex.newRandom(100, 5, new Random(17));
+		for(int i=100; i<cortex.size(); i+=7) cortex.get(i).growMemoryBinaryList();
+		CortexCheckpointer checkpointer = new CortexCheckpointer(cortex, base, delta, 0);
+		NodeArrays a = checkpointer.arrays;
+		Brainwave brainwave = new Brainwave();
+		NodeArrays beforeLastBlock = null;
+		for(int step=0; step<10; step++){
+			brainwave.step(cortex, 100);
+			cortex.run();
+			if(step == 9) beforeLastBlock = a.copy();
+			while(!checkpointer.checkpoint(step)) Thread.sleep(1);
+		}
+		if(checkpointer.recordsWritten == 0) throw new Exception("testCheckpointer failed. No deltas written");
+		//A block of step 10 that only some of the Nodes changed in, so cutting it off is a different state
+		cortex.setChances(0, new double[10], 0, 10);
+		while(!checkpointer.checkpoint(10)) Thread.sleep(1);
+		checkpointer.close();
+		checkSameState(CortexCheckpointer.restoreArrays(base, delta), a, "delta log");
+		byte oldLog[] = java.nio.file.Files.readAllBytes(delta.toPath());
+		java.nio.file.Files.write(delta.toPath(), Arrays.copyOf(oldLog, oldLog.length-20));
+		checkSameState(CortexCheckpointer.restoreArrays(base, delta), beforeLastBlock, "log cut off mid-block");
+
+		checkpointer = new CortexCheckpointer(cortex, base, delta, 0);
+		for(int step=11; step<30; step++){
+			brainwave.step(cortex, 100);
+			cortex.run();
+			if(step == 15) checkpointer.fullCheckpoint();
+			if(step == 20) checkpointer.compact();
+			while(!checkpointer.checkpoint(step)) Thread.sleep(1);
+		}
+		checkpointer.close();
+		checkSameState(CortexCheckpointer.restoreArrays(base, delta), a, "fullCheckpoint and compact");
+		if(NodeArraysFile.readGeneration(base) != 4) throw new Exception(
+			"testCheckpointer failed. generation "+NodeArraysFile.readGeneration(base)+" after 4 bases");
+		java.nio.file.Files.write(delta.toPath(), oldLog);
+		checkSameState(CortexCheckpointer.restoreArrays(base, delta), NodeArraysFile.load(base), "log of an older base");
+	}
+	
+	private static void checkSameState(NodeArrays got, NodeArrays want, String description) throws Exception{
+		String fail = "testCheckpointer failed. "+description+": ";
+		if(!Arrays.equals(got.weights, want.weights)) throw new Exception(fail+"weights differ");
+		if(!Arrays.equals(got.chance, want.chance)) throw new Exception(fail+"chance differs");
+		if(!Arrays.equals(got.attention, want.attention)) throw new Exception(fail+"attention differs");
+		if(!Arrays.equals(got.chanceStdDev, want.chanceStdDev)) throw new Exception(fail+"chanceStdDev differs");
+		if(!Arrays.equals(got.accuracyMeasuredLastRun, want.accuracyMeasuredLastRun)) throw new Exception(
+			fail+"accuracy differs");
+		if(!Arrays.equals(got.memoryClock, want.memoryClock)) throw new Exception(fail+"memoryClock differs");
+		for(int i=0; i<want.size; i++){
+			if(!Arrays.equals(got.memory[i], want.memory[i])) throw new Exception(
+				fail+"halfSpeed levels of Node "+i+" differ");
+		}
+	}
+	
+	/** Each tile of a TilePyramid, with a short last row, is the mean chance, max chanceStdDev and mean accuracy
+	of the Nodes under it, within epsilon of the Nodes after each update, and an update with no changes changes nothing
+	*/
+	private static void testTilePyramid() throws Exception{
+		int pixels = 1000, width = 33;
+		Cortex cortex = Cortex.newRandom(pixels, 3, new Random(15));
+		cortex.useNodeArrays();
+		TilePyramid pyramid = new TilePyramid(pixels, width);
+		if(pyramid.height != 31 || pyramid.levelWidth[pyramid.levels-1] != 1 || pyramid.levelHeight[pyramid.levels-1] != 1)
+			throw new Exception("testTilePyramid failed. height="+pyramid.height+" levels="+pyramid.levels);
+		Brainwave brainwave = new Brainwave();
+		float chance[] = new float[pixels], stdDev[] = new float[pixels], accuracy[] = new float[pixels];
+		for(int step=0; step<20; step++){
+			brainwave.step(cortex, pixels);
+			cortex.run();
+			pyramid.update(cortex, 0);
+			cortex.getChances(0, chance, 0, pixels);
+			cortex.getChanceStdDevs(0, stdDev, 0, pixels);
+			cortex.getAccuracies(0, accuracy, 0, pixels);
+			for(int i=0; i<pixels; i++){
+				int x = i%width, y = i/width;
+				if(Math.abs(pyramid.chance(0, x, y)-chance[i]) > pyramid.epsilon
+						|| Math.abs(pyramid.chanceStdDev(0, x, y)-stdDev[i]) > pyramid.epsilon
+						|| Math.abs(pyramid.accuracy(0, x, y)-accuracy[i]) > pyramid.epsilon) throw new Exception(
+					"testTilePyramid failed. step "+step+" tile of Node "+i+" is more than epsilon from it");
+			}
+		}
+		for(int level=1; level<pyramid.levels; level++){
+			int tile = 1<<level;
+			for(int ty=0; ty<pyramid.levelHeight[level]; ty++){
+				for(int tx=0; tx<pyramid.levelWidth[level]; tx++){
+					int n = 0;
+					double sumChance = 0, sumAccuracy = 0;
+					float maxStdDev = 0;
+					for(int y=ty*tile; y<(ty+1)*tile; y++){
+						for(int x=tx*tile; x<(tx+1)*tile; x++){
+							if(pyramid.count(0, x, y) == 0) continue;
+							n++;
+							sumChance += pyramid.chance(0, x, y);
+							sumAccuracy += pyramid.accuracy(0, x, y);
+							maxStdDev = Math.max(maxStdDev, pyramid.chanceStdDev(0, x, y));
+						}
+					}
+					if(n != pyramid.count(level, tx, ty)) throw new Exception("testTilePyramid failed. level "+level
+						+" tile "+tx+","+ty+" has "+n+" Nodes but count "+pyramid.count(level, tx, ty));
+					if(n == 0) continue;
+					if(Math.abs(pyramid.chance(level, tx, ty)-sumChance/n) > 1e-5
+							|| Math.abs(pyramid.accuracy(level, tx, ty)-sumAccuracy/n) > 1e-5
+							|| pyramid.chanceStdDev(level, tx, ty) != maxStdDev) throw new Exception(
+						"testTilePyramid failed. level "+level+" tile "+tx+","+ty+" isn't the Nodes under it");
+				}
+			}
+		}
+		if(pyramid.count(pyramid.levels-1, 0, 0) != pixels) throw new Exception("testTilePyramid failed. top count");
+		long version = pyramid.version, tiles = pyramid.tilesUpdated;
+		if(pyramid.update(cortex, 0) != 0 || pyramid.version != version || pyramid.tilesUpdated != tiles)
+			throw new Exception("testTilePyramid failed. update with no changes changed tiles");
+	}
+	
 	/** for limiting roundoff error in tests */
 	private static final double epsilon = .000000001;
 	
@@ -699,6 +1580,11 @@ public class Node implements Runnable{
 	}
 	
 	public String toString(){
+		if(arrays != null){
+			int i = arraysIndex;
+			return "[Node_"+nameForTesting+" weights="+arrays.weightsToString(i)+" attention="+arrays.getChance(i)
+				+" attentionStdDev="+arrays.getChanceStdDev(i)+" halfSpeedDepth="+arrays.halfSpeedDepth(i)+"]";
+		}
 		return "[Node_"+nameForTesting+" weights="+weightsToString()+" attention="+chance+" attentionStdDev="+chanceStdDev+" halfSpeedDepth="+halfSpeedDepth()+"]";
 	}
 }
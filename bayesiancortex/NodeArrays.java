@@ -0,0 +1,1105 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** The same state and run() as Node, but for many Nodes at once in flat primitive arrays
+indexed by int instead of pointers between Node objects. Node i is at index i in every array,
+and its 8 bayesian weights are at weights[8*i] to weights[8*i+7] in the same little-endian order
+as the weights[] param of the Node constructor.
+<br><br>
+Running a Node here changes only the state at its index, the same as Node.run(),
+so run() here gives the same numbers as running each Node object in index order.
+<br><br>
+The Node objects this is made from become thin views of it (see Cortex.useNodeArrays())
+so code that uses the Node API still works.
+<br><br>
+This class is not thread-safe. Synchronize on Node.class like the rest of BayesianCortex.
+runSynchronous(ForkJoinPool) uses other threads only until it returns.
+*/
+public class NodeArrays implements NodeColumns{
+
+	public final int size;
+
+	/** 8 bayesian weights per Node. Not final because runSynchronous swaps generations.
+	Out of date while runSynchronous keeps them as float32 (see setFloatWeights), so read it by weights()
+	except in code that only runs when they aren't.
+	*/
+	double weights[];
+
+	double attention[], accuracyMeasuredLastRun[];
+
+	final double chance[], chanceStdDev[];
+
+	final double attention_decayToward_aveAccuracyOfChance[], bayesianWeights_decay[];
+
+	/** 3 child indexes per Node, in the order x y z, or -1 for a Node whose childs are null */
+	final int childs[];
+
+	/** CSR-style axon. The parents of Node i are axon[axonStart[i]] to axon[axonStart[i]+axonSize[i]-1] */
+	final int axonStart[], axonSize[], axon[];
+
+	/** Parallel to axon[]. Which bayesian child (0 x, 1 y, 2 z) Node i is in that parent,
+	so its prediction is predictions[3*axon[a]+axonSlot[a]].
+	*/
+	final byte axonSlot[];
+
+	/** The halfSpeed levels of each Node, as 9 doubles per level (8 weights then attention),
+	or null if that Node has none. Same as Node.memory.
+	*/
+	final double memory[][];
+
+	/** Runs of each Node, for which halfSpeed levels run. Same as Node.memoryClock. */
+	final int memoryClock[];
+
+	/** Cache of observeOthersThenPredictChanceOf for each of the 3 childs of each Node,
+	so each prediction is calculated once, instead of again by each child reading it
+	and by the Node itself. predictionsStale[i] is true when weights of Node i
+	or chance of 1 of its childs changed since predictions[3*i] to predictions[3*i+2] were calculated.
+	*/
+	final double predictions[];
+	final boolean predictionsStale[];
+
+	/** What each Node observed of its 3 childs in its last run, blending observed and predicted chance,
+	which WeightKernels.updateWeights moves its weights toward. Written and read in the same run.
+	*/
+	final double observe[];
+
+	/** All zeros, except predictionsStale is all true. The caller fills in the rest. */
+	NodeArrays(int size, int totalAxonSize){
+		this.size = size;
+		weights = new double[8*size];
+		chance = new double[size];
+		attention = new double[size];
+		chanceStdDev = new double[size];
+		accuracyMeasuredLastRun = new double[size];
+		attention_decayToward_aveAccuracyOfChance = new double[size];
+		bayesianWeights_decay = new double[size];
+		childs = new int[3*size];
+		axonStart = new int[size];
+		axonSize = new int[size];
+		memory = new double[size][];
+		memoryClock = new int[size];
+		predictions = new double[3*size];
+		observe = new double[3*size];
+		predictionsStale = new boolean[size];
+		Arrays.fill(predictionsStale, true);
+		axon = new int[totalAxonSize];
+		axonSlot = new byte[totalAxonSize];
+	}
+
+	/** Copies the state of the Nodes, which must include every child and axon Node of each of them.
+	Does not bind the Nodes as views of this. Cortex does that.
+	*/
+	NodeArrays(List<Node> nodes){
+		this(nodes.size(), totalAxonSize(nodes));
+		Map<Node,Integer> indexOf = new IdentityHashMap<Node,Integer>();
+		for(int i=0; i<size; i++){
+			if(indexOf.put(nodes.get(i), i) != null) throw new RuntimeException(
+				"Duplicate Node "+nodes.get(i));
+		}
+		int totalAxonSize = 0;
+		for(int i=0; i<size; i++){
+			nodes.get(i).copyInto(this, i, indexOf);
+			axonStart[i] = totalAxonSize;
+			totalAxonSize += axonSize[i];
+		}
+		for(int i=0; i<size; i++){
+			nodes.get(i).copyAxonInto(this, i, indexOf);
+		}
+	}
+
+	/** A copy of all state, for writing to a file while this keeps running */
+	NodeArrays copy(){
+		NodeArrays a = new NodeArrays(size, axon.length);
+		System.arraycopy(weights(), 0, a.weights, 0, weights.length);
+		System.arraycopy(chance, 0, a.chance, 0, size);
+		System.arraycopy(attention, 0, a.attention, 0, size);
+		System.arraycopy(chanceStdDev, 0, a.chanceStdDev, 0, size);
+		System.arraycopy(accuracyMeasuredLastRun, 0, a.accuracyMeasuredLastRun, 0, size);
+		System.arraycopy(attention_decayToward_aveAccuracyOfChance, 0, a.attention_decayToward_aveAccuracyOfChance, 0, size);
+		System.arraycopy(bayesianWeights_decay, 0, a.bayesianWeights_decay, 0, size);
+		System.arraycopy(childs, 0, a.childs, 0, childs.length);
+		System.arraycopy(axonStart, 0, a.axonStart, 0, size);
+		System.arraycopy(axonSize, 0, a.axonSize, 0, size);
+		System.arraycopy(axon, 0, a.axon, 0, axon.length);
+		System.arraycopy(axonSlot, 0, a.axonSlot, 0, axonSlot.length);
+		for(int i=0; i<size; i++){
+			if(memory[i] != null) a.memory[i] = memory[i].clone();
+		}
+		System.arraycopy(memoryClock, 0, a.memoryClock, 0, size);
+		return a;
+	}
+
+	/** A copy of this with Node i at index newIndexOf[i], which must have each index once.
+	childs and axon are renumbered to match, and the axon of each Node is laid out in the new order,
+	keeping the order of its parents so runSynchronous gives the same numbers as before.
+	Not active and not setFloatWeights, even if this is.
+	*/
+	NodeArrays permute(int newIndexOf[]){
+		if(newIndexOf.length != size) throw new IllegalArgumentException(
+			"newIndexOf.length="+newIndexOf.length+" but size="+size);
+		int oldIndexOf[] = new int[size];
+		Arrays.fill(oldIndexOf, -1);
+		for(int i=0; i<size; i++){
+			int n = newIndexOf[i];
+			if(n < 0 || n >= size || oldIndexOf[n] != -1) throw new IllegalArgumentException(
+				"newIndexOf is not a permutation at index "+i+": "+n);
+			oldIndexOf[n] = i;
+		}
+		NodeArrays a = new NodeArrays(size, axon.length);
+		double w[] = weights();
+		int axonTotal = 0;
+		for(int n=0; n<size; n++){
+			int i = oldIndexOf[n];
+			System.arraycopy(w, 8*i, a.weights, 8*n, 8);
+			a.chance[n] = chance[i];
+			a.attention[n] = attention[i];
+			a.chanceStdDev[n] = chanceStdDev[i];
+			a.accuracyMeasuredLastRun[n] = accuracyMeasuredLastRun[i];
+			a.attention_decayToward_aveAccuracyOfChance[n] = attention_decayToward_aveAccuracyOfChance[i];
+			a.bayesianWeights_decay[n] = bayesianWeights_decay[i];
+			for(int c=0; c<3; c++){
+				int child = childs[3*i+c];
+				a.childs[3*n+c] = child==-1 ? -1 : newIndexOf[child];
+			}
+			a.axonStart[n] = axonTotal;
+			a.axonSize[n] = axonSize[i];
+			for(int k=0; k<axonSize[i]; k++){
+				a.axon[axonTotal+k] = newIndexOf[axon[axonStart[i]+k]];
+				a.axonSlot[axonTotal+k] = axonSlot[axonStart[i]+k];
+			}
+			axonTotal += axonSize[i];
+			if(memory[i] != null) a.memory[n] = memory[i].clone();
+			a.memoryClock[n] = memoryClock[i];
+		}
+		return a;
+	}
+
+	/** A copy of this with size Nodes, the new ones after the old as leafs with no parents (free slots for link),
+	and room for axonSlack more parents after the axon of each Node, so link can add parents
+	without moving any other Node's axon. The room of Node i ends where the axon of Node i+1 starts.
+	Not active, even if this is.
+	*/
+	NodeArrays withCapacity(int size, int axonSlack){
+		if(size < this.size || axonSlack < 0) throw new IllegalArgumentException(
+			"size="+size+" is less than "+this.size+" or axonSlack="+axonSlack+" is negative");
+		long totalAxon = 0;
+		for(int i=0; i<this.size; i++) totalAxon += axonSize[i];
+		totalAxon += (long)size*axonSlack;
+		if(totalAxon > Integer.MAX_VALUE-8) throw new IllegalArgumentException(
+			"TODO axon of more than "+Integer.MAX_VALUE+" parents: "+totalAxon);
+		NodeArrays a = new NodeArrays(size, (int)totalAxon);
+		System.arraycopy(weights(), 0, a.weights, 0, weights.length);
+		System.arraycopy(chance, 0, a.chance, 0, this.size);
+		System.arraycopy(attention, 0, a.attention, 0, this.size);
+		System.arraycopy(chanceStdDev, 0, a.chanceStdDev, 0, this.size);
+		System.arraycopy(accuracyMeasuredLastRun, 0, a.accuracyMeasuredLastRun, 0, this.size);
+		System.arraycopy(attention_decayToward_aveAccuracyOfChance, 0, a.attention_decayToward_aveAccuracyOfChance,
+			0, this.size);
+		System.arraycopy(bayesianWeights_decay, 0, a.bayesianWeights_decay, 0, this.size);
+		System.arraycopy(childs, 0, a.childs, 0, childs.length);
+		System.arraycopy(axonSize, 0, a.axonSize, 0, this.size);
+		for(int i=0; i<this.size; i++){
+			if(memory[i] != null) a.memory[i] = memory[i].clone();
+		}
+		System.arraycopy(memoryClock, 0, a.memoryClock, 0, this.size);
+		for(int i=this.size; i<size; i++) a.clear(i);
+		int axonTotal = 0;
+		for(int i=0; i<size; i++){
+			a.axonStart[i] = axonTotal;
+			if(i < this.size){
+				System.arraycopy(axon, axonStart[i], a.axon, axonTotal, axonSize[i]);
+				System.arraycopy(axonSlot, axonStart[i], a.axonSlot, axonTotal, axonSize[i]);
+			}
+			axonTotal += a.axonSize[i]+axonSlack;
+		}
+		return a;
+	}
+
+	/** How many parents Node i has room for before its axon runs into the next Node's */
+	public int axonCapacity(int i){
+		return (i+1<size ? axonStart[i+1] : axon.length)-axonStart[i];
+	}
+
+	/** Makes Node i a leaf with no halfSpeed levels and the defaults of the Node constructor */
+	private void clear(int i){
+		Arrays.fill(weights(), 8*i, 8*i+8, 1./8);
+		chance[i] = .5;
+		attention[i] = .5;
+		chanceStdDev[i] = .01;
+		accuracyMeasuredLastRun[i] = 0;
+		attention_decayToward_aveAccuracyOfChance[i] = .1;
+		bayesianWeights_decay[i] = .1;
+		childs[3*i] = childs[3*i+1] = childs[3*i+2] = -1;
+		memory[i] = null;
+		memoryClock[i] = 0;
+		predictionsStale[i] = true;
+	}
+
+	/** Removes Node i, which must have childs and no parents, from the axon of each of its childs
+	by moving the last parent there into its place, then clears it to a leaf like a new Node.
+	Costs the axonSize of its childs. The order of their other parents changes,
+	which changes their chanceStdDev and accuracy only by roundoff.
+	*/
+	void unlink(int i){
+		if(axonSize[i] != 0) throw new IllegalArgumentException("Node "+i+" has "+axonSize[i]+" parents");
+		if(childs[3*i] == -1) throw new IllegalArgumentException("Node "+i+" has no childs");
+		for(int s=0; s<3; s++){
+			int c = childs[3*i+s], start = axonStart[c], last = start+axonSize[c]-1;
+			int a = start;
+			while(a <= last && (axon[a] != i || axonSlot[a] != s)) a++;
+			if(a > last){
+				CortexMetrics.brokenLinks.increment();
+				throw new RuntimeException("Pair of links is broken. Node "+i+" is not in the axon of its child "+c);
+			}
+			axon[a] = axon[last];
+			axonSlot[a] = axonSlot[last];
+			axonSize[c]--;
+			schedule(c);
+		}
+		clear(i);
+	}
+
+	/** Makes Node i, a leaf with no parents, a thinking Node with childs x y z and the 8 weights
+	starting at w[offset], added to the end of the axon of each child.
+	Returns false and changes nothing if a child has no room (see withCapacity).
+	*/
+	boolean link(int i, int x, int y, int z, double w[], int offset){
+		if(childs[3*i] != -1 || axonSize[i] != 0) throw new IllegalArgumentException(
+			"Node "+i+" already has childs or parents");
+		if(x == y || x == z || y == z || x == i || y == i || z == i) throw new IllegalArgumentException(
+			"Childs of Node "+i+" must be 3 other Nodes: "+x+" "+y+" "+z);
+		if(axonSize[x] == axonCapacity(x) || axonSize[y] == axonCapacity(y) || axonSize[z] == axonCapacity(z)){
+			return false;
+		}
+		childs[3*i] = x;
+		childs[3*i+1] = y;
+		childs[3*i+2] = z;
+		for(int s=0; s<3; s++){
+			int c = childs[3*i+s], a = axonStart[c]+axonSize[c]++;
+			axon[a] = i;
+			axonSlot[a] = (byte)s;
+		}
+		System.arraycopy(w, offset, weights(), 8*i, 8);
+		predictionsStale[i] = true;
+		schedule(i);
+		scheduleChilds(i);
+		return true;
+	}
+
+	/** The Nodes globals[0] to globals[owned-1], then ghosts globals[owned] to the end,
+	where localOf[g] is the index in the result of Node g of this, or -1 if not in globals.
+	Every child and parent of the owned Nodes must be in globals, and their axons keep their order
+	so runSynchronous of the owned Nodes gives the same numbers as here.
+	Ghosts are copies of chance, attention, accuracy and chanceStdDev only, as leafs with no parents,
+	for ShardWorker to write each step.
+	*/
+	NodeArrays subset(int globals[], int owned, int localOf[]){
+		int axonTotal = 0;
+		for(int k=0; k<owned; k++) axonTotal += axonSize[globals[k]];
+		NodeArrays a = new NodeArrays(globals.length, axonTotal);
+		axonTotal = 0;
+		for(int k=0; k<globals.length; k++){
+			int i = globals[k];
+			a.chance[k] = chance[i];
+			a.attention[k] = attention[i];
+			a.accuracyMeasuredLastRun[k] = accuracyMeasuredLastRun[i];
+			a.chanceStdDev[k] = chanceStdDev[i];
+			a.attention_decayToward_aveAccuracyOfChance[k] = attention_decayToward_aveAccuracyOfChance[i];
+			a.bayesianWeights_decay[k] = bayesianWeights_decay[i];
+			System.arraycopy(weights(), 8*i, a.weights, 8*k, 8);
+			a.axonStart[k] = axonTotal;
+			if(k >= owned){
+				a.childs[3*k] = a.childs[3*k+1] = a.childs[3*k+2] = -1;
+				continue;
+			}
+			for(int c=0; c<3; c++){
+				int child = childs[3*i+c];
+				a.childs[3*k+c] = child==-1 ? -1 : localOf[child];
+				if(child != -1 && localOf[child] == -1) throw new IllegalArgumentException(
+					"Child "+child+" of Node "+i+" is not in globals");
+			}
+			a.axonSize[k] = axonSize[i];
+			for(int j=0; j<axonSize[i]; j++){
+				int parent = axon[axonStart[i]+j];
+				if(localOf[parent] == -1) throw new IllegalArgumentException(
+					"Parent "+parent+" of Node "+i+" is not in globals");
+				a.axon[axonTotal+j] = localOf[parent];
+				a.axonSlot[axonTotal+j] = axonSlot[axonStart[i]+j];
+			}
+			axonTotal += axonSize[i];
+			if(memory[i] != null) a.memory[k] = memory[i].clone();
+			a.memoryClock[k] = memoryClock[i];
+		}
+		return a;
+	}
+
+	private static int totalAxonSize(List<Node> nodes){
+		int sum = 0;
+		for(Node n : nodes) sum += n.axonSize();
+		return sum;
+	}
+
+	public double getChance(int i){ return chance[i]; }
+	public void setChance(int i, double c){
+		if(c < 0 || c > 1) throw new IllegalArgumentException(
+			"set chance="+c+" not in range 0 to 1");
+		changeChance(i, c);
+	}
+
+	/** setChance without the range check, for when the caller already checked c */
+	private void changeChance(int i, double c){
+		if(chance[i] != c){
+			chance[i] = c;
+			int end = axonStart[i]+axonSize[i];
+			for(int a=axonStart[i]; a<end; a++){
+				predictionsStale[axon[a]] = true;
+			}
+			if(scheduled != null && Math.abs(c-chanceWhenScheduled[i]) > activeEpsilon){
+				chanceWhenScheduled[i] = c;
+				schedule(i);
+				for(int a=axonStart[i]; a<end; a++){
+					//The parent's weights learn from this chance, and its predictions
+					//of the other childs are from this chance
+					schedule(axon[a]);
+					scheduleChilds(axon[a]);
+				}
+			}
+		}
+	}
+
+	/** Throws unless start to start+length-1 are all Node indexs */
+	void checkRange(int start, int length){
+		if(start < 0 || length < 0 || start+length > size) throw new IllegalArgumentException(
+			"Nodes "+start+" to "+(start+length)+" but NodeArrays has "+size);
+	}
+
+	private static void checkDecay(double decay){
+		if(decay < 0 || decay > 1) throw new IllegalArgumentException(
+			"decay="+decay+" not in range 0 to 1");
+	}
+
+	/** For each k from 0 to length-1, the same as setChance(start+k, chance*(1-decay) + decay*target[offset+k])
+	with 1 check of the index range. Decay 1 sets chance to target, since chance*0 is 0.
+	*/
+	public void blendChances(int start, double target[], int offset, int length, double decay){
+		checkRange(start, length);
+		checkDecay(decay);
+		double keep = 1-decay;
+		for(int k=0; k<length; k++){
+			int i = start+k;
+			double c = chance[i]*keep + decay*target[offset+k];
+			if(c < 0 || c > 1) throw new IllegalArgumentException(
+				"set chance="+c+" not in range 0 to 1, Node "+i);
+			changeChance(i, c);
+		}
+	}
+
+	public void blendChances(int start, float target[], int offset, int length, double decay){
+		checkRange(start, length);
+		checkDecay(decay);
+		double keep = 1-decay;
+		for(int k=0; k<length; k++){
+			int i = start+k;
+			double c = chance[i]*keep + decay*target[offset+k];
+			if(c < 0 || c > 1) throw new IllegalArgumentException(
+				"set chance="+c+" not in range 0 to 1, Node "+i);
+			changeChance(i, c);
+		}
+	}
+
+	/** Reads length targets from the position of target, moving it forward */
+	public void blendChances(int start, DoubleBuffer target, int length, double decay){
+		checkRange(start, length);
+		checkDecay(decay);
+		double keep = 1-decay;
+		for(int k=0; k<length; k++){
+			int i = start+k;
+			double t = target.get();
+			double c = chance[i]*keep + decay*t;
+			if(c < 0 || c > 1) throw new IllegalArgumentException(
+				"set chance="+c+" not in range 0 to 1, Node "+i);
+			changeChance(i, c);
+		}
+	}
+
+	/** For each k from 0 to length-1, Node indexs[offset+k] blends toward target[offset+k], in that order,
+	so a Node listed twice blends twice.
+	*/
+	public void blendChances(int indexs[], double target[], int offset, int length, double decay){
+		checkDecay(decay);
+		double keep = 1-decay;
+		for(int k=offset; k<offset+length; k++){
+			int i = indexs[k];
+			if(i < 0 || i >= size) throw new IllegalArgumentException(
+				"Node "+i+" but NodeArrays has "+size);
+			double c = chance[i]*keep + decay*target[k];
+			if(c < 0 || c > 1) throw new IllegalArgumentException(
+				"set chance="+c+" not in range 0 to 1, Node "+i);
+			changeChance(i, c);
+		}
+	}
+
+	public void blendChances(int indexs[], float target[], int offset, int length, double decay){
+		checkDecay(decay);
+		double keep = 1-decay;
+		for(int k=offset; k<offset+length; k++){
+			int i = indexs[k];
+			if(i < 0 || i >= size) throw new IllegalArgumentException(
+				"Node "+i+" but NodeArrays has "+size);
+			double c = chance[i]*keep + decay*target[k];
+			if(c < 0 || c > 1) throw new IllegalArgumentException(
+				"set chance="+c+" not in range 0 to 1, Node "+i);
+			changeChance(i, c);
+		}
+	}
+
+	/** Copies chance of Nodes start to start+length-1 into out[offset..offset+length-1].
+	getChanceStdDevs and getAccuracies are the same for those vars.
+	*/
+	public void getChances(int start, double out[], int offset, int length){
+		checkRange(start, length);
+		System.arraycopy(chance, start, out, offset, length);
+	}
+
+	public void getChances(int start, float out[], int offset, int length){
+		copy(chance, start, out, offset, length);
+	}
+
+	/** Puts length chances at the position of out, moving it forward */
+	public void getChances(int start, DoubleBuffer out, int length){
+		checkRange(start, length);
+		out.put(chance, start, length);
+	}
+
+	/** out[offset+k] = chance of Node indexs[offset+k] */
+	public void getChances(int indexs[], double out[], int offset, int length){
+		for(int k=offset; k<offset+length; k++) out[k] = chance[indexs[k]];
+	}
+
+	public void getChances(int indexs[], float out[], int offset, int length){
+		for(int k=offset; k<offset+length; k++) out[k] = (float)chance[indexs[k]];
+	}
+
+	public void getChanceStdDevs(int start, double out[], int offset, int length){
+		checkRange(start, length);
+		System.arraycopy(chanceStdDev, start, out, offset, length);
+	}
+
+	public void getChanceStdDevs(int start, float out[], int offset, int length){
+		copy(chanceStdDev, start, out, offset, length);
+	}
+
+	public void getAccuracies(int start, double out[], int offset, int length){
+		checkRange(start, length);
+		System.arraycopy(accuracyMeasuredLastRun, start, out, offset, length);
+	}
+
+	public void getAccuracies(int start, float out[], int offset, int length){
+		copy(accuracyMeasuredLastRun, start, out, offset, length);
+	}
+
+	public void getAttentions(int start, double out[], int offset, int length){
+		checkRange(start, length);
+		System.arraycopy(attention, start, out, offset, length);
+	}
+
+	public void getAttentions(int start, float out[], int offset, int length){
+		copy(attention, start, out, offset, length);
+	}
+
+	private void copy(double from[], int start, float out[], int offset, int length){
+		checkRange(start, length);
+		if(offset < 0 || offset+length > out.length) throw new IllegalArgumentException(
+			"out["+offset+" to "+(offset+length)+"] but out.length="+out.length);
+		for(int k=0; k<length; k++) out[offset+k] = (float)from[start+k];
+	}
+
+	public double getAttention(int i){ return attention[i]; }
+	public void setAttention(int i, double a){
+		if(a <= 0) throw new IllegalArgumentException(
+			"set attention="+a+" must be positive");
+		attention[i] = a;
+	}
+
+	public double getChanceStdDev(int i){ return chanceStdDev[i]; }
+
+	public double getAccuracyMeasuredLastRun(int i){ return accuracyMeasuredLastRun[i]; }
+
+	public int getAxonSize(int i){ return axonSize[i]; }
+
+	/** Returns 1 if Node i has no halfSpeed levels, the same as Node.halfSpeedDepth() */
+	public int halfSpeedDepth(int i){
+		return memory[i]==null ? 1 : 1+memory[i].length/9;
+	}
+
+	/** Runs every Node once, in index order. Each Node sees the changes
+	made by Nodes before it in the same run(), the same as running Node objects in a loop.
+	*/
+	public void run(){
+		weights();
+		if(timeNextRun != null){
+			runTimed();
+			return;
+		}
+		for(int i=0; i<size; i++){
+			run(i);
+		}
+	}
+
+	/** If not null, the next run() or runSynchronous adds how long leaf Nodes, thinking Nodes,
+	and halfSpeed levels took to it, then sets this back to null. runActive() only sets it to null.
+	*/
+	CortexMetrics timeNextRun;
+
+	/** The same as run() but measures the time of each range of leaf Nodes and thinking Nodes
+	(1 of each in the order of Cortex.newRandom) and of each Node's halfSpeed levels
+	*/
+	private void runTimed(){
+		CortexMetrics m = timeNextRun;
+		timeNextRun = null;
+		long leaf = 0, thinking = 0, halfSpeed = 0, rangeHalfSpeed = 0;
+		boolean rangeIsLeaf = size > 0 && childs[0] == -1;
+		long rangeStart = System.nanoTime();
+		for(int i=0; i<size; i++){
+			boolean isLeaf = childs[3*i] == -1;
+			if(isLeaf != rangeIsLeaf){
+				long now = System.nanoTime();
+				if(rangeIsLeaf) leaf += now-rangeStart-rangeHalfSpeed;
+				else thinking += now-rangeStart-rangeHalfSpeed;
+				rangeStart = now;
+				halfSpeed += rangeHalfSpeed;
+				rangeHalfSpeed = 0;
+				rangeIsLeaf = isLeaf;
+			}
+			//Same as run(i)
+			kernel.observe(i, observe, 3*i);
+			WeightKernels.updateWeights(weights, weights, observe, bayesianWeights_decay, childs, i, i+1);
+			if(memory[i] != null){
+				long t = System.nanoTime();
+				runHalfSpeedLevels(i, weights, attention);
+				rangeHalfSpeed += System.nanoTime()-t;
+			}
+			normWeights(weights, 8*i);
+		}
+		long now = System.nanoTime();
+		if(rangeIsLeaf) leaf += now-rangeStart-rangeHalfSpeed;
+		else thinking += now-rangeStart-rangeHalfSpeed;
+		m.addTimes(leaf, thinking, halfSpeed+rangeHalfSpeed);
+	}
+
+	/** Same as Node.run() for Node i */
+	public void run(int i){
+		if(weightsInFloat) weights();
+		kernel.observe(i, observe, 3*i);
+		learn(i);
+	}
+
+	/** Null unless setActive(true,...). Which Nodes are in scheduledList.
+	running is the other buffer, swapped with it each runActive().
+	*/
+	private boolean scheduled[], running[];
+
+	/** Nodes to run in the next runActive(), in the order they were scheduled.
+	runList is the other buffer, swapped with it each runActive().
+	*/
+	private int scheduledList[], runList[];
+
+	private int scheduledSize;
+
+	/** chance of each Node when it last scheduled its parents */
+	private double chanceWhenScheduled[];
+
+	private double activeEpsilon;
+
+	private int fullSweepEvery;
+
+	private long activeRuns;
+
+	/** Weights of the Node runActive() is running, from before it ran */
+	private final double weightsBefore[] = new double[8];
+
+	/** If active, runActive() runs only the Nodes whose inputs or own state moved
+	more than epsilon since they last ran, instead of all Nodes like run().
+	setChance(int,double) schedules the Node, its parents and their childs,
+	when chance moved more than epsilon since the Node last scheduled them.
+	A Node whose weights, attention, accuracy or chanceStdDev moved more than epsilon in its run
+	schedules itself and its childs (which read its predictions, attention and accuracy)
+	for the next runActive().
+	<br><br>
+	Changes smaller than epsilon, and halfSpeed levels that would have run in skipped runs,
+	are lost, so every fullSweepEvery runActive() (if more than 0) runs all Nodes.
+	Starts with all Nodes scheduled.
+	*/
+	public void setActive(boolean active, double epsilon, int fullSweepEvery){
+		if(!active){
+			scheduled = running = null;
+			scheduledList = runList = null;
+			chanceWhenScheduled = null;
+			return;
+		}
+		if(epsilon < 0) throw new IllegalArgumentException("epsilon="+epsilon+" is negative");
+		activeEpsilon = epsilon;
+		this.fullSweepEvery = fullSweepEvery;
+		if(scheduled == null){
+			scheduled = new boolean[size];
+			running = new boolean[size];
+			scheduledList = new int[size];
+			runList = new int[size];
+			scheduledSize = 0;
+			chanceWhenScheduled = chance.clone();
+			for(int i=0; i<size; i++) schedule(i);
+		}
+	}
+
+	public boolean isActive(){ return scheduled != null; }
+
+	public double activeEpsilon(){ return activeEpsilon; }
+
+	public int fullSweepEvery(){ return fullSweepEvery; }
+
+	/** Makes Node i run in the next runActive(). Does nothing if not active. */
+	public void schedule(int i){
+		if(scheduled != null && !scheduled[i]){
+			scheduled[i] = true;
+			scheduledList[scheduledSize++] = i;
+		}
+	}
+
+	private void scheduleChilds(int i){
+		int c = 3*i;
+		if(childs[c] != -1){
+			schedule(childs[c]);
+			schedule(childs[c+1]);
+			schedule(childs[c+2]);
+		}
+	}
+
+	/** Runs the scheduled Nodes once each, in index order like run(),
+	so a Node sees the changes of scheduled Nodes before it in the same runActive().
+	Costs about the number of scheduled Nodes, except every fullSweepEvery runs all of them.
+	Returns how many Nodes ran.
+	*/
+	public int runActive(){
+		if(scheduled == null) throw new RuntimeException("Call setActive(true,...) first");
+		timeNextRun = null;
+		weights();
+		activeRuns++;
+		if(fullSweepEvery > 0 && activeRuns%fullSweepEvery == 0){
+			for(int i=0; i<size; i++) schedule(i);
+		}
+		int n = scheduledSize;
+		int run[] = scheduledList;
+		scheduledList = runList;
+		runList = run;
+		boolean flags[] = scheduled;
+		scheduled = running;
+		running = flags;
+		scheduledSize = 0;
+		if(n > size/16){
+			//Scanning flags in index order costs less than sorting many indexs
+			for(int i=0; i<size; i++){
+				if(flags[i]){
+					flags[i] = false;
+					runAndSchedule(i);
+				}
+			}
+		}else{
+			Arrays.sort(run, 0, n);
+			for(int k=0; k<n; k++){
+				flags[run[k]] = false;
+				runAndSchedule(run[k]);
+			}
+		}
+		return n;
+	}
+
+	/** Runs Node i and schedules it and its childs if it moved more than activeEpsilon */
+	private void runAndSchedule(int i){
+		int w = 8*i;
+		double attentionBefore = attention[i], accuracyBefore = accuracyMeasuredLastRun[i];
+		double stdDevBefore = chanceStdDev[i];
+		System.arraycopy(weights, w, weightsBefore, 0, 8);
+		run(i);
+		double e = activeEpsilon;
+		boolean moved = Math.abs(attention[i]-attentionBefore) > e
+			|| Math.abs(accuracyMeasuredLastRun[i]-accuracyBefore) > e
+			|| Math.abs(chanceStdDev[i]-stdDevBefore) > e;
+		for(int j=0; j<8 && !moved; j++) moved = Math.abs(weights[w+j]-weightsBefore[j]) > e;
+		if(moved){
+			schedule(i);
+			scheduleChilds(i);
+		}
+	}
+
+	/** If setFloatWeights(true), runSynchronous keeps the 2 generations of weights here instead of weights
+	and weightsNext, as float32, which halves the memory bandwidth of the biggest arrays. Null until then.
+	*/
+	private float weights32[], weights32Next[];
+
+	/** True while weights32 has the latest weights and weights is out of date */
+	private boolean weightsInFloat;
+
+	private boolean floatWeights;
+
+	/** If true, runSynchronous stores the weights as float32 and does the weight update in float
+	(WeightKernels.float32, a jdk.incubator.vector kernel if it can load). They are rounded when
+	runSynchronous starts and stay float after, so they drift a little from double storage
+	(WeightKernels.testFloatAccuracy bounds how much). The predictions, halfSpeed levels and everything else stay double.
+	<br><br>
+	Anything else that reads or writes weights (run(), runActive, Plasticity, copy(), NodeArraysFile.save,
+	CortexCheckpointer, Node views) first copies them back into double by weights(), and the next runSynchronous
+	rounds them to float again, so doing that every step costs more bandwidth than float saves.
+	*/
+	public void setFloatWeights(boolean floatWeights){
+		if(!floatWeights){
+			weights();
+			weights32 = weights32Next = null;
+		}
+		this.floatWeights = floatWeights;
+	}
+
+	public boolean floatWeights(){ return floatWeights; }
+
+	/** weights, first copied back from float32 if runSynchronous left the latest weights there */
+	double[] weights(){
+		if(weightsInFloat){
+			float w32[] = weights32;
+			for(int j=0; j<w32.length; j++) weights[j] = w32[j];
+			weightsInFloat = false;
+		}
+		return weights;
+	}
+
+	/** Second generation of the vars that Nodes read from eachother, for runSynchronous.
+	Null until the first runSynchronous.
+	*/
+	private double weightsNext[], attentionNext[], accuracyNext[];
+
+	/** Below this many Nodes, a RecursiveAction runs its range instead of splitting it */
+	static final int nodesPerTask = 1024;
+
+	/** Runs every Node once, all reading generation t and writing generation t+1,
+	then swaps the generations. Unlike run(), no Node sees changes from other Nodes
+	in the same step, so the result is the same for any order and number of threads.
+	<br><br>
+	If pool is null, runs on the current thread. Else the Nodes are split into ranges
+	and run in that ForkJoinPool, and this returns after they all finish.
+	*/
+	public void runSynchronous(ForkJoinPool pool){
+		timing = timeNextRun;
+		timeNextRun = null;
+		predictSynchronous(pool, size);
+		finishSynchronous(pool, size);
+		timing = null;
+	}
+
+	/** The first half of runSynchronous for Nodes 0 to to-1: fills the predictions cache from generation t.
+	ShardWorker exchanges halo values between this and finishSynchronous.
+	*/
+	void predictSynchronous(ForkJoinPool pool, int to){
+		if(floatWeights && !weightsInFloat){
+			if(weights32 == null){
+				weights32 = new float[weights.length];
+				weights32Next = new float[weights.length];
+			}
+			for(int j=0; j<weights.length; j++) weights32[j] = (float)weights[j];
+			weightsInFloat = true;
+		}
+		if(!weightsInFloat && weightsNext == null) weightsNext = new double[weights.length];
+		if(attentionNext == null){
+			attentionNext = new double[size];
+			accuracyNext = new double[size];
+		}
+		if(pool == null){
+			updatePredictions(0, to);
+		}else{
+			pool.invoke(new RunRange(0, to, true));
+		}
+	}
+
+	/** The second half of runSynchronous for Nodes 0 to to-1: runs them into generation t+1
+	then swaps the generations (of all Nodes, so the others must not be read until written again)
+	*/
+	void finishSynchronous(ForkJoinPool pool, int to){
+		if(pool == null){
+			runSynchronous(0, to);
+		}else{
+			pool.invoke(new RunRange(0, to, false));
+		}
+		if(weightsInFloat){
+			float w[] = weights32;
+			weights32 = weights32Next;
+			weights32Next = w;
+		}else{
+			double w[] = weights;
+			weights = weightsNext;
+			weightsNext = w;
+		}
+		double att[] = attention;
+		attention = attentionNext;
+		attentionNext = att;
+		double acc[] = accuracyMeasuredLastRun;
+		accuracyMeasuredLastRun = accuracyNext;
+		accuracyNext = acc;
+	}
+
+	/** Same numbers as run(i) reading generation t and writing generation t+1 for each Node in the range, but the weights
+	of the whole range are updated then normalized in batches by WeightKernels,
+	each a simple loop over SoA arrays instead of a few lines between scalar code for each Node
+	*/
+	private void runSynchronous(int from, int to){
+		if(timing != null){
+			runSynchronousTimed(from, to);
+			return;
+		}
+		for(int i=from; i<to; i++){
+			synchronousKernel.observe(i, observe, 3*i);
+		}
+		updateWeightsSynchronous(from, to);
+		runHalfSpeedLevelsSynchronous(from, to);
+		normWeightsSynchronous(from, to);
+	}
+
+	/** WeightKernels.updateWeights from generation t into t+1, of the float32 weights if weightsInFloat */
+	private void updateWeightsSynchronous(int from, int to){
+		if(weightsInFloat){
+			WeightKernels.float32.updateWeights(weights32, weights32Next, observe, bayesianWeights_decay, childs,
+				from, to);
+		}else{
+			WeightKernels.updateWeights(weights, weightsNext, observe, bayesianWeights_decay, childs, from, to);
+		}
+	}
+
+	private void runHalfSpeedLevelsSynchronous(int from, int to){
+		for(int i=from; i<to; i++){
+			if(memory[i] == null) continue;
+			if(weightsInFloat) runHalfSpeedLevels(i, weights32Next, attentionNext);
+			else runHalfSpeedLevels(i, weightsNext, attentionNext);
+		}
+	}
+
+	private void normWeightsSynchronous(int from, int to){
+		if(weightsInFloat) WeightKernels.float32.normWeights(weights32Next, from, to);
+		else WeightKernels.normWeights(weightsNext, from, to);
+	}
+
+	/** timeNextRun during a runSynchronous, read by the threads running its ranges */
+	private volatile CortexMetrics timing;
+
+	/** The same as runSynchronous(from,to), measuring each batch, and the observe batch
+	in ranges of leaf Nodes and thinking Nodes. updateWeights and normWeights count as thinking Nodes.
+	*/
+	private void runSynchronousTimed(int from, int to){
+		long leaf = 0, thinking = 0;
+		boolean rangeIsLeaf = from < to && childs[3*from] == -1;
+		long rangeStart = System.nanoTime();
+		for(int i=from; i<to; i++){
+			boolean isLeaf = childs[3*i] == -1;
+			if(isLeaf != rangeIsLeaf){
+				long now = System.nanoTime();
+				if(rangeIsLeaf) leaf += now-rangeStart;
+				else thinking += now-rangeStart;
+				rangeStart = now;
+				rangeIsLeaf = isLeaf;
+			}
+			synchronousKernel.observe(i, observe, 3*i);
+		}
+		long t = System.nanoTime();
+		if(rangeIsLeaf) leaf += t-rangeStart;
+		else thinking += t-rangeStart;
+		updateWeightsSynchronous(from, to);
+		long t2 = System.nanoTime();
+		runHalfSpeedLevelsSynchronous(from, to);
+		long t3 = System.nanoTime();
+		normWeightsSynchronous(from, to);
+		thinking += t2-t+System.nanoTime()-t3;
+		timing.addTimes(leaf, thinking, t3-t2);
+	}
+
+	/** Fills the predictions cache from generation t before any Node writes generation t+1 */
+	private void updatePredictions(int from, int to){
+		for(int i=from; i<to; i++){
+			if(predictionsStale[i] && childs[3*i] != -1) synchronousKernel.updatePredictions(i);
+		}
+	}
+
+	private class RunRange extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final int from, to;
+		/** true to updatePredictions, false to run the Nodes */
+		final boolean predict;
+		RunRange(int from, int to, boolean predict){
+			this.from = from;
+			this.to = to;
+			this.predict = predict;
+		}
+		protected void compute(){
+			if(to-from <= nodesPerTask){
+				if(predict){
+					updatePredictions(from, to);
+				}else{
+					runSynchronous(from, to);
+				}
+			}else{
+				int mid = (from+to)>>>1;
+				invokeAll(new RunRange(from, mid, predict), new RunRange(mid, to, predict));
+			}
+		}
+	}
+
+	/** NodeKernel over these arrays. Reads generation t from weights, attention and accuracyMeasuredLastRun,
+	and writes Node i into them if inPlace, else into attentionNext and accuracyNext.
+	*/
+	private class Kernel extends NodeKernel{
+		Kernel(boolean inPlace){
+			super(inPlace);
+		}
+		double chance(int i){ return chance[i]; }
+		double chanceStdDev(int i){ return chanceStdDev[i]; }
+		void setChanceStdDev(int i, double stdDev){ chanceStdDev[i] = stdDev; }
+		double attentionIn(int i){ return attention[i]; }
+		void setAttentionOut(int i, double a){ (inPlace ? attention : attentionNext)[i] = a; }
+		double accuracyIn(int i){ return accuracyMeasuredLastRun[i]; }
+		void setAccuracyOut(int i, double a){ (inPlace ? accuracyMeasuredLastRun : accuracyNext)[i] = a; }
+		double attentionDecay(int i){ return attention_decayToward_aveAccuracyOfChance[i]; }
+		int child(int c){ return childs[c]; }
+		int axonStart(int i){ return axonStart[i]; }
+		int axonSize(int i){ return axonSize[i]; }
+		int axon(int a){ return axon[a]; }
+		int axonSlot(int a){ return axonSlot[a]; }
+		double weight(int w){ return weightsInFloat ? weights32[w] : weights[w]; }
+		double prediction(int p){ return predictions[p]; }
+		void setPrediction(int p, double prediction){ predictions[p] = prediction; }
+		boolean predictionsStale(int i){ return predictionsStale[i]; }
+		void setPredictionsStale(int i, boolean stale){ predictionsStale[i] = stale; }
+	}
+
+	/** For run() and runSynchronous. Same class so the JIT sees 1 kind of NodeKernel. */
+	private final Kernel kernel = new Kernel(true), synchronousKernel = new Kernel(false);
+
+	/** The part of Node.run() after observe, which reads and writes only Node i, in place:
+	moves its weights toward observe[3*i] to observe[3*i+2], runs its halfSpeed levels,
+	and normalizes its weights. MappedNodeArrays runs this on a NodeArrays of size 1
+	that it copies Node i into and out of.
+	*/
+	void learn(int i){
+		WeightKernels.updateWeights(weights, weights, observe, bayesianWeights_decay, childs, i, i+1);
+		runHalfSpeedLevels(i, weights, attention);
+		normWeights(weights, 8*i);
+	}
+
+	/** Same as Node.runHalfSpeedLevels(). Averages each pair of levels scheduled this run,
+	from the deepest pair to the pair of Node i and its first halfSpeed level.
+	*/
+	private void runHalfSpeedLevels(int i, double weights[], double attention[]){
+		if(!runHalfSpeedMemory(i, attention)) return;
+		double m[] = memory[i];
+		int w = 8*i;
+		for(int k=0; k<8; k++){
+			weights[w+k] = (weights[w+k]+m[k])/2;
+		}
+		normWeights(weights, w);
+		System.arraycopy(weights, w, m, 0, 8);
+	}
+
+	/** runHalfSpeedLevels for float32 weights. The levels stay double,
+	so the average of Node i and its first level is normalized in double then rounded into weights.
+	*/
+	private void runHalfSpeedLevels(int i, float weights[], double attention[]){
+		if(!runHalfSpeedMemory(i, attention)) return;
+		double m[] = memory[i];
+		int w = 8*i;
+		for(int k=0; k<8; k++){
+			m[k] = (weights[w+k]+m[k])/2;
+		}
+		normWeights(m, 0);
+		for(int k=0; k<8; k++) weights[w+k] = (float)m[k];
+	}
+
+	/** The part of runHalfSpeedLevels that doesn't read weights: counts the run, averages the deeper pairs
+	of levels scheduled this run, and the attention of Node i with its first level if that pair is scheduled.
+	Returns true if it is, and then the weights of Node i and its first level must be averaged.
+	*/
+	private boolean runHalfSpeedMemory(int i, double attention[]){
+		double m[] = memory[i];
+		if(m == null) return false;
+		int levels = halfSpeedLevelsToRun(++memoryClock[i], m.length/9);
+		for(int level=levels-1; level>0; level--){
+			averageHalfSpeedPair(m, 9*(level-1), 9*level);
+		}
+		if(levels == 0) return false;
+		attention[i] = (attention[i]+m[8])/2;
+		m[8] = attention[i];
+		return true;
+	}
+
+	/** How many halfSpeed levels, starting at level 0, run when the clock becomes clock.
+	Like carrying in a binary counter, level k runs when the lowest k+1 bits of clock are 0,
+	so once per 2^(k+1) runs.
+	*/
+	static int halfSpeedLevelsToRun(int clock, int levels){
+		return Math.min(Integer.numberOfTrailingZeros(clock), levels);
+	}
+
+	/** Averages the 9 doubles of halfSpeed level child into its parent level,
+	normalizes the weights, then copies them back into child
+	*/
+	static void averageHalfSpeedPair(double m[], int parent, int child){
+		m[parent+8] = (m[parent+8]+m[child+8])/2;
+		m[child+8] = m[parent+8];
+		for(int k=0; k<8; k++){
+			m[parent+k] = (m[parent+k]+m[child+k])/2;
+		}
+		normWeights(m, parent);
+		System.arraycopy(m, parent, m, child, 8);
+	}
+
+	/** Same as Node.normWeights() for the 8 weights starting at w[offset] */
+	static void normWeights(double w[], int offset){
+		double sum = w[offset]+w[offset+1]+w[offset+2]+w[offset+3]
+			+w[offset+4]+w[offset+5]+w[offset+6]+w[offset+7];
+		for(int k=0; k<8; k++){
+			w[offset+k] /= sum;
+		}
+	}
+
+	/** Same as Node.growMemoryBinaryList() for Node i */
+	public void growMemoryBinaryList(int i){
+		memory[i] = growHalfSpeedLevels(memory[i], weights(), 8*i);
+	}
+
+	/** Returns memory (or null for none) with 1 more level, whose weights are a copy
+	of the deepest level, or of weights[offset] to weights[offset+7] if there are no levels yet
+	*/
+	static double[] growHalfSpeedLevels(double memory[], double weights[], int offset){
+		int levels = memory==null ? 0 : memory.length/9;
+		double m2[] = new double[9*(levels+1)];
+		if(memory == null){
+			System.arraycopy(weights, offset, m2, 0, 8);
+		}else{
+			System.arraycopy(memory, 0, m2, 0, memory.length);
+			System.arraycopy(memory, memory.length-9, m2, memory.length, 8);
+		}
+		m2[m2.length-1] = .5; //Node constructor leaves attention at its default
+		return m2;
+	}
+
+	/** The 8 weights of Node i, for toString */
+	String weightsToString(int i){
+		StringBuilder sb = new StringBuilder("[");
+		for(int k=0; k<8; k++){
+			if(k > 0) sb.append(", ");
+			sb.append(weights()[8*i+k]);
+		}
+		return sb.append(']').toString();
+	}
+
+}
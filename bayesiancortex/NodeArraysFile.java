@@ -0,0 +1,209 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** Binary file of all state of a NodeArrays, written and read as whole arrays
+through a memory-mapped FileChannel, without Java serialization or walking objects.
+<br><br>
+Little-endian. A header of headerInts ints, then each array in this order,
+each starting at a multiple of 8 bytes:
+weights double[8*size], chance, attention, chanceStdDev, accuracyMeasuredLastRun,
+attention_decayToward_aveAccuracyOfChance, bayesianWeights_decay double[size],
+childs int[3*size], axonStart int[size], axonSize int[size], axon int[axonTotal],
+axonSlot byte[axonTotal], memoryLength int[size] (9 per halfSpeed level), memoryClock int[size],
+memory double[memoryTotal] (the halfSpeed levels of all Nodes in index order).
+<br><br>
+Each array is a section mapped on its own, so the file can be over 2 GB as long as each section isn't.
+MappedNodeArrays runs the Nodes in a file in place using the same sections.
+<br><br>
+Version 1 had no memoryClock.
+*/
+public class NodeArraysFile{
+
+	public static final int magic = 0x42435458; //"BCTX"
+
+	public static final int version = 2;
+
+	/** magic, version, size, axonTotal, memoryTotal, generation (a long in 2 ints), 1 unused. 32 bytes */
+	static final int headerInts = 8;
+
+	/** The sections of the file, in order, each starting at sectionOffsets(...)[section] */
+	static final int weightsSection = 0, chanceSection = 1, attentionSection = 2, chanceStdDevSection = 3,
+		accuracySection = 4, attentionDecaySection = 5, weightsDecaySection = 6, childsSection = 7,
+		axonStartSection = 8, axonSizeSection = 9, axonSection = 10, axonSlotSection = 11,
+		memoryLengthSection = 12, memoryClockSection = 13, memorySection = 14, sections = 15;
+
+	/** Writes a temp file in the same directory then renames it over file, so a crash or IOException
+	while writing leaves the old file, and a MappedNodeArrays that has the old file open keeps the old one.
+	Each section is mapped separately, so the file can be over 2 GB, but each section must be under it.
+	*/
+	public static void save(NodeArrays a, File file) throws IOException{
+		save(a, file, 0);
+	}
+
+	/** save(NodeArrays,File) with a generation in the header, which CortexCheckpointer uses
+	to tell which delta log blocks belong to this base. Files saved without one have generation 0.
+	*/
+	public static void save(NodeArrays a, File file, long generation) throws IOException{
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName()+".", ".tmp", dir);
+		boolean moved = false;
+		try{
+			write(a, temp, generation);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}finally{
+			if(!moved) temp.delete();
+		}
+	}
+
+	private static void write(NodeArrays a, File file, long generation) throws IOException{
+		int memoryTotal = 0;
+		for(int i=0; i<a.size; i++) if(a.memory[i] != null) memoryTotal += a.memory[i].length;
+		int axonTotal = a.axon.length;
+		long offsets[] = sectionOffsets(a.size, axonTotal, memoryTotal);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4*headerInts);
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(magic).putInt(version).putInt(a.size).putInt(axonTotal).putInt(memoryTotal).putLong(generation);
+			b.force();
+			section(channel, offsets, weightsSection, false).asDoubleBuffer().put(a.weights());
+			section(channel, offsets, chanceSection, false).asDoubleBuffer().put(a.chance);
+			section(channel, offsets, attentionSection, false).asDoubleBuffer().put(a.attention);
+			section(channel, offsets, chanceStdDevSection, false).asDoubleBuffer().put(a.chanceStdDev);
+			section(channel, offsets, accuracySection, false).asDoubleBuffer().put(a.accuracyMeasuredLastRun);
+			section(channel, offsets, attentionDecaySection, false).asDoubleBuffer()
+				.put(a.attention_decayToward_aveAccuracyOfChance);
+			section(channel, offsets, weightsDecaySection, false).asDoubleBuffer().put(a.bayesianWeights_decay);
+			section(channel, offsets, childsSection, false).asIntBuffer().put(a.childs);
+			section(channel, offsets, axonStartSection, false).asIntBuffer().put(a.axonStart);
+			section(channel, offsets, axonSizeSection, false).asIntBuffer().put(a.axonSize);
+			section(channel, offsets, axonSection, false).asIntBuffer().put(a.axon);
+			section(channel, offsets, axonSlotSection, false).put(a.axonSlot);
+			IntBuffer memoryLength = section(channel, offsets, memoryLengthSection, false).asIntBuffer();
+			for(int i=0; i<a.size; i++) memoryLength.put(a.memory[i]==null ? 0 : a.memory[i].length);
+			section(channel, offsets, memoryClockSection, false).asIntBuffer().put(a.memoryClock);
+			DoubleBuffer memory = section(channel, offsets, memorySection, false).asDoubleBuffer();
+			for(int i=0; i<a.size; i++){
+				if(a.memory[i] != null) memory.put(a.memory[i]);
+			}
+			channel.force(false);
+		}finally{
+			channel.close();
+		}
+	}
+
+	public static NodeArrays load(File file) throws IOException{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			int header[] = readHeader(channel, file);
+			int size = header[0], axonTotal = header[1];
+			long offsets[] = sectionOffsets(size, axonTotal, header[2]);
+			NodeArrays a = new NodeArrays(size, axonTotal);
+			section(channel, offsets, weightsSection, true).asDoubleBuffer().get(a.weights);
+			section(channel, offsets, chanceSection, true).asDoubleBuffer().get(a.chance);
+			section(channel, offsets, attentionSection, true).asDoubleBuffer().get(a.attention);
+			section(channel, offsets, chanceStdDevSection, true).asDoubleBuffer().get(a.chanceStdDev);
+			section(channel, offsets, accuracySection, true).asDoubleBuffer().get(a.accuracyMeasuredLastRun);
+			section(channel, offsets, attentionDecaySection, true).asDoubleBuffer()
+				.get(a.attention_decayToward_aveAccuracyOfChance);
+			section(channel, offsets, weightsDecaySection, true).asDoubleBuffer().get(a.bayesianWeights_decay);
+			section(channel, offsets, childsSection, true).asIntBuffer().get(a.childs);
+			section(channel, offsets, axonStartSection, true).asIntBuffer().get(a.axonStart);
+			section(channel, offsets, axonSizeSection, true).asIntBuffer().get(a.axonSize);
+			section(channel, offsets, axonSection, true).asIntBuffer().get(a.axon);
+			section(channel, offsets, axonSlotSection, true).get(a.axonSlot);
+			IntBuffer memoryLength = section(channel, offsets, memoryLengthSection, true).asIntBuffer();
+			section(channel, offsets, memoryClockSection, true).asIntBuffer().get(a.memoryClock);
+			DoubleBuffer memory = section(channel, offsets, memorySection, true).asDoubleBuffer();
+			for(int i=0; i<size; i++){
+				int length = memoryLength.get(i);
+				if(length != 0){
+					a.memory[i] = new double[length];
+					memory.get(a.memory[i]);
+				}
+			}
+			return a;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/** The generation given to save, or 0 */
+	public static long readGeneration(File file) throws IOException{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			readHeader(channel, file);
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4*headerInts);
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			return b.getLong(20);
+		}finally{
+			channel.close();
+		}
+	}
+
+	/** Checks the header and file size. Returns size, axonTotal, memoryTotal. */
+	static int[] readHeader(FileChannel channel, File file) throws IOException{
+		if(channel.size() < 4*headerInts) throw new IOException("Not a NodeArraysFile: "+file);
+		MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4*headerInts);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		if(b.getInt() != magic) throw new IOException("Not a NodeArraysFile: "+file);
+		int v = b.getInt();
+		if(v != version) throw new IOException("NodeArraysFile version "+v+" but can only read "+version+": "+file);
+		int size = b.getInt(), axonTotal = b.getInt(), memoryTotal = b.getInt();
+		long bytes = fileSize(size, axonTotal, memoryTotal);
+		if(channel.size() != bytes) throw new IOException(
+			"NodeArraysFile is "+channel.size()+" bytes but header says "+bytes+": "+file);
+		return new int[]{size, axonTotal, memoryTotal};
+	}
+
+	/** Maps 1 section, little-endian, READ_ONLY or READ_WRITE. The mapping stays valid after the channel closes. */
+	static MappedByteBuffer section(FileChannel channel, long offsets[], int section, boolean readOnly)
+			throws IOException{
+		long bytes = offsets[section+1]-offsets[section];
+		if(bytes > Integer.MAX_VALUE) throw new IOException(
+			"TODO map a section over 2 GB in parts. Section "+section+" is "+bytes+" bytes");
+		MappedByteBuffer b = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+			offsets[section], bytes);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	/** Where each section starts, then the file size. Int arrays are padded to a multiple of 8 bytes. */
+	static long[] sectionOffsets(int size, int axonTotal, int memoryTotal){
+		long bytes[] = new long[sections];
+		bytes[weightsSection] = 8L*8*size;
+		for(int s=chanceSection; s<=weightsDecaySection; s++) bytes[s] = 8L*size;
+		bytes[childsSection] = aligned(4L*3*size);
+		bytes[axonStartSection] = bytes[axonSizeSection] = aligned(4L*size);
+		bytes[axonSection] = aligned(4L*axonTotal);
+		bytes[axonSlotSection] = aligned(axonTotal);
+		bytes[memoryLengthSection] = bytes[memoryClockSection] = aligned(4L*size);
+		bytes[memorySection] = 8L*memoryTotal;
+		long offsets[] = new long[sections+1];
+		offsets[0] = 4*headerInts;
+		for(int s=0; s<sections; s++) offsets[s+1] = offsets[s]+bytes[s];
+		return offsets;
+	}
+
+	static long fileSize(int size, int axonTotal, int memoryTotal){
+		return sectionOffsets(size, axonTotal, memoryTotal)[sections];
+	}
+
+	static long aligned(long bytes){
+		return (bytes+7)&~7L;
+	}
+
+}
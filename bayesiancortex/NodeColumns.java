@@ -0,0 +1,30 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** Reads and blends the state of ranges of Nodes by index, which is all that inputs
+(Brainwave, Paintbrush, FrameFeeder) and outputs (CortexFrame, CortexRecorder) need,
+so they work the same on a Cortex, a NodeArrays, or a MappedNodeArrays image.
+See Cortex for what each does. Call between steps or while holding synchronized(Node.class).
+*/
+public interface NodeColumns{
+
+	/** For each k from 0 to length-1, Node start+k: chance = chance*(1-decay) + decay*target[offset+k] */
+	public void blendChances(int start, double target[], int offset, int length, double decay);
+
+	public void blendChances(int start, float target[], int offset, int length, double decay);
+
+	/** Node indexs[offset+k] blends toward target[offset+k], in order of k, so a Node listed twice blends twice */
+	public void blendChances(int indexs[], double target[], int offset, int length, double decay);
+
+	public void blendChances(int indexs[], float target[], int offset, int length, double decay);
+
+	/** Copies chance of Nodes start to start+length-1 into out[offset..offset+length-1], as floats */
+	public void getChances(int start, float out[], int offset, int length);
+
+	public void getChanceStdDevs(int start, float out[], int offset, int length);
+
+	public void getAccuracies(int start, float out[], int offset, int length);
+
+	public void getAttentions(int start, float out[], int offset, int length);
+
+}
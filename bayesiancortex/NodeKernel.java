@@ -0,0 +1,146 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** The part of Node.run() that reads other Nodes, observe and the predictions cache, written once
+over reads and writes of 1 value at a time by index in NodeArrays layout, so NodeArrays (Java arrays)
+and MappedNodeArrays (buffers of a mapped file) run the same code and give the same numbers.
+Each abstract method is 1 array or buffer access, which the JIT inlines.
+<br><br>
+The rest of Node.run() only reads and writes Node i (its weights and halfSpeed levels),
+so it is NodeArrays.learn, over arrays, and MappedNodeArrays runs it on a copy of 1 Node.
+<br><br>
+attention and accuracy are read from generation In and written to generation Out,
+which are the same arrays for run() and 2 generations for NodeArrays.runSynchronous.
+*/
+abstract class NodeKernel{
+
+	/** If true, In and Out are the same and stale predictions are updated when read,
+	so Nodes later in the same run see predictions from the new weights of Nodes before them.
+	Else runSynchronous already updated all predictions from generation t.
+	*/
+	final boolean inPlace;
+
+	NodeKernel(boolean inPlace){
+		this.inPlace = inPlace;
+	}
+
+	abstract double chance(int i);
+
+	abstract double chanceStdDev(int i);
+
+	abstract void setChanceStdDev(int i, double stdDev);
+
+	abstract double attentionIn(int i);
+
+	abstract void setAttentionOut(int i, double attention);
+
+	abstract double accuracyIn(int i);
+
+	abstract void setAccuracyOut(int i, double accuracy);
+
+	abstract double attentionDecay(int i);
+
+	/** childs[c], or -1 */
+	abstract int child(int c);
+
+	abstract int axonStart(int i);
+
+	abstract int axonSize(int i);
+
+	abstract int axon(int a);
+
+	abstract int axonSlot(int a);
+
+	/** weights[w] of generation In, which predictions are from */
+	abstract double weight(int w);
+
+	abstract double prediction(int p);
+
+	abstract void setPrediction(int p, double prediction);
+
+	abstract boolean predictionsStale(int i);
+
+	abstract void setPredictionsStale(int i, boolean stale);
+
+	/** The part of Node.run() before the weights change: chanceStdDev, accuracy, attention,
+	and observe[o] to observe[o+2] for WeightKernels.updateWeights
+	*/
+	final void observe(int i, double observe[], int o){
+		double accuracy = accuracyIn(i);
+		int axSize = axonSize(i);
+		if(axSize > 0){
+			double myChance = chance(i), myStdDev = chanceStdDev(i);
+			//Weighted mean and variance of observations are streamed (West 1979)
+			//so nothing is allocated per run.
+			double aveObservation = 0;
+			double sumOfSquares = 0;
+			double accuracySum = 0;
+			double totalAttentionSummedWithChance = 0;
+			int start = axonStart(i);
+			for(int a=0; a<axSize; a++){
+				int n = axon(start+a);
+				if(inPlace && predictionsStale(n)) updatePredictions(n);
+				double myChanceInN = prediction(3*n+axonSlot(start+a));
+				double stdDevScale = 1.5; //Display this many standard deviations
+				double normedObservation = .5 + .5*(myChanceInN-myChance)/(myStdDev*stdDevScale);
+				normedObservation = Math.max(0, Math.min(normedObservation, 1));
+				double nAttention = attentionIn(n);
+				totalAttentionSummedWithChance += nAttention;
+				double diff = normedObservation - aveObservation;
+				aveObservation += diff*nAttention/totalAttentionSummedWithChance;
+				sumOfSquares += nAttention*diff*(normedObservation - aveObservation);
+				accuracySum += accuracyIn(n)*nAttention;
+			}
+			if(axSize > 1){
+				double stdDev = Math.sqrt(sumOfSquares/totalAttentionSummedWithChance);
+				double decay = attentionDecay(i);
+				setChanceStdDev(i, myStdDev*(1-decay) + decay*stdDev);
+			}
+			if(myChance < 0 || myChance > 1){
+				CortexMetrics.attentionOutOfRange.increment();
+				throw new RuntimeException("attention out of range: "+myChance);
+			}
+			accuracy = accuracySum/totalAttentionSummedWithChance;
+		}
+
+		int c = 3*i;
+		if(child(c) != -1){
+			if(inPlace && predictionsStale(i)) updatePredictions(i);
+			double observedChanceX = chance(child(c));
+			double predictedChanceX = prediction(c);
+			double observedChanceY = chance(child(c+1));
+			double predictedChanceY = prediction(c+1);
+			double observedChanceZ = chance(child(c+2));
+			double predictedChanceZ = prediction(c+2);
+			double totalDiff = Math.abs(observedChanceX-predictedChanceX)
+				+Math.abs(observedChanceY-predictedChanceY)
+				+Math.abs(observedChanceZ-predictedChanceZ);
+			double diffFraction = totalDiff/3; //range 0 (least accurate) to 1
+			accuracy = Math.min(.1/(diffFraction+.1), 1);
+
+			double d = .02;
+			observe[o] = observedChanceX*d+(1-d)*predictedChanceX; //based on observing other 2
+			observe[o+1] = observedChanceY*d+(1-d)*predictedChanceY;
+			observe[o+2] = observedChanceZ*d+(1-d)*predictedChanceZ;
+			setPredictionsStale(i, true);
+		}
+		setAccuracyOut(i, accuracy);
+
+		double attDecay = attentionDecay(i);
+		double targetAtt = .5+.1*accuracy;
+		setAttentionOut(i, attentionIn(i)*(1-attDecay) + attDecay*targetAtt);
+	}
+
+	/** Fills predictions 3*i to 3*i+2 of Node i, which must have childs, from its weights and their chance */
+	final void updatePredictions(int i){
+		int c = 3*i, o = 8*i;
+		double chanceX = chance(child(c)), chanceY = chance(child(c+1)), chanceZ = chance(child(c+2));
+		for(int k=0; k<3; k++){
+			setPrediction(c+k, Node.observeOthersThenPredictChanceOf(k,
+				weight(o), weight(o+1), weight(o+2), weight(o+3), weight(o+4), weight(o+5), weight(o+6), weight(o+7),
+				chanceX, chanceY, chanceZ));
+		}
+		setPredictionsStale(i, false);
+	}
+
+}
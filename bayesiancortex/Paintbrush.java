@@ -0,0 +1,40 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** Paints chance toward a target brightness in a square of pixel Nodes,
+like the mouse does in InteractiveVisualCortexWindow. Positions are in screen pixels
+where each pixel Node is magnifyX by magnifyY screen pixels, so a pixel Node under
+the middle of the brush is painted once per screen pixel over it, the same as the mouse.
+*/
+public class Paintbrush{
+
+	public int width = 20;
+
+	public double decay = .03, targetBrightness = 1;
+
+	/** Reused for the pixel Nodes under the brush, 1 per screen pixel, and their targets */
+	private int indexs[] = new int[0];
+	private double target[] = new double[0];
+
+	/** The first pixels Nodes in cortex are virtualWidth per row */
+	public void paint(NodeColumns cortex, int pixels, int virtualWidth, int magnifyX, int magnifyY, int x, int y){
+		int size = 0, max = width*width;
+		if(indexs.length < max){
+			indexs = new int[max];
+			target = new double[max];
+		}
+		for(int xPixel=x-width/2; xPixel<x+width/2; xPixel++){
+			for(int yPixel=y-width/2; yPixel<y+width/2; yPixel++){
+				int virtualXPixel = xPixel/magnifyX;
+				int virtualYPixel = yPixel/magnifyY;
+				int i = virtualYPixel*virtualWidth + virtualXPixel;
+				if(i < 0 || i >= pixels) continue;
+				indexs[size] = i;
+				target[size++] = targetBrightness;
+			}
+		}
+		//n.setAttention(n.getAttention()*(1-decay) + decay*targetBrightness);
+		cortex.blendChances(indexs, target, 0, size, decay);
+	}
+
+}
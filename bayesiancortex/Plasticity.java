@@ -0,0 +1,213 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.SplittableRandom;
+
+/** Removes the least useful thinking Nodes and adds new randomly wired ones, a few per step,
+so the shape of the network keeps changing while it runs. See Cortex.setPlasticity(Plasticity),
+which calls step() after each run().
+<br><br>
+The constructor calls Cortex.reserve once, so every array is already as big as maxNodes will ever need,
+with axonSlack room in the axon of each Node. After that nothing is allocated or moved: a removed Node
+is unlinked from the axons of its childs by swapping the last parent into its place,
+and its index goes on a free list for the next new Node. Free slots are leafs with no parents,
+so they cost little in run(). So memory is maxNodes times about bytesPerNode(axonSlack),
+and steps per second stay the same however long it runs.
+<br><br>
+Each step looks at the next scanPerStep thinking Nodes, round robin, and removes up to prunePerStep
+of those with the lowest score, accuracyMeasuredLastRun*attention, below pruneBelow.
+Only Nodes with no parents, at least minAge steps old, are removed, so no other Node loses a child.
+Then it adds new Nodes into free slots until budget thinking Nodes are alive.
+Each new Node has 3 different childs, each a pixel or (half the time) a thinking Node,
+which must have room in its axon, else another is tried. Weights are random like GraphBuilder.
+<br><br>
+The pixels are never removed. Which Nodes are removed and added depends on seed and the state of the Nodes.
+A CortexCheckpointer must fullCheckpoint() after the structure changes, and reorder must not be
+called while this is used (make a new Plasticity after it).
+*/
+public class Plasticity{
+
+	public final Cortex cortex;
+
+	public final NodeArrays arrays;
+
+	/** Nodes 0 to pixels-1, which are never removed */
+	public final int pixels;
+
+	/** How many thinking Nodes to keep alive, at most maxNodes-pixels. Lower it to shrink. */
+	public int budget;
+
+	public int scanPerStep = 64, prunePerStep = 1;
+
+	/** Only Nodes whose score (up to about .6) is less than this are removed */
+	public double pruneBelow = 1;
+
+	/** Steps a new Node has to learn before it can be removed */
+	public int minAge = 200;
+
+	public long steps, pruned, grown;
+
+	/** New Nodes not added because no childs with room in their axon were found */
+	public long growFailed;
+
+	/** Thinking Nodes alive now */
+	public int alive;
+
+	private final SplittableRandom rand;
+
+	/** Free slots, as a stack */
+	private final int free[];
+
+	private int freeSize;
+
+	/** steps when each Node was added, for minAge. 0 for the Nodes there before. */
+	private final long born[];
+
+	/** Next thinking Node to scan */
+	private int hand;
+
+	/** Reused by step(), bigger if prunePerStep is raised */
+	private int worst[];
+	private double worstScore[];
+	private final double newWeights[] = new double[8];
+
+	/** About how many bytes each of maxNodes costs, counting the axon as 3 parents plus axonSlack,
+	not counting halfSpeed levels or the second generation of runSynchronous (80 more)
+	*/
+	public static long bytesPerNode(int axonSlack){
+		return 8*8 //weights
+			+6*8 //chance attention chanceStdDev accuracyMeasuredLastRun and 2 decays
+			+2*3*8 //predictions observe
+			+3*4+2*4+8+4+1 //childs axonStart axonSize memory memoryClock predictionsStale
+			+5*(3+axonSlack) //axon axonSlot
+			+4+8; //free born
+	}
+
+	/** Reserves maxNodes in cortex (see Cortex.reserve) with axonSlack room in each axon.
+	budget starts as the thinking Nodes already there.
+	*/
+	public Plasticity(Cortex cortex, int pixels, int maxNodes, int axonSlack, long seed){
+		if(pixels < 3 || pixels > cortex.size()) throw new IllegalArgumentException(
+			"pixels="+pixels+" size="+cortex.size());
+		cortex.reserve(maxNodes, axonSlack);
+		this.cortex = cortex;
+		this.arrays = cortex.getNodeArrays();
+		this.pixels = pixels;
+		rand = new SplittableRandom(seed);
+		free = new int[arrays.size];
+		born = new long[arrays.size];
+		for(int i=arrays.size-1; i>=pixels; i--){
+			if(arrays.childs[3*i] == -1){
+				free[freeSize++] = i;
+			}else{
+				alive++;
+			}
+		}
+		budget = alive;
+		hand = pixels;
+		worst = new int[prunePerStep];
+		worstScore = new double[prunePerStep];
+	}
+
+	/** Removes then adds a few Nodes. Call between steps (Cortex.run() does) or while holding synchronized(Node.class). */
+	public void step(){
+		if(cortex.getNodeArrays() != arrays) throw new RuntimeException(
+			"Cortex was reordered or reserved again. Make a new Plasticity.");
+		steps++;
+		prune();
+		while(alive < budget && freeSize > 0){
+			if(!grow()) break;
+		}
+	}
+
+	/** Removes up to prunePerStep of the lowest scored removable Nodes in the next scanPerStep,
+	then, if over budget, up to prunePerStep more whatever their score
+	*/
+	private void prune(){
+		NodeArrays a = arrays;
+		int m = prunePerStep;
+		if(worst.length < m){
+			worst = new int[m];
+			worstScore = new double[m];
+		}
+		int n = 0;
+		for(int k=0; k<scanPerStep && k<a.size-pixels; k++){
+			int i = hand;
+			if(++hand == a.size) hand = pixels;
+			if(a.childs[3*i] == -1 || a.axonSize[i] != 0 || steps-born[i] < minAge) continue;
+			double score = a.accuracyMeasuredLastRun[i]*a.attention[i];
+			if(score >= pruneBelow) continue;
+			//Insert into worst, lowest score first
+			int j;
+			if(n < m) j = n++;
+			else if(m > 0 && score < worstScore[m-1]) j = m-1;
+			else continue;
+			while(j > 0 && worstScore[j-1] > score){
+				worst[j] = worst[j-1];
+				worstScore[j] = worstScore[j-1];
+				j--;
+			}
+			worst[j] = i;
+			worstScore[j] = score;
+		}
+		for(int k=0; k<n; k++) remove(worst[k]);
+		for(int k=0; k<m && alive>budget; k++){
+			if(!removeAny()) break;
+		}
+	}
+
+	private void remove(int i){
+		arrays.unlink(i);
+		free[freeSize++] = i;
+		alive--;
+		pruned++;
+	}
+
+	/** Removes the next removable Node after hand, whatever its score, for shrinking to budget */
+	private boolean removeAny(){
+		NodeArrays a = arrays;
+		for(int k=0; k<scanPerStep && k<a.size-pixels; k++){
+			int i = hand;
+			if(++hand == a.size) hand = pixels;
+			if(a.childs[3*i] != -1 && a.axonSize[i] == 0){
+				remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Adds a Node in the last free slot. Returns false if it couldn't find childs with room. */
+	private boolean grow(){
+		NodeArrays a = arrays;
+		int i = free[freeSize-1];
+		double sum;
+		do{
+			sum = 0;
+			for(int k=0; k<8; k++) sum += newWeights[k] = rand.nextDouble();
+		}while(sum == 0);
+		for(int k=0; k<8; k++) newWeights[k] /= sum;
+		for(int tries=0; tries<16; tries++){
+			int x = pickChild(i), y = pickChild(i), z = pickChild(i);
+			if(x == -1 || y == -1 || z == -1 || x == y || x == z || y == z) continue;
+			if(a.link(i, x, y, z, newWeights, 0)){
+				freeSize--;
+				born[i] = steps;
+				alive++;
+				grown++;
+				return true;
+			}
+		}
+		growFailed++;
+		return false;
+	}
+
+	/** A pixel or alive thinking Node other than i with room in its axon, or -1 if the one tried wasn't */
+	private int pickChild(int i){
+		NodeArrays a = arrays;
+		int c = alive < 10 || rand.nextBoolean() ? rand.nextInt(pixels) : pixels+rand.nextInt(a.size-pixels);
+		if(c == i || (c >= pixels && a.childs[3*c] == -1) || a.axonSize[c] == a.axonCapacity(c)) return -1;
+		return c;
+	}
+
+}
@@ -0,0 +1,104 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Frames of headerless bytes from a file or stream, 1 after another, such as from
+ffmpeg -f rawvideo -pix_fmt gray (or rgb24), or ffmpeg -f s16le for audio. Formats:
+<br>
+grey8: 1 byte per value, 0 to 255.
+<br>
+rgb24: 3 bytes per pixel, and each of red, green, and blue is its own value.
+<br>
+rgb24grey: 3 bytes per pixel, averaged into 1 value per pixel.
+<br>
+pcm16le: 2 bytes per value, signed 16 bit little-endian audio samples, -32768 to 32767.
+<br><br>
+All are scaled to range 0 to 1. A frame cut off at the end of the stream is ignored.
+*/
+public class RawFrameSource implements FrameSource{
+
+	public final String format;
+
+	public final int frameSize;
+
+	/** Null if not reading from a file */
+	public final File file;
+
+	/** If true, starts the file again at its end, so frames never run out */
+	public final boolean loop;
+
+	private InputStream in;
+
+	private final byte bytes[];
+
+	public RawFrameSource(File file, String format, int frameSize, boolean loop) throws IOException{
+		this(new BufferedInputStream(new FileInputStream(file), 1<<16), format, frameSize, file, loop);
+	}
+
+	public RawFrameSource(InputStream in, String format, int frameSize){
+		this(in, format, frameSize, null, false);
+	}
+
+	private RawFrameSource(InputStream in, String format, int frameSize, File file, boolean loop){
+		if(frameSize < 1) throw new IllegalArgumentException("frameSize="+frameSize);
+		int bytesPerFrame;
+		if(format.equals("grey8") || format.equals("rgb24")) bytesPerFrame = frameSize;
+		else if(format.equals("rgb24grey")) bytesPerFrame = 3*frameSize;
+		else if(format.equals("pcm16le")) bytesPerFrame = 2*frameSize;
+		else throw new IllegalArgumentException("Unknown format: "+format);
+		if(format.equals("rgb24") && frameSize%3 != 0) throw new IllegalArgumentException(
+			"rgb24 frameSize="+frameSize+" which is not divisible by 3");
+		this.in = in;
+		this.format = format;
+		this.frameSize = frameSize;
+		this.file = file;
+		this.loop = loop;
+		bytes = new byte[bytesPerFrame];
+	}
+
+	public int frameSize(){ return frameSize; }
+
+	public boolean read(float frame[]) throws IOException{
+		if(!readBytes()){
+			if(!loop) return false;
+			in.close();
+			in = new BufferedInputStream(new FileInputStream(file), 1<<16);
+			if(!readBytes()) return false; //file has less than 1 frame
+		}
+		byte b[] = bytes;
+		if(format.equals("grey8") || format.equals("rgb24")){
+			for(int i=0; i<frameSize; i++) frame[i] = (b[i]&0xff)/255f;
+		}else if(format.equals("rgb24grey")){
+			for(int i=0; i<frameSize; i++){
+				frame[i] = ((b[3*i]&0xff)+(b[3*i+1]&0xff)+(b[3*i+2]&0xff))/765f;
+			}
+		}else{
+			for(int i=0; i<frameSize; i++){
+				int sample = (short)((b[2*i]&0xff)|(b[2*i+1]<<8));
+				frame[i] = (sample+32768)/65535f;
+			}
+		}
+		return true;
+	}
+
+	/** Returns false if the stream ended before a whole frame */
+	private boolean readBytes() throws IOException{
+		int have = 0;
+		while(have < bytes.length){
+			int got = in.read(bytes, have, bytes.length-have);
+			if(got < 0) return false;
+			have += got;
+		}
+		return true;
+	}
+
+	public void close() throws IOException{
+		in.close();
+	}
+
+}
@@ -0,0 +1,199 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/** 1 shard of a ShardedCortex, usually in its own JVM, connected to the coordinator by a loopback socket.
+It owns Nodes 0 to owned-1 of its NodeArrays and has ghost copies of the Nodes of other shards
+that those read, after them. Each step it runs NodeArrays.runSynchronous of the owned Nodes in 2 halves,
+and before each half the coordinator relays the halo between shards: before predicting,
+the chance of ghosts that are childs of owned Nodes, and before running, the predictions, attention
+and accuracy of ghosts that are parents of owned Nodes. So the owned Nodes get the same numbers
+as runSynchronous of the whole network in 1 JVM.
+<br><br>
+Usage: java bayesiancortex.ShardWorker host port [threads]
+<br>
+threads=1 runs on the socket thread, more uses a ForkJoinPool for each half.
+*/
+public class ShardWorker implements Runnable{
+
+	static final int step = 1, get = 2, close = 3, done = 4;
+
+	/** Values per Node in the halo before predicting (chance) and before running (3 predictions, attention, accuracy) */
+	static final int childValues = 1, parentValues = 5;
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private final ForkJoinPool pool;
+
+	private int shard, shards, owned;
+
+	private NodeArrays arrays;
+
+	/** By other shard: local indexs of owned Nodes whose values it needs,
+	and of ghosts whose values it sends, in the same order as the other shard's lists
+	*/
+	private int sendChilds[][], sendParents[][], recvChilds[][], recvParents[][];
+
+	/** Reused for halo blocks */
+	private ByteBuffer buf = ByteBuffer.allocate(1<<16);
+
+	public ShardWorker(String host, int port, int threads) throws IOException{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1<<16));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1<<16));
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+
+	/** Reads the plan from the coordinator, then serves steps until it says close */
+	public void run(){
+		try{
+			readPlan();
+			while(true){
+				int command = in.readInt();
+				if(command == step){
+					step();
+				}else if(command == get){
+					get();
+				}else if(command == close){
+					break;
+				}else{
+					throw new IOException("Unknown command "+command);
+				}
+			}
+		}catch(IOException e){
+			throw new RuntimeException("Shard "+shard, e);
+		}finally{
+			try{
+				socket.close();
+			}catch(IOException e){}
+			if(pool != null) pool.shutdown();
+		}
+	}
+
+	private void readPlan() throws IOException{
+		shard = in.readInt();
+		shards = in.readInt();
+		owned = in.readInt();
+		arrays = NodeArraysFile.load(new File(in.readUTF()));
+		sendChilds = new int[shards][];
+		sendParents = new int[shards][];
+		recvChilds = new int[shards][];
+		recvParents = new int[shards][];
+		for(int s=0; s<shards; s++){
+			if(s == shard) continue;
+			sendChilds[s] = readInts();
+			sendParents[s] = readInts();
+			recvChilds[s] = readInts();
+			recvParents[s] = readInts();
+		}
+	}
+
+	private int[] readInts() throws IOException{
+		int a[] = new int[in.readInt()];
+		for(int i=0; i<a.length; i++) a[i] = in.readInt();
+		return a;
+	}
+
+	/** Inputs, then the 2 halves of runSynchronous with the halo exchanged before each */
+	private void step() throws IOException{
+		NodeArrays a = arrays;
+		int inputs = in.readInt();
+		for(int k=0; k<inputs; k++){
+			int i = in.readInt();
+			double target = in.readDouble(), decay = in.readDouble();
+			a.setChance(i, a.chance[i]*(1-decay) + decay*target);
+		}
+		exchange(sendChilds, recvChilds, childValues);
+		a.predictSynchronous(pool, owned);
+		exchange(sendParents, recvParents, parentValues);
+		a.finishSynchronous(pool, owned);
+		out.writeInt(done);
+		out.flush();
+	}
+
+	/** Writes 1 block per other shard, in order, then reads 1 block from each other shard, in order.
+	The coordinator reads all blocks before writing any, so this can't deadlock.
+	*/
+	private void exchange(int send[][], int recv[][], int values) throws IOException{
+		NodeArrays a = arrays;
+		for(int s=0; s<shards; s++){
+			if(s == shard) continue;
+			int nodes[] = send[s];
+			ByteBuffer b = buffer(8*values*nodes.length);
+			for(int i : nodes){
+				if(values == childValues){
+					b.putDouble(a.chance[i]);
+				}else{
+					b.putDouble(a.predictions[3*i]).putDouble(a.predictions[3*i+1]).putDouble(a.predictions[3*i+2]);
+					b.putDouble(a.attention[i]).putDouble(a.accuracyMeasuredLastRun[i]);
+				}
+			}
+			out.writeInt(b.position());
+			out.write(b.array(), 0, b.position());
+		}
+		out.flush();
+		for(int s=0; s<shards; s++){
+			if(s == shard) continue;
+			int nodes[] = recv[s];
+			int bytes = in.readInt();
+			if(bytes != 8*values*nodes.length) throw new IOException(
+				"Shard "+shard+" expected "+8*values*nodes.length+" bytes from shard "+s+" but got "+bytes);
+			ByteBuffer b = buffer(bytes);
+			in.readFully(b.array(), 0, bytes);
+			for(int i : nodes){
+				if(values == childValues){
+					a.chance[i] = b.getDouble();
+				}else{
+					a.predictions[3*i] = b.getDouble();
+					a.predictions[3*i+1] = b.getDouble();
+					a.predictions[3*i+2] = b.getDouble();
+					a.attention[i] = b.getDouble();
+					a.accuracyMeasuredLastRun[i] = b.getDouble();
+				}
+			}
+		}
+	}
+
+	/** buf, cleared, with room for bytes */
+	private ByteBuffer buffer(int bytes){
+		if(buf.capacity() < bytes) buf = ByteBuffer.allocate(Math.max(bytes, 2*buf.capacity()));
+		buf.clear();
+		return buf;
+	}
+
+	/** Writes a column (see ShardedCortex.chance etc) of the local indexs asked for */
+	private void get() throws IOException{
+		int column = in.readInt(), count = in.readInt();
+		NodeArrays a = arrays;
+		for(int k=0; k<count; k++){
+			int i = in.readInt();
+			double v;
+			if(column == ShardedCortex.chance) v = a.chance[i];
+			else if(column == ShardedCortex.attention) v = a.attention[i];
+			else if(column == ShardedCortex.accuracy) v = a.accuracyMeasuredLastRun[i];
+			else if(column == ShardedCortex.chanceStdDev) v = a.chanceStdDev[i];
+			else throw new IOException("Unknown column "+column);
+			out.writeDouble(v);
+		}
+		out.flush();
+	}
+
+	public static void main(String args[]) throws IOException{
+		new ShardWorker(args[0], Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1).run();
+	}
+
+}
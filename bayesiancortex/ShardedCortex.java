@@ -0,0 +1,404 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Runs a network split into shards, 1 ShardWorker each, in other JVMs on the same machine
+(or threads of this JVM, for testing), so it's not limited to 1 heap and 1 garbage collector.
+This is the coordinator. It writes each shard's NodeArrays to a temp file for its worker to load,
+then each step() is a barrier: it sends the inputs to the shards that own those Nodes,
+relays the 2 halo exchanges (see ShardWorker), and waits for all shards to finish the step.
+Workers connect to a loopback socket and the halo goes through this, as 1 block per pair of shards.
+<br><br>
+Every step gives the same numbers as NodeArrays.runSynchronous of the whole network.
+How much is exchanged depends on how many childs and parents are in other shards,
+so shardsByRegion (or any shardOf where connected Nodes are in the same shard) matters.
+With Cortex.newRandom's topology almost every Node is near a boundary. GraphBuilder.gridLocal is better.
+<br><br>
+Usage: java bayesiancortex.ShardedCortex [name=value]...
+<br>
+pixels=10000 virtualWidth=100 thinkingNodesPerPixel=5 topology=gridLocal seed=(random)
+shards=2 processes=true (false runs the workers as threads of this JVM) threadsPerShard=1
+workerJvmOptions=(none, space separated, such as -Xmx2g) steps=1000 reportSeconds=1
+check=0 (steps to compare against runSynchronous in this JVM, then stops)
+*/
+public class ShardedCortex{
+
+	/** Columns for get */
+	public static final int chance = 0, attention = 1, accuracy = 2, chanceStdDev = 3;
+
+	public final int size, shards;
+
+	/** Which shard owns each Node, and its index in that shard's NodeArrays */
+	private final int shardOf[], localOf[];
+
+	/** Owned Nodes of each shard */
+	public final int owned[];
+
+	/** Ghosts of each shard, which is the halo it reads from other shards each step */
+	public final int ghosts[];
+
+	private final ServerSocket server;
+
+	private final DataInputStream in[];
+
+	private final DataOutputStream out[];
+
+	private final File dir;
+
+	private final List<Process> processes = new ArrayList<Process>();
+
+	/** blocks[s][d] is the last halo block from shard s to shard d */
+	private final byte blocks[][][];
+
+	private final int blockSize[][];
+
+	/** Inputs for the next step, by shard: int index, double target, double decay each */
+	private final ByteBuffer inputs[];
+
+	private final int inputCount[];
+
+	public long steps, haloBytes;
+
+	/** Splits whole into shards by shardOf (0 to shards-1 for each Node) and starts a worker for each,
+	in its own JVM (with jvmOptions) if processes, else as daemon threads of this JVM.
+	Doesn't change or keep whole.
+	*/
+	public ShardedCortex(NodeArrays whole, int shardOf[], int shards, boolean processes, int threadsPerShard,
+			String... jvmOptions) throws IOException{
+		if(shardOf.length != whole.size || shards < 1) throw new IllegalArgumentException(
+			"shardOf.length="+shardOf.length+" size="+whole.size+" shards="+shards);
+		this.size = whole.size;
+		this.shards = shards;
+		this.shardOf = shardOf.clone();
+		localOf = new int[size];
+		owned = new int[shards];
+		ghosts = new int[shards];
+		for(int i=0; i<size; i++){
+			int s = shardOf[i];
+			if(s < 0 || s >= shards) throw new IllegalArgumentException("shardOf["+i+"]="+s);
+			localOf[i] = owned[s]++;
+		}
+		//ghostChilds[d][s] and ghostParents[d][s] are the Nodes of shard s that shard d reads as childs or parents, in index order
+		int ghostChilds[][][] = new int[shards][shards][], ghostParents[][][] = new int[shards][shards][];
+		int shardGlobals[][] = new int[shards][];
+		dir = Files.createTempDirectory("ShardedCortex").toFile();
+		for(int d=0; d<shards; d++){
+			boolean isChild[] = new boolean[size], isParent[] = new boolean[size];
+			for(int i=0; i<size; i++){
+				if(shardOf[i] != d) continue;
+				for(int c=3*i; c<3*i+3; c++){
+					int child = whole.childs[c];
+					if(child != -1 && shardOf[child] != d) isChild[child] = true;
+				}
+				for(int k=whole.axonStart[i]; k<whole.axonStart[i]+whole.axonSize[i]; k++){
+					int parent = whole.axon[k];
+					if(shardOf[parent] != d) isParent[parent] = true;
+				}
+			}
+			int g[] = new int[owned[d]];
+			int countChilds[] = new int[shards], countParents[] = new int[shards];
+			List<Integer> ghostList = new ArrayList<Integer>();
+			int n = 0;
+			for(int i=0; i<size; i++){
+				if(shardOf[i] == d) g[n++] = i;
+				else if(isChild[i] || isParent[i]) ghostList.add(i);
+				if(isChild[i]) countChilds[shardOf[i]]++;
+				if(isParent[i]) countParents[shardOf[i]]++;
+			}
+			ghosts[d] = ghostList.size();
+			int globals[] = Arrays.copyOf(g, owned[d]+ghosts[d]);
+			for(int k=0; k<ghosts[d]; k++) globals[owned[d]+k] = ghostList.get(k);
+			shardGlobals[d] = globals;
+			for(int s=0; s<shards; s++){
+				ghostChilds[d][s] = new int[countChilds[s]];
+				ghostParents[d][s] = new int[countParents[s]];
+				countChilds[s] = countParents[s] = 0;
+			}
+			for(int i=0; i<size; i++){
+				if(isChild[i]) ghostChilds[d][shardOf[i]][countChilds[shardOf[i]]++] = i;
+				if(isParent[i]) ghostParents[d][shardOf[i]][countParents[shardOf[i]]++] = i;
+			}
+			NodeArraysFile.save(whole.subset(globals, owned[d], shardLocal(globals)), new File(dir, "shard"+d));
+		}
+		server = new ServerSocket(0, shards, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(120000);
+		in = new DataInputStream[shards];
+		out = new DataOutputStream[shards];
+		for(int s=0; s<shards; s++) startWorker(processes, threadsPerShard, jvmOptions);
+		for(int s=0; s<shards; s++){
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			in[s] = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1<<16));
+			out[s] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1<<16));
+		}
+		for(int d=0; d<shards; d++){
+			int local[] = shardLocal(shardGlobals[d]);
+			DataOutputStream o = out[d];
+			o.writeInt(d);
+			o.writeInt(shards);
+			o.writeInt(owned[d]);
+			o.writeUTF(new File(dir, "shard"+d).getPath());
+			for(int s=0; s<shards; s++){
+				if(s == d) continue;
+				//What d sends s is what s reads from d
+				writeLocal(o, ghostChilds[s][d], localOf);
+				writeLocal(o, ghostParents[s][d], localOf);
+				writeLocal(o, ghostChilds[d][s], local);
+				writeLocal(o, ghostParents[d][s], local);
+			}
+			o.flush();
+		}
+		blocks = new byte[shards][shards][0];
+		blockSize = new int[shards][shards];
+		inputs = new ByteBuffer[shards];
+		inputCount = new int[shards];
+		for(int s=0; s<shards; s++) inputs[s] = ByteBuffer.allocate(1<<12);
+	}
+
+	/** Index in a shard's NodeArrays of each Node in it, -1 for others */
+	private int[] shardLocal(int globals[]){
+		int local[] = new int[size];
+		Arrays.fill(local, -1);
+		for(int k=0; k<globals.length; k++) local[globals[k]] = k;
+		return local;
+	}
+
+	private static void writeLocal(DataOutputStream o, int globals[], int local[]) throws IOException{
+		o.writeInt(globals.length);
+		for(int g : globals) o.writeInt(local[g]);
+	}
+
+	private void startWorker(boolean process, int threads, String jvmOptions[]) throws IOException{
+		final String host = "127.0.0.1", port = ""+server.getLocalPort();
+		if(process){
+			List<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			for(String o : jvmOptions) command.add(o);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ShardWorker.class.getName());
+			command.add(host);
+			command.add(port);
+			command.add(""+threads);
+			processes.add(new ProcessBuilder(command).inheritIO().start());
+		}else{
+			final ShardWorker w = new ShardWorker(host, Integer.parseInt(port), threads);
+			Thread t = new Thread(w, "ShardWorker");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Sets chance of Node start+k toward target[offset+k] for each k from 0 to length-1,
+	chance = chance*(1-decay) + decay*target, in the next step() before it runs, the same as Cortex.blendChances
+	*/
+	public void blendChances(int start, double target[], int offset, int length, double decay){
+		if(start < 0 || length < 0 || start+length > size) throw new IllegalArgumentException(
+			"Nodes "+start+" to "+(start+length-1)+" but size="+size);
+		if(decay < 0 || decay > 1) throw new IllegalArgumentException("decay="+decay+" not in range 0 to 1");
+		for(int k=0; k<length; k++){
+			double t = target[offset+k];
+			if(t < 0 || t > 1) throw new IllegalArgumentException("target="+t+" not in range 0 to 1");
+			int i = start+k, s = shardOf[i];
+			ByteBuffer b = inputs[s];
+			if(b.remaining() < 20){
+				ByteBuffer b2 = ByteBuffer.allocate(2*b.capacity());
+				b.flip();
+				b2.put(b);
+				inputs[s] = b = b2;
+			}
+			b.putInt(localOf[i]).putDouble(t).putDouble(decay);
+			inputCount[s]++;
+		}
+	}
+
+	public void setChances(int start, double chance[], int offset, int length){
+		blendChances(start, chance, offset, length, 1);
+	}
+
+	/** Runs all shards 1 step, with the inputs since the last step */
+	public void step() throws IOException{
+		for(int s=0; s<shards; s++){
+			out[s].writeInt(ShardWorker.step);
+			out[s].writeInt(inputCount[s]);
+			out[s].write(inputs[s].array(), 0, inputs[s].position());
+			out[s].flush();
+			inputs[s].clear();
+			inputCount[s] = 0;
+		}
+		relay();
+		relay();
+		for(int s=0; s<shards; s++){
+			int r = in[s].readInt();
+			if(r != ShardWorker.done) throw new IOException("Shard "+s+" answered "+r);
+		}
+		steps++;
+	}
+
+	/** Reads every halo block, then writes each to its shard. See ShardWorker.exchange. */
+	private void relay() throws IOException{
+		for(int s=0; s<shards; s++){
+			for(int d=0; d<shards; d++){
+				if(d == s) continue;
+				int bytes = in[s].readInt();
+				if(blocks[s][d].length < bytes) blocks[s][d] = new byte[bytes];
+				in[s].readFully(blocks[s][d], 0, bytes);
+				blockSize[s][d] = bytes;
+				haloBytes += bytes;
+			}
+		}
+		for(int d=0; d<shards; d++){
+			for(int s=0; s<shards; s++){
+				if(s == d) continue;
+				out[d].writeInt(blockSize[s][d]);
+				out[d].write(blocks[s][d], 0, blockSize[s][d]);
+			}
+			out[d].flush();
+		}
+	}
+
+	/** Copies column (chance, attention, accuracy or chanceStdDev) of Nodes start to start+length-1
+	into to[offset] to to[offset+length-1]. Call between steps.
+	*/
+	public void get(int column, int start, double to[], int offset, int length) throws IOException{
+		if(start < 0 || length < 0 || start+length > size) throw new IllegalArgumentException(
+			"Nodes "+start+" to "+(start+length-1)+" but size="+size);
+		int count[] = new int[shards];
+		for(int i=start; i<start+length; i++) count[shardOf[i]]++;
+		for(int s=0; s<shards; s++){
+			if(count[s] == 0) continue;
+			out[s].writeInt(ShardWorker.get);
+			out[s].writeInt(column);
+			out[s].writeInt(count[s]);
+			for(int i=start; i<start+length; i++){
+				if(shardOf[i] == s) out[s].writeInt(localOf[i]);
+			}
+			out[s].flush();
+			for(int i=start; i<start+length; i++){
+				if(shardOf[i] == s) to[offset+i-start] = in[s].readDouble();
+			}
+		}
+	}
+
+	/** Stops the workers and deletes the shard files */
+	public void close() throws IOException{
+		for(int s=0; s<shards; s++){
+			out[s].writeInt(ShardWorker.close);
+			out[s].flush();
+		}
+		for(Process p : processes){
+			try{
+				p.waitFor();
+			}catch(InterruptedException e){
+				throw new IOException(e);
+			}
+		}
+		server.close();
+		for(int s=0; s<shards; s++) new File(dir, "shard"+s).delete();
+		dir.delete();
+	}
+
+	/** Shards by area: the pixels (the first pixels Nodes, virtualWidth per row) in shards bands of rows,
+	then each other Node in the shard of most of its childs (the first child's if they're all different),
+	or by index if its childs come after it
+	*/
+	public static int[] shardsByRegion(NodeArrays a, int pixels, int virtualWidth, int shards){
+		int rows = pixels/virtualWidth;
+		int shardOf[] = new int[a.size];
+		for(int i=0; i<a.size; i++){
+			if(i < pixels){
+				shardOf[i] = (int)((long)(i/virtualWidth)*shards/rows);
+				continue;
+			}
+			int x = a.childs[3*i], y = a.childs[3*i+1], z = a.childs[3*i+2];
+			if(x == -1 || x >= i || y >= i || z >= i){
+				shardOf[i] = (int)((long)i*shards/a.size);
+			}else{
+				int sx = shardOf[x], sy = shardOf[y], sz = shardOf[z];
+				shardOf[i] = sy==sz ? sy : sx;
+			}
+		}
+		return shardOf;
+	}
+
+	public static void main(String args[]) throws IOException{
+		int pixels = 10000, virtualWidth = 100, thinkingNodesPerPixel = 5, shards = 2, threadsPerShard = 1;
+		String topology = GraphBuilder.gridLocal, workerJvmOptions = "";
+		long seed = System.nanoTime(), steps = 1000, check = 0;
+		boolean processes = true;
+		double reportSeconds = 1;
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0) throw new IllegalArgumentException("Not name=value: "+arg);
+			String name = arg.substring(0, eq), value = arg.substring(eq+1);
+			if(name.equals("pixels")) pixels = Integer.parseInt(value);
+			else if(name.equals("virtualWidth")) virtualWidth = Integer.parseInt(value);
+			else if(name.equals("thinkingNodesPerPixel")) thinkingNodesPerPixel = Integer.parseInt(value);
+			else if(name.equals("topology")) topology = value;
+			else if(name.equals("seed")) seed = Long.parseLong(value);
+			else if(name.equals("shards")) shards = Integer.parseInt(value);
+			else if(name.equals("processes")) processes = Boolean.parseBoolean(value);
+			else if(name.equals("threadsPerShard")) threadsPerShard = Integer.parseInt(value);
+			else if(name.equals("workerJvmOptions")) workerJvmOptions = value;
+			else if(name.equals("steps")) steps = Long.parseLong(value);
+			else if(name.equals("reportSeconds")) reportSeconds = Double.parseDouble(value);
+			else if(name.equals("check")) check = Long.parseLong(value);
+			else throw new IllegalArgumentException("Unknown name: "+arg);
+		}
+		NodeArrays whole = new GraphBuilder(topology, pixels, virtualWidth, thinkingNodesPerPixel, seed).build(null);
+		int shardOf[] = shardsByRegion(whole, pixels, virtualWidth, shards);
+		String options[] = workerJvmOptions.trim().isEmpty() ? new String[0] : workerJvmOptions.trim().split(" +");
+		long buildStart = System.nanoTime();
+		ShardedCortex sc = new ShardedCortex(whole, shardOf, shards, processes, threadsPerShard, options);
+		System.out.println("Started "+shards+" shards of "+whole.size+" Nodes in "+(System.nanoTime()-buildStart)/1e9
+			+" seconds. seed="+seed+" owned="+Arrays.toString(sc.owned)+" ghosts="+Arrays.toString(sc.ghosts));
+		if(check == 0) whole = null;
+		double target[] = new double[pixels];
+		double got[] = new double[check > 0 ? sc.size : 0];
+		long start = System.nanoTime(), lastReport = start, stepsAtLastReport = 0, haloAtLastReport = 0;
+		for(long step=0; step<(check>0 ? check : steps); step++){
+			//A sine wave moving across the pixels, instead of Brainwave which needs a Cortex
+			for(int i=0; i<pixels; i++) target[i] = .5 + .5*Math.sin(step*.1+Math.PI*2*i/pixels);
+			sc.blendChances(0, target, 0, pixels, .03);
+			sc.step();
+			if(whole != null){
+				for(int i=0; i<pixels; i++) whole.setChance(i, whole.chance[i]*(1-.03) + .03*target[i]);
+				whole.runSynchronous(null);
+				sc.get(attention, 0, got, 0, sc.size);
+				for(int i=0; i<sc.size; i++){
+					if(got[i] != whole.attention[i]) throw new RuntimeException("Step "+step+" Node "+i
+						+" attention "+got[i]+" in shard "+sc.shardOf[i]+" but "+whole.attention[i]+" in 1 JVM");
+				}
+			}
+			long now = System.nanoTime();
+			if(now-lastReport >= reportSeconds*1e9 || step+1 == steps){
+				double seconds = (now-lastReport)/1e9;
+				long s = sc.steps-stepsAtLastReport;
+				System.out.println("steps="+sc.steps+" steps/sec="+(float)(s/seconds)
+					+" node-updates/sec="+(float)(s*sc.size/seconds)
+					+" halo bytes/step="+(sc.haloBytes-haloAtLastReport)/Math.max(1, s));
+				lastReport = now;
+				stepsAtLastReport = sc.steps;
+				haloAtLastReport = sc.haloBytes;
+			}
+		}
+		if(check > 0) System.out.println("Same attention as runSynchronous in 1 JVM for "+check+" steps");
+		sc.close();
+		System.out.println("Total "+sc.steps+" steps in "+(System.nanoTime()-start)/1e9+" seconds");
+	}
+
+}
@@ -0,0 +1,185 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+/** A mip-pyramid of what a display shows of the first pixels Nodes, width per row
+(the last row can be short), for drawing canvases much bigger than the screen at any zoom.
+Level 0 has 1 tile per Node. Each tile of level L+1 is the 2x2 tiles of level L under it:
+mean chance, max chanceStdDev and mean accuracy of the Nodes it covers. The top level is 1 tile.
+A display reads only the tiles of 1 level that are on screen, so painting costs about screen pixels
+however many Nodes there are. See bayesiancortex.ui.TileDisplay.
+<br><br>
+update(NodeColumns, int) reads the Nodes and changes only the tiles above Nodes that moved
+more than epsilon since their tile was last changed, so a Node that changes slowly still updates
+once it has moved that much in total. It allocates nothing.
+<br><br>
+1 thread calls update, between steps or while holding synchronized(Node.class), and any thread
+can read the tiles without a lock after reading version. They can see a tile from during an update,
+which is fine for display, the same as a viewer of a MappedNodeArrays.
+*/
+public class TilePyramid{
+
+	public final int pixels, width, height, levels;
+
+	/** Tiles across and down at each level */
+	public final int levelWidth[], levelHeight[];
+
+	/** By level then tile (y*levelWidth+x) */
+	final float chance[][], chanceStdDev[][], accuracy[][];
+
+	/** Nodes under each tile, by level then tile, 0 for tiles past the last Node. Null at level 0 (1 each). */
+	final int count[][];
+
+	/** A Node whose chance, chanceStdDev or accuracy moved more than this changes its tiles */
+	public float epsilon = 1/512f;
+
+	/** Incremented at the end of each update that changed any tile */
+	public volatile long version;
+
+	/** Tiles changed by update, all levels */
+	public long tilesUpdated;
+
+	/** By level, which tiles to recalculate from the level under them, as flags and a list */
+	private final boolean dirty[][];
+	private final int dirtyList[][];
+	private final int dirtySize[];
+
+	private static final int nodesPerRead = 4096;
+
+	/** Reused by update for nodesPerRead Nodes at a time */
+	private final float readChance[], readStdDev[], readAccuracy[];
+
+	public TilePyramid(int pixels, int width){
+		if(pixels < 1 || width < 1) throw new IllegalArgumentException("pixels="+pixels+" width="+width);
+		this.pixels = pixels;
+		this.width = width;
+		height = (pixels+width-1)/width;
+		int n = 1;
+		for(int w=width, h=height; w>1 || h>1; w=(w+1)/2, h=(h+1)/2) n++;
+		levels = n;
+		levelWidth = new int[levels];
+		levelHeight = new int[levels];
+		chance = new float[levels][];
+		chanceStdDev = new float[levels][];
+		accuracy = new float[levels][];
+		count = new int[levels][];
+		dirty = new boolean[levels][];
+		dirtyList = new int[levels][];
+		dirtySize = new int[levels];
+		for(int level=0; level<levels; level++){
+			int w = level==0 ? width : (levelWidth[level-1]+1)/2;
+			int h = level==0 ? height : (levelHeight[level-1]+1)/2;
+			levelWidth[level] = w;
+			levelHeight[level] = h;
+			chance[level] = new float[w*h];
+			chanceStdDev[level] = new float[w*h];
+			accuracy[level] = new float[w*h];
+			if(level > 0){
+				count[level] = new int[w*h];
+				dirty[level] = new boolean[w*h];
+				dirtyList[level] = new int[w*h];
+				for(int t=0; t<w*h; t++){
+					int x = t%w, y = t/w;
+					for(int k=0; k<4; k++){
+						count[level][t] += count(level-1, 2*x+(k&1), 2*y+(k>>1));
+					}
+				}
+			}
+		}
+		int read = Math.min(pixels, nodesPerRead);
+		readChance = new float[read];
+		readStdDev = new float[read];
+		readAccuracy = new float[read];
+	}
+
+	/** Nodes under tile x y of level, 0 if past the last Node or outside the level */
+	public int count(int level, int x, int y){
+		if(x < 0 || y < 0 || x >= levelWidth[level] || y >= levelHeight[level]) return 0;
+		if(level == 0) return y*width+x < pixels ? 1 : 0;
+		return count[level][y*levelWidth[level]+x];
+	}
+
+	/** Mean chance of the Nodes under a tile. Its count must not be 0. */
+	public float chance(int level, int x, int y){
+		return chance[level][y*levelWidth[level]+x];
+	}
+
+	/** Max chanceStdDev of the Nodes under a tile */
+	public float chanceStdDev(int level, int x, int y){
+		return chanceStdDev[level][y*levelWidth[level]+x];
+	}
+
+	/** Mean accuracy of the Nodes under a tile */
+	public float accuracy(int level, int x, int y){
+		return accuracy[level][y*levelWidth[level]+x];
+	}
+
+	/** Reads Nodes start to start+pixels-1 and updates the tiles above those that moved more than epsilon.
+	Returns how many Nodes that was.
+	*/
+	public int update(NodeColumns nodes, int start){
+		float c0[] = chance[0], s0[] = chanceStdDev[0], a0[] = accuracy[0];
+		float e = epsilon;
+		int changed = 0;
+		for(int from=0; from<pixels; from+=nodesPerRead){
+			int length = Math.min(nodesPerRead, pixels-from);
+			nodes.getChances(start+from, readChance, 0, length);
+			nodes.getChanceStdDevs(start+from, readStdDev, 0, length);
+			nodes.getAccuracies(start+from, readAccuracy, 0, length);
+			for(int k=0; k<length; k++){
+				int t = from+k;
+				float c = readChance[k], s = readStdDev[k], a = readAccuracy[k];
+				if(Math.abs(c-c0[t]) > e || Math.abs(s-s0[t]) > e || Math.abs(a-a0[t]) > e){
+					c0[t] = c;
+					s0[t] = s;
+					a0[t] = a;
+					changed++;
+					if(levels > 1) markDirty(1, (t/width)/2*levelWidth[1] + (t%width)/2);
+				}
+			}
+		}
+		for(int level=1; level<levels; level++){
+			int list[] = dirtyList[level];
+			for(int d=0; d<dirtySize[level]; d++){
+				int t = list[d];
+				dirty[level][t] = false;
+				updateTile(level, t);
+				if(level+1 < levels){
+					int w = levelWidth[level];
+					markDirty(level+1, (t/w)/2*levelWidth[level+1] + (t%w)/2);
+				}
+			}
+			tilesUpdated += dirtySize[level];
+			dirtySize[level] = 0;
+		}
+		tilesUpdated += changed;
+		if(changed > 0) version++;
+		return changed;
+	}
+
+	private void markDirty(int level, int t){
+		if(!dirty[level][t]){
+			dirty[level][t] = true;
+			dirtyList[level][dirtySize[level]++] = t;
+		}
+	}
+
+	/** Recalculates tile t of level from the up to 4 tiles under it */
+	private void updateTile(int level, int t){
+		int w = levelWidth[level], x = t%w, y = t/w, below = level-1, wBelow = levelWidth[below];
+		float sumChance = 0, maxStdDev = 0, sumAccuracy = 0;
+		for(int k=0; k<4; k++){
+			int bx = 2*x+(k&1), by = 2*y+(k>>1);
+			int n = count(below, bx, by);
+			if(n == 0) continue;
+			int b = by*wBelow+bx;
+			sumChance += n*chance[below][b];
+			maxStdDev = Math.max(maxStdDev, chanceStdDev[below][b]);
+			sumAccuracy += n*accuracy[below][b];
+		}
+		int n = count[level][t];
+		chance[level][t] = sumChance/n;
+		chanceStdDev[level][t] = maxStdDev;
+		accuracy[level][t] = sumAccuracy/n;
+	}
+
+}
@@ -0,0 +1,62 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Hands the newest of a stream of reused objects (such as CortexFrame) from 1 producer thread
+to 1 consumer thread without locks, and without either waiting for the other.
+<br><br>
+The producer fills back() then calls publish(). The consumer calls latest() and reads it
+until its next call to latest(). Of 3 objects, the producer has 1, the consumer has 1,
+and the middle one is the last published. publish() and latest() each swap with the middle
+in 1 atomic operation. If the producer publishes again before the consumer takes the middle,
+the older one is dropped and counted in dropped.
+*/
+public class TripleBuffer<T>{
+
+	private final Object buffers[];
+
+	/** Only used by the producer */
+	private int back = 0;
+
+	/** Only used by the consumer */
+	private int front = 1;
+
+	/** Index of the middle buffer, plus fresh if it was published after the consumer last took it */
+	private final AtomicInteger middle = new AtomicInteger(2);
+
+	private static final int fresh = 4;
+
+	/** Only changed by the producer */
+	public volatile long published, dropped;
+
+	public TripleBuffer(T a, T b, T c){
+		buffers = new Object[]{a, b, c};
+	}
+
+	/** The object for the producer to fill next */
+	@SuppressWarnings("unchecked")
+	public T back(){
+		return (T)buffers[back];
+	}
+
+	/** Makes back() the newest for the consumer and gives the producer a different back() */
+	public void publish(){
+		int old = middle.getAndSet(back|fresh);
+		if((old&fresh) != 0) dropped++;
+		published++;
+		back = old&3;
+	}
+
+	/** The newest published object, which is the same as last call if nothing was published since.
+	Before the first publish(), the consumer's object as it was constructed.
+	*/
+	@SuppressWarnings("unchecked")
+	public T latest(){
+		if((middle.get()&fresh) != 0){
+			front = middle.getAndSet(front)&3;
+		}
+		return (T)buffers[front];
+	}
+
+}
@@ -0,0 +1,173 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** The bayesian weight update of Node.run() for a range of Nodes at once in NodeArrays layout
+(8 weights per Node at 8*i, 3 observations per Node at 3*i), as simple loops
+with no calls or branches between the 8 weights, which the JIT can unroll and vectorize.
+<br><br>
+The same for weights stored as float32 (NodeArrays.setFloatWeights), which halves the memory bandwidth
+of the biggest array, is float32: bayesiancortex.vector.VectorWeightKernels, where the 8 weights of a Node
+are 1 256-bit jdk.incubator.vector FloatVector, when java runs with --add-modules jdk.incubator.vector
+on a CPU with 256-bit vectors, else scalarFloat32, the same loops in float.
+testFloatAccuracy() bounds how far float storage moves the weights from double.
+*/
+public class WeightKernels{
+
+	/** For each Node from to to-1 with childs, the same as in Node.run():
+	out = in*(1-decay) + decay*(the chance of each of the 8 combinations of the observed childs).
+	Nodes with no childs copy their weights if in and out are different arrays.
+	Doesn't normalize. Call normWeights after that.
+	*/
+	public static void updateWeights(double in[], double out[], double observe[], double decay[], int childs[],
+			int from, int to){
+		for(int i=from; i<to; i++){
+			int w = 8*i, c = 3*i;
+			if(childs[c] == -1){
+				if(in != out) System.arraycopy(in, w, out, w, 8);
+				continue;
+			}
+			double x = observe[c], y = observe[c+1], z = observe[c+2], d = decay[i];
+			double notX = 1-x, notY = 1-y, notZ = 1-z, keep = 1-d;
+			out[w] = in[w]*keep + d*(notZ*notY*notX);
+			out[w+1] = in[w+1]*keep + d*(notZ*notY*x);
+			out[w+2] = in[w+2]*keep + d*(notZ*y*notX);
+			out[w+3] = in[w+3]*keep + d*(notZ*y*x);
+			out[w+4] = in[w+4]*keep + d*(z*notY*notX);
+			out[w+5] = in[w+5]*keep + d*(z*notY*x);
+			out[w+6] = in[w+6]*keep + d*(z*y*notX);
+			out[w+7] = in[w+7]*keep + d*(z*y*x);
+		}
+	}
+
+	/** Divides the 8 weights of each Node from to to-1 by their sum, the same as Node.normWeights() */
+	public static void normWeights(double w[], int from, int to){
+		for(int i=from; i<to; i++){
+			NodeArrays.normWeights(w, 8*i);
+		}
+	}
+
+	/** updateWeights in float. Same numbers as VectorWeightKernels. */
+	public static void updateWeights(float in[], float out[], double observe[], double decay[], int childs[],
+			int from, int to){
+		for(int i=from; i<to; i++){
+			int w = 8*i, c = 3*i;
+			if(childs[c] == -1){
+				if(in != out) System.arraycopy(in, w, out, w, 8);
+				continue;
+			}
+			float x = (float)observe[c], y = (float)observe[c+1], z = (float)observe[c+2], d = (float)decay[i];
+			float notX = 1-x, notY = 1-y, notZ = 1-z, keep = 1-d;
+			out[w] = in[w]*keep + d*(notZ*notY*notX);
+			out[w+1] = in[w+1]*keep + d*(notZ*notY*x);
+			out[w+2] = in[w+2]*keep + d*(notZ*y*notX);
+			out[w+3] = in[w+3]*keep + d*(notZ*y*x);
+			out[w+4] = in[w+4]*keep + d*(z*notY*notX);
+			out[w+5] = in[w+5]*keep + d*(z*notY*x);
+			out[w+6] = in[w+6]*keep + d*(z*y*notX);
+			out[w+7] = in[w+7]*keep + d*(z*y*x);
+		}
+	}
+
+	/** normWeights in float, summing in the order of FloatWeightKernels.normWeights */
+	public static void normWeights(float w[], int from, int to){
+		for(int i=from; i<to; i++){
+			int o = 8*i;
+			float sum = ((w[o]+w[o+4])+(w[o+2]+w[o+6]))+((w[o+1]+w[o+5])+(w[o+3]+w[o+7]));
+			for(int k=0; k<8; k++){
+				w[o+k] /= sum;
+			}
+		}
+	}
+
+	/** The float loops above */
+	public static final FloatWeightKernels scalarFloat32 = new FloatWeightKernels(){
+		public void updateWeights(float in[], float out[], double observe[], double decay[], int childs[],
+				int from, int to){
+			WeightKernels.updateWeights(in, out, observe, decay, childs, from, to);
+		}
+		public void normWeights(float w[], int from, int to){
+			WeightKernels.normWeights(w, from, to);
+		}
+	};
+
+	/** The float32 kernels that NodeArrays.runSynchronous uses: VectorWeightKernels if it loads, else scalarFloat32 */
+	public static final FloatWeightKernels float32 = loadVectorKernels();
+
+	/** VectorWeightKernels, by name since it is compiled only with --add-modules jdk.incubator.vector,
+	or scalarFloat32 if it isn't there, the JVM wasn't started with that module, or the CPU has smaller vectors
+	*/
+	private static FloatWeightKernels loadVectorKernels(){
+		try{
+			return (FloatWeightKernels)Class.forName("bayesiancortex.vector.VectorWeightKernels")
+				.getDeclaredConstructor().newInstance();
+		}catch(ReflectiveOperationException e){
+			return scalarFloat32;
+		}catch(LinkageError e){
+			return scalarFloat32;
+		}
+	}
+
+	/** A synchronous Cortex with float32 weights for this many steps has weights within maxFloatStorageDiff of double */
+	static final int floatStorageSteps = 500;
+
+	static final double maxFloatStorageDiff = 1e-5;
+
+	/** Throws if the weights of a synchronous Cortex with NodeArrays.setFloatWeights(true) are more than
+	maxFloatStorageDiff from the same Cortex in double after floatStorageSteps steps, or if float32
+	doesn't give exactly the same numbers as scalarFloat32. Returns the max diff of the weights.
+	*/
+	static double testFloatAccuracy() throws Exception{
+		HeadlessCortex d = new HeadlessCortex(900, 30, 5, 5, 1), f = new HeadlessCortex(900, 30, 5, 5, 1);
+		for(int i=900; i<d.cortex.size(); i+=7){
+			d.cortex.get(i).growMemoryBinaryList();
+			f.cortex.get(i).growMemoryBinaryList();
+		}
+		NodeArrays fa = f.cortex.getNodeArrays();
+		fa.setFloatWeights(true);
+		for(int step=0; step<floatStorageSteps; step++){
+			d.step();
+			f.step();
+		}
+		double dw[] = d.cortex.getNodeArrays().weights(), fw[] = fa.weights();
+		double storageDiff = 0;
+		for(int j=0; j<dw.length; j++) storageDiff = Math.max(storageDiff, Math.abs(dw[j]-fw[j]));
+		if(storageDiff > maxFloatStorageDiff) throw new Exception("testFloatAccuracy failed. Float weights differ by "
+			+storageDiff+" after "+floatStorageSteps+" steps, more than "+maxFloatStorageDiff);
+		if(storageDiff == 0) throw new Exception("testFloatAccuracy failed. Weights weren't float");
+		testFloat32SameAsScalar();
+		return storageDiff;
+	}
+
+	/** Throws unless float32 and scalarFloat32 give exactly the same numbers, for Nodes with and without childs */
+	static void testFloat32SameAsScalar() throws Exception{
+		Random rand = new Random(19);
+		int nodes = 1000;
+		float in[] = new float[8*nodes], a[] = new float[8*nodes], b[] = new float[8*nodes];
+		double observe[] = new double[3*nodes], decay[] = new double[nodes];
+		int childs[] = new int[3*nodes];
+		for(int j=0; j<in.length; j++) in[j] = rand.nextFloat()+.01f;
+		for(int j=0; j<observe.length; j++) observe[j] = rand.nextDouble();
+		for(int i=0; i<nodes; i++){
+			decay[i] = rand.nextDouble()*.2;
+			childs[3*i] = rand.nextInt(10)==0 ? -1 : 0;
+		}
+		float32.updateWeights(in, a, observe, decay, childs, 0, nodes);
+		scalarFloat32.updateWeights(in, b, observe, decay, childs, 0, nodes);
+		if(!Arrays.equals(a, b)) throw new Exception("testFloat32SameAsScalar failed. updateWeights differs, "
+			+float32.getClass().getName());
+		float32.normWeights(a, 0, nodes);
+		scalarFloat32.normWeights(b, 0, nodes);
+		if(!Arrays.equals(a, b)) throw new Exception("testFloat32SameAsScalar failed. normWeights differs, "
+			+float32.getClass().getName());
+	}
+
+	public static void main(String args[]) throws Exception{
+		System.out.println("Float32 weight kernels: "+(float32==scalarFloat32 ? "scalar" : float32.getClass().getName()));
+		System.out.println("Float32 weights differ from double by "+testFloatAccuracy()
+			+" after "+floatStorageSteps+" steps (limit "+maxFloatStorageDiff+")");
+	}
+
+}
@@ -0,0 +1,226 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.bench;
+import bayesiancortex.Brainwave;
+import bayesiancortex.Cortex;
+import bayesiancortex.Node;
+import bayesiancortex.Paintbrush;
+import bayesiancortex.WeightKernels;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/** Measures the speed of Node and Cortex stepping the same way every time,
+so performance changes to BayesianCortex can be compared.
+Reports nanoseconds and bytes allocated per Node run (node-step).
+<br><br>
+Each case runs for warmupSeconds so the JIT compiles it, then for measureSeconds.
+Bytes allocated are measured with ThreadMXBean, summed over all live threads, so the threads
+of a ForkJoinPool are counted (but not threads that end during the measurement, and not only the case).
+Full steps divide by the Nodes each step actually ran (Cortex.lastRunCount), which for runActive is fewer than all.
+<br><br>
+These are numbers from a simple harness, not JMH: cases run one after another in 1 JVM,
+with no forking and no Blackhole (results go into a volatile sink instead),
+so compare them only between runs on the same machine and JVM.
+TODO a JMH module, when BayesianCortex has a Maven or Gradle build.
+<br><br>
+Usage: java bayesiancortex.bench.CortexBenchmark [pixels...]
+<br>
+Default pixels are 2500 (like InteractiveVisualCortexWindow) and 250000.
+Cortex sizes are about 6 times pixels, and need about 1 GB heap per 250000 pixels.
+*/
+public class CortexBenchmark{
+
+	static double warmupSeconds = 2, measureSeconds = 3;
+
+	static final com.sun.management.ThreadMXBean threads =
+		(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	/** Results go here so the JIT can't skip calculating them */
+	static volatile double sink;
+
+	public static void main(String args[]){
+		int pixelCounts[] = new int[args.length==0 ? 2 : args.length];
+		if(args.length == 0){
+			pixelCounts[0] = 2500;
+			pixelCounts[1] = 250000;
+		}
+		for(int i=0; i<args.length; i++) pixelCounts[i] = Integer.parseInt(args[i]);
+		System.out.println("Harness numbers, not JMH: 1 JVM, no forking or Blackhole. Compare only on the same machine and JVM.");
+		System.out.println(String.format("%-52s %14s %14s", "case", "ns/node-step", "B/node-step"));
+		benchPredict();
+		for(int axonSize : new int[]{1, 4, 16, 64}) benchNodeRun(axonSize);
+		for(int depth : new int[]{0, 1, 3, 7}) benchHalfSpeedLevels(depth);
+		for(int pixels : pixelCounts) benchFullStep(pixels);
+	}
+
+	/** Node.observeOthersThenPredictChanceOf for all 3 childs of random weights */
+	static void benchPredict(){
+		Random rand = new Random(1);
+		final int n = 1024;
+		final double w[] = new double[8*n], c[] = new double[3*n];
+		for(int i=0; i<n; i++){
+			System.arraycopy(Node.newWeights(3, rand), 0, w, 8*i, 8);
+			for(int k=0; k<3; k++) c[3*i+k] = rand.nextDouble();
+		}
+		measure("observeOthersThenPredictChanceOf", 3*n, new Runnable(){
+			public void run(){
+				double sum = 0;
+				for(int i=0; i<n; i++){
+					int o = 8*i, k = 3*i;
+					for(int child=0; child<3; child++){
+						sum += Node.observeOthersThenPredictChanceOf(child, w[o], w[o+1], w[o+2], w[o+3],
+							w[o+4], w[o+5], w[o+6], w[o+7], c[k], c[k+1], c[k+2]);
+					}
+				}
+				sink = sum;
+			}
+		});
+	}
+
+	/** 1 Node with axonSize parents, each with 2 other leaf childs */
+	static void benchNodeRun(int axonSize){
+		Random rand = new Random(2);
+		final Node node = new Node("node");
+		for(int i=0; i<axonSize; i++){
+			Node childs[] = {node, new Node("leafY"+i), new Node("leafZ"+i)};
+			Node parent = new Node("parent"+i, .5, childs, Node.newWeights(3, rand));
+			for(Node c : childs) c.addToAxon(parent);
+		}
+		measure("Node.run axonSize="+axonSize, 1, node);
+	}
+
+	/** Node.run() of a Node with 3 childs and depth halfSpeed levels, run as a Node object and in NodeArrays.
+	The whole run is timed, since the halfSpeed levels are inside it, so also prints the difference
+	from depth 0, which is about what the halfSpeed levels cost.
+	*/
+	static void benchHalfSpeedLevels(int depth){
+		Random rand = new Random(3);
+		for(boolean useArrays : new boolean[]{false, true}){
+			Cortex cortex = new Cortex();
+			Node childs[] = {new Node("x"), new Node("y"), new Node("z")};
+			Node node = new Node("node", .5, childs, Node.newWeights(3, rand));
+			for(Node c : childs){
+				c.addToAxon(node);
+				cortex.add(c);
+			}
+			cortex.add(node);
+			for(int i=0; i<depth; i++) node.growMemoryBinaryList();
+			if(useArrays) cortex.useNodeArrays();
+			String name = useArrays ? " NodeArrays" : " Node";
+			double result[] = measure("Node.run halfSpeed depth="+depth+name, 1, node);
+			if(depth == 0){
+				depth0[useArrays ? 1 : 0] = result;
+			}else{
+				double base[] = depth0[useArrays ? 1 : 0];
+				System.out.println(String.format("%-52s %14.2f %14.3f", "  halfSpeed levels only, minus depth=0"+name,
+					result[0]-base[0], result[1]-base[1]));
+			}
+		}
+	}
+
+	/** ns and bytes of Node.run at halfSpeed depth 0, for Node objects and NodeArrays */
+	static double depth0[][] = new double[2][];
+
+	/** Same work as InteractiveVisualCortexWindow.nextState() without the display:
+	a moving band of sine wave pixels, a moving paintbrush, then run every Node.
+	*/
+	static void benchFullStep(int pixels){
+		int width = (int)Math.sqrt(pixels);
+		List<String> names = new ArrayList<String>();
+		List<FullStep> steps = new ArrayList<FullStep>();
+		names.add("Node objects");
+		steps.add(newFullStep(pixels, width, null));
+		names.add("NodeArrays run");
+		steps.add(newFullStep(pixels, width, "run"));
+		names.add("NodeArrays runSynchronous");
+		steps.add(newFullStep(pixels, width, "synchronous"));
+		names.add("NodeArrays runSynchronous commonPool");
+		steps.add(newFullStep(pixels, width, "pool"));
+		names.add("NodeArrays runSynchronous floatWeights "
+			+(WeightKernels.float32==WeightKernels.scalarFloat32 ? "scalar" : "vector"));
+		steps.add(newFullStep(pixels, width, "float"));
+		names.add("NodeArrays runActive epsilon=1e-4");
+		steps.add(newFullStep(pixels, width, "active"));
+		for(int i=0; i<steps.size(); i++){
+			measure("step pixels="+pixels+" "+names.get(i), steps.get(i));
+		}
+	}
+
+	/** A full step that counts the Nodes it ran */
+	static abstract class FullStep implements Runnable{
+		long nodeRuns;
+	}
+
+	static FullStep newFullStep(final int pixels, final int width, String mode){
+		final Cortex cortex = Cortex.newRandom(pixels, 5, new Random(4));
+		if("run".equals(mode)){
+			cortex.useNodeArrays();
+		}else if("synchronous".equals(mode)){
+			cortex.setSynchronous(true, null);
+		}else if("pool".equals(mode)){
+			cortex.setSynchronous(true, ForkJoinPool.commonPool());
+		}else if("float".equals(mode)){
+			cortex.setSynchronous(true, null);
+			cortex.getNodeArrays().setFloatWeights(true);
+		}else if("active".equals(mode)){
+			cortex.setActive(true, 1e-4, 100);
+		}
+		final Brainwave brainwave = new Brainwave();
+		final Paintbrush paintbrush = new Paintbrush();
+		return new FullStep(){
+			long runs;
+			public void run(){
+				runs++;
+				brainwave.step(cortex, pixels);
+				int x = (int)(runs*6%(width*6)), y = (int)(runs/width*6%(width*6));
+				paintbrush.paint(cortex, pixels, width, 6, 6, x, y);
+				cortex.run();
+				nodeRuns += cortex.lastRunCount();
+			}
+		};
+	}
+
+	/** Bytes allocated so far by all live threads */
+	static long allocatedBytes(){
+		long sum = 0;
+		for(long b : threads.getThreadAllocatedBytes(threads.getAllThreadIds())){
+			if(b > 0) sum += b;
+		}
+		return sum;
+	}
+
+	/** measure with the Nodes the step counted instead of a fixed number per call */
+	static double[] measure(String name, FullStep step){
+		return measure(name, 0, step, step);
+	}
+
+	static double[] measure(String name, long nodeStepsPerCall, Runnable r){
+		return measure(name, nodeStepsPerCall, r, null);
+	}
+
+	/** Prints and returns ns and bytes per node-step. If counted isn't null, node-steps are its nodeRuns. */
+	static double[] measure(String name, long nodeStepsPerCall, Runnable r, FullStep counted){
+		long end = System.nanoTime()+(long)(warmupSeconds*1e9);
+		while(System.nanoTime() < end) r.run();
+		long calls = 0;
+		long nodeRunsStart = counted==null ? 0 : counted.nodeRuns;
+		long bytesStart = allocatedBytes();
+		long start = System.nanoTime();
+		end = start+(long)(measureSeconds*1e9);
+		long now;
+		do{
+			for(int i=0; i<16; i++) r.run();
+			calls += 16;
+			now = System.nanoTime();
+		}while(now < end);
+		long bytes = allocatedBytes()-bytesStart;
+		double nodeSteps = counted==null ? (double)calls*nodeStepsPerCall : counted.nodeRuns-nodeRunsStart;
+		double result[] = {(now-start)/nodeSteps, bytes/nodeSteps};
+		System.out.println(String.format("%-52s %14.2f %14.3f", name, result[0], result[1]));
+		return result;
+	}
+
+}
@@ -0,0 +1,59 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.bench;
+import bayesiancortex.Cortex;
+import bayesiancortex.GraphOrder;
+
+import java.util.Random;
+
+/** Steps/sec of runSynchronous on the same Cortex.newRandom network in the order newRandom makes it
+and after Cortex.reorder(GraphOrder.cuthillMcKee), which give the same numbers
+so only the memory layout differs.
+<br><br>
+Java can't read the CPU's cache counters, so to compare L1 and last level cache miss rates,
+run 1 layout per JVM under perf, such as:
+<br>
+perf stat -e cycles,instructions,L1-dcache-loads,L1-dcache-load-misses,LLC-loads,LLC-load-misses
+java bayesiancortex.bench.LayoutBenchmark 1000000 random
+<br>
+then the same with reordered. Building the network and the JIT warmup are counted by perf too,
+so use enough seconds that stepping is most of the run.
+<br><br>
+Usage: java bayesiancortex.bench.LayoutBenchmark [pixels [random|reordered|both [seconds]]]
+<br>
+Defaults are 250000 pixels (about 1.5 million Nodes, bigger than most last level caches), both, 10 seconds.
+*/
+public class LayoutBenchmark{
+
+	public static void main(String args[]){
+		int pixels = args.length > 0 ? Integer.parseInt(args[0]) : 250000;
+		String layout = args.length > 1 ? args[1] : "both";
+		double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		if(!layout.equals("random") && !layout.equals("reordered") && !layout.equals("both")){
+			throw new IllegalArgumentException("Unknown layout: "+layout);
+		}
+		if(!layout.equals("reordered")) bench(pixels, false, seconds);
+		if(!layout.equals("random")) bench(pixels, true, seconds);
+	}
+
+	static void bench(int pixels, boolean reorder, double seconds){
+		Cortex cortex = Cortex.newRandom(pixels, 5, new Random(5));
+		cortex.setSynchronous(true, null);
+		long start = System.nanoTime();
+		if(reorder) cortex.reorder(GraphOrder.cuthillMcKee(cortex.getNodeArrays(), pixels));
+		double reorderSeconds = (System.nanoTime()-start)/1e9;
+		for(int i=0; i<3; i++) cortex.run(); //warmup
+		long steps = 0;
+		start = System.nanoTime();
+		long end = start+(long)(seconds*1e9), now;
+		do{
+			cortex.run();
+			steps++;
+			now = System.nanoTime();
+		}while(now < end);
+		double stepsPerSec = steps/((now-start)/1e9);
+		System.out.println((reorder ? "reordered" : "random")+" pixels="+pixels+" Nodes="+cortex.size()
+			+" steps/sec="+(float)stepsPerSec+" ns/node-step="+(float)(1e9/stepsPerSec/cortex.size())
+			+(reorder ? " reorder seconds="+(float)reorderSeconds : ""));
+	}
+
+}
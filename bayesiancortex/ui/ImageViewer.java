@@ -0,0 +1,98 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.ui;
+import bayesiancortex.CortexFrame;
+import bayesiancortex.MappedNodeArrays;
+import bayesiancortex.TilePyramid;
+import bayesiancortex.TripleBuffer;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import javax.swing.*;
+
+/** Watches a NodeArraysFile image while another process runs it, such as HeadlessCortex image=file,
+by mapping the same file read-only (MappedNodeArrays.open(file, true)) and copying the pixel Nodes
+into a OneNodePerPixelDisplay framesPerSecond times per second, or, with magnify 0,
+updating a TilePyramid of them for a TileDisplay, which zooms with the mouse wheel and pans by dragging.
+Nothing is sent between the processes and neither waits for the other,
+so a frame can be from the middle of a step.
+If the image is saved again, which replaces the file, the viewer keeps showing the old one until restarted.
+<br><br>
+Usage: java bayesiancortex.ui.ImageViewer file [framesPerSecond [pixels [virtualWidth [magnify]]]]
+<br>
+framesPerSecond defaults to 30, pixels to 2500, virtualWidth to the square root of pixels,
+and magnify to 6, or 0 if that wouldn't fit on a 1200x900 screen. The last row can be short.
+*/
+public class ImageViewer{
+
+	public static void main(String args[]) throws IOException{
+		MappedNodeArrays image = MappedNodeArrays.open(new File(args[0]), true);
+		double framesPerSecond = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+		int pixels = args.length > 2 ? Integer.parseInt(args[2]) : Math.min(2500, image.size);
+		int virtualWidth = args.length > 3 ? Integer.parseInt(args[3]) : (int)Math.round(Math.sqrt(pixels));
+		int virtualHeight = (pixels+virtualWidth-1)/virtualWidth;
+		int magnify = args.length > 4 ? Integer.parseInt(args[4])
+			: virtualWidth*6 <= 1200 && virtualHeight*6 <= 900 ? 6 : 0;
+		if(magnify == 0){
+			viewTiles(image, args[0], framesPerSecond, pixels, virtualWidth);
+			return;
+		}
+		final TripleBuffer<CortexFrame> frames = CortexFrame.newTripleBuffer(pixels);
+		final OneNodePerPixelDisplay display = new OneNodePerPixelDisplay(magnify, magnify, virtualWidth, frames, pixels);
+		final JLabel label = new JLabel("red=chance std dev, green=chance, blue=accuracy");
+		JFrame window = new JFrame("BayesianCortex image "+args[0]+" ("+image.size+" Nodes)");
+		window.setLayout(new BorderLayout());
+		window.add(label, BorderLayout.NORTH);
+		window.add(display, BorderLayout.CENTER);
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		window.setSize(virtualWidth*magnify+10, display.virtualHeight*magnify+40);
+		window.setVisible(true);
+		new Timer(16, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				display.repaint();
+			}
+		}).start();
+		long nanosPerFrame = (long)(1e9/framesPerSecond), nextFrame = System.nanoTime();
+		for(long frame=0; ; frame++){
+			CortexFrame f = frames.back();
+			f.copyFrom(image, 0);
+			f.step = frame;
+			frames.publish();
+			long sleep = nextFrame-System.nanoTime();
+			if(sleep > 0){
+				try{
+					Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+				}catch(InterruptedException e){}
+			}
+			nextFrame = Math.max(nextFrame+nanosPerFrame, System.nanoTime());
+		}
+	}
+
+	/** Updates a TilePyramid framesPerSecond times per second and repaints only when tiles changed */
+	static void viewTiles(MappedNodeArrays image, String name, double framesPerSecond, int pixels, int virtualWidth){
+		TilePyramid pyramid = new TilePyramid(pixels, virtualWidth);
+		final TileDisplay display = new TileDisplay(pyramid);
+		JFrame window = new JFrame("BayesianCortex image "+name+" ("+image.size+" Nodes)");
+		window.setLayout(new BorderLayout());
+		window.add(new JLabel("red=chance std dev, green=chance, blue=accuracy. Wheel zooms, drag pans."),
+			BorderLayout.NORTH);
+		window.add(display, BorderLayout.CENTER);
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		window.setSize(1000, 800);
+		window.setVisible(true);
+		long nanosPerFrame = (long)(1e9/framesPerSecond), nextFrame = System.nanoTime();
+		while(true){
+			if(pyramid.update(image, 0) > 0) display.repaint();
+			long sleep = nextFrame-System.nanoTime();
+			if(sleep > 0){
+				try{
+					Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+				}catch(InterruptedException e){}
+			}
+			nextFrame = Math.max(nextFrame+nanosPerFrame, System.nanoTime());
+		}
+	}
+
+}
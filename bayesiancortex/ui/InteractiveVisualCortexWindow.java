@@ -1,15 +1,40 @@
 /** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
 package bayesiancortex.ui;
+import bayesiancortex.Brainwave;
+import bayesiancortex.Cortex;
+import bayesiancortex.CortexFrame;
+import bayesiancortex.CortexMetrics;
+import bayesiancortex.FrameFeeder;
+import bayesiancortex.FrameSource;
 import bayesiancortex.Node;
+import bayesiancortex.Paintbrush;
+import bayesiancortex.RawFrameSource;
+import bayesiancortex.TripleBuffer;
 
 import java.awt.BorderLayout;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.Random;
 import javax.swing.*;
 
+/** The main thread steps the Cortex as its own simulation thread, copying the pixel Nodes
+into a CortexFrame after each step for the display, which a Swing Timer repaints about 60 times per second
+from the latest frame. Neither waits for the other. Frames made faster than they're painted are dropped.
+<br><br>
+Usage: java bayesiancortex.ui.InteractiveVisualCortexWindow [stepsPerSecond [threads] [inputFile inputFormat inputWidth inputHeight]]
+<br>
+stepsPerSecond defaults to 33, and 0 means as fast as possible.
+threads, if given, steps synchronously (Cortex.setSynchronous), 1 on the simulation thread or more in a ForkJoinPool.
+0, the default, runs the Nodes in order.
+CortexMetrics of the steps and painting are in JMX, such as jconsole.
+inputFile is fed into the pixels by a FrameFeeder instead of the Brainwave, 1 frame per step, looping.
+inputFormat is a RawFrameSource format. The mouse still paints.
+*/
 public class InteractiveVisualCortexWindow extends JFrame implements MouseMotionListener{
 	
 	static Random rand;
@@ -18,57 +43,66 @@ public class InteractiveVisualCortexWindow extends JFrame implements MouseMotion
 		rand.setSeed(System.nanoTime()+System.currentTimeMillis()+new Object().hashCode());
 	}
 	
+	/** The first Nodes in cortex, 1 per virtual pixel */
 	static List<Node> pixelNodes = new ArrayList<Node>();
 	
-	static List<Node> thinkingNodes = new ArrayList<Node>();
+	/** pixelNodes then thinking Nodes, run in that order */
+	static Cortex cortex;
 	
 	final OneNodePerPixelDisplay display;
 	
-	public static void main(String args[]){
+	/** From the simulation thread to the display */
+	final TripleBuffer<CortexFrame> frames;
+	
+	public static void main(String args[]) throws IOException{
+		double stepsPerSecond = args.length > 0 ? Double.parseDouble(args[0]) : 1000/30.;
 		
-		Node x = new Node("xx");
-		for(int i=0; i<2500; i++){
-			Node m = new Node("pixel"+i);
-			pixelNodes.add(m);
-		}
+		cortex = Cortex.newRandom(2500, 5, rand);
+		cortex.useNodeArrays();
+		pixelNodes = cortex.nodes().subList(0, 2500);
 		
-		int jEnd = 5;
-		for(int i=0; i<pixelNodes.size()-3; i++){
-			for(int j=0; j<jEnd; j++){
-				List<Node> childsList = new ArrayList<Node>();
-				while(childsList.size() < 3){
-					Node n;
-					if(thinkingNodes.size() < 10 || rand.nextBoolean()){
-						n = pixelNodes.get(rand.nextInt(pixelNodes.size()));
-					}else{
-						n = thinkingNodes.get(rand.nextInt(thinkingNodes.size()));
-					}
-					if(!childsList.contains(n)) childsList.add(n);
-				}
-				double w[] = Node.newWeights(childsList.size(), rand);
-				//double w[] = new double[]{0, .25, 0, .25, 0, .25, .25, 0}; //NAND
-				
-				double att = rand.nextDouble();
-				Node childs[] = childsList.toArray(new Node[0]);
-				Node m = new Node("secondLayer_"+i+"_"+j, .5, childs, Node.newWeights(3, rand));
-				for(Node c : childs) c.addToAxon(m);
-				thinkingNodes.add(m);
-			}
+		CortexMetrics metrics = new CortexMetrics(cortex);
+		cortex.setMetrics(metrics);
+		metrics.register("InteractiveVisualCortexWindow");
+		InteractiveVisualCortexWindow window = new InteractiveVisualCortexWindow(cortex, pixelNodes);
+		window.display.metrics = metrics;
+		int next = 1, threads = 0;
+		if(args.length > 1 && args[1].matches("[0-9]+")){
+			threads = Integer.parseInt(args[1]);
+			next = 2;
 		}
-		
-		InteractiveVisualCortexWindow window = new InteractiveVisualCortexWindow(pixelNodes);
+		if(threads > 0) cortex.setSynchronous(true, threads > 1 ? new ForkJoinPool(threads) : null);
+		if(args.length > next){
+			String format = args[next+1];
+			int width = Integer.parseInt(args[next+2]), height = Integer.parseInt(args[next+3]);
+			int channelsPerPixel = format.equals("rgb24") ? 3 : 1;
+			FrameSource source = new RawFrameSource(new File(args[next]), format, width*height*channelsPerPixel, true);
+			window.input = new FrameFeeder(source, 0, FrameFeeder.scaleToGrid(width, height, channelsPerPixel, 0,
+				window.display.virtualWidth, window.display.virtualHeight), 4);
+			window.input.decay = .03;
+		}
+		long nanosPerStep = stepsPerSecond > 0 ? (long)(1e9/stepsPerSecond) : 0;
+		long nextStep = System.nanoTime();
 		while(true){
 			window.nextState();
-			window.repaint();
-			try{
-				Thread.sleep(30L);
-			}catch(InterruptedException e){}
+			if(nanosPerStep > 0){
+				long sleep = nextStep-System.nanoTime();
+				if(sleep > 0){
+					try{
+						Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+					}catch(InterruptedException e){}
+				}
+				nextStep = Math.max(nextStep+nanosPerStep, System.nanoTime());
+			}
 		}
 	}
 	
-	double wave = 0;
+	final Brainwave brainwave = new Brainwave();
 	
-	int lineStart = 0;
+	final Paintbrush mousePaintbrush = new Paintbrush();
+	
+	/** If not null, fed into the pixels instead of the brainwave */
+	FrameFeeder input;
 	
 	long runs = 0;
 	
@@ -81,53 +115,38 @@ public class InteractiveVisualCortexWindow extends JFrame implements MouseMotion
 			//	for(int i=0; i<7; i++) n.growMemoryBinaryList();
 			//}
 			
-			wave += .1;
-			lineStart++;
-			int lineWidth = 50;
-			int start = lineStart*lineWidth, end = lineStart*lineWidth+1200;
-			double decay = .03;
-			for(int i=start; i<end; i++){
-				Node n = pixelNodes.get(i%pixelNodes.size());
-				double target = .5 + .5*Math.sin(wave+Math.PI*2*i/end);
-				//n.attention = n.attention*(1-decay) + decay*target;
-				n.setChance(n.getChance()*(1-decay) + decay*target);
-			}
-			
-			int mousePaintbrushWidth = 20;
-			for(int xPixel=mouseX-mousePaintbrushWidth/2; xPixel<mouseX+mousePaintbrushWidth/2; xPixel++){
-				for(int yPixel=mouseY-mousePaintbrushWidth/2; yPixel<mouseY+mousePaintbrushWidth/2; yPixel++){
-					int virtualXPixel = xPixel/display.pixelMagnifyX;
-					int virtualYPixel = yPixel/display.pixelMagnifyY;
-					int i = virtualYPixel*display.virtualWidth + virtualXPixel;
-					if(i < 0 || i >= pixelNodes.size()) continue;
-					Node n = pixelNodes.get(i);
-					double paintbrushDecay = .03;
-					double targetBrightness = 1;
-					//n.attention = n.attention*(1-paintbrushDecay) + paintbrushDecay*targetBrightness;
-					//n.setAttention(n.getAttention()*(1-paintbrushDecay) + paintbrushDecay*targetBrightness);
-					n.setChance(n.getChance()*(1-paintbrushDecay) + paintbrushDecay*targetBrightness);
+			if(input != null){
+				try{
+					input.feed(cortex);
+				}catch(IOException e){
+					throw new RuntimeException(e);
 				}
+			}else{
+				brainwave.step(cortex, pixelNodes.size());
 			}
+			mousePaintbrush.paint(cortex, pixelNodes.size(), display.virtualWidth,
+				display.pixelMagnifyX, display.pixelMagnifyY, mouseX, mouseY);
 			
-			for(Node n : pixelNodes){
-				n.run();
-			}
-			for(Node n : thinkingNodes){
-				n.run();
-			}
+			cortex.run();
 			//normalizeAttentions(pixelNodes);
 			//normalizeAttentions(thinkingNodes);
 			//System.out.println(list.get(10));
+			
+			CortexFrame frame = frames.back();
+			frame.copyFrom(cortex, 0);
+			frame.step = runs;
 		}
+		frames.publish();
 	}
 	
-	public InteractiveVisualCortexWindow(List<Node> nodes){
+	public InteractiveVisualCortexWindow(Cortex cortex, List<Node> nodes){
 		super("BayesianCortex");
 		setLayout(new BorderLayout());
 		add(new JLabel("red=chance std dev, green=chance, blue=accuracy"), BorderLayout.NORTH);
 		this.pixelNodes = nodes;
 		int magnifyX = 6, magnifyY = 6;
-		display = new OneNodePerPixelDisplay(magnifyX, magnifyY, 50, nodes);
+		frames = CortexFrame.newTripleBuffer(nodes.size());
+		display = new OneNodePerPixelDisplay(magnifyX, magnifyY, 50, frames, nodes.size());
 		int v = ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED;
 		int h = ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER;
 		add(display, BorderLayout.CENTER);
@@ -136,6 +155,11 @@ public class InteractiveVisualCortexWindow extends JFrame implements MouseMotion
 		setSize(new java.awt.Dimension(310, 340));
 		setLocation(300, 100);
 		setVisible(true);
+		new Timer(16, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				display.repaint();
+			}
+		}).start();
 	}
 	
 	/*public static void normalizeAttentions(List<Node> nodes){
@@ -161,7 +185,8 @@ public class InteractiveVisualCortexWindow extends JFrame implements MouseMotion
 		}
 	}*/
 	
-	int mouseX = 20, mouseY = 20;
+	/** Set by the Swing thread, read by the simulation thread */
+	volatile int mouseX = 20, mouseY = 20;
 	
 	public void mouseMoved(MouseEvent e){
 		mouseX = e.getX();
@@ -1,81 +1,83 @@
 /** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
 package bayesiancortex.ui;
+import bayesiancortex.CortexFrame;
+import bayesiancortex.CortexMetrics;
 import bayesiancortex.Node;
+import bayesiancortex.TripleBuffer;
 
-import javax.swing.AbstractAction;
-import javax.swing.JButton;
 import javax.swing.JPanel;
-import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Toolkit;
-import java.awt.Image;
-import java.awt.event.MouseEvent;
-import java.awt.event.MouseMotionListener;
-import java.awt.image.MemoryImageSource;
-import java.security.SecureRandom;
-import java.util.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
+/** Shows the first Nodes of a Cortex, 1 virtual pixel each, as red=chance std dev, green=chance, blue=accuracy.
+<br><br>
+The simulation thread copies those Nodes into a CortexFrame after each step and publishes it
+in a TripleBuffer. Each paint takes the latest frame without any lock, so painting and stepping
+don't wait for each other. If the frame is new, it computes 1 RGB int per Node into the DataBufferInt
+of a BufferedImage of 1 pixel per Node, which drawImage magnifies.
+So painting costs about the number of Nodes, not screen pixels, and allocates nothing per frame.
+For more Nodes than fit on the screen, use a TileDisplay.
+*/
 public class OneNodePerPixelDisplay extends JPanel /*implements MouseMotionListener*/{
 	
-	//final int color[];
+	final TripleBuffer<CortexFrame> frames;
 	
-	final int intArrayPixels[];
+	/** CortexFrame.step of the frame in image, so the same frame isn't colored twice */
+	long imageStep = -1;
 	
-	final MemoryImageSource memoryImageSource;
+	/** 1 pixel per Node */
+	final BufferedImage image;
 	
-	Image imageWrapsIntArrayPixels;
+	/** The pixels of image */
+	final int rgb[];
 	
-	List<Node> nodes;
+	/** virtualHeight rows of virtualWidth, the last of which is black after the last Node if pixels isn't a multiple */
+	public final int pixels, virtualWidth, virtualHeight, pixelMagnifyX, pixelMagnifyY;
 	
-	Random rand = new Random();
-	
-	public final int virtualWidth, virtualHeight, pixelMagnifyX, pixelMagnifyY;
+	/** If not null, each paint adds its time to this */
+	public volatile CortexMetrics metrics;
 	
 	/** width is in virtual pixels, before pixelMagnify* are applied.
 	If pixelMagnifyX is 3 and pixelMagnifyY is 2, each virtual pixel will be 3x2 pixels.
+	Displays frames of pixels Nodes, from CortexFrame.newTripleBuffer(pixels).
 	*/
-	public OneNodePerPixelDisplay(int pixelMagnifyX, int pixelMagnifyY, int virtualWidth, List<Node> nodes){
+	public OneNodePerPixelDisplay(int pixelMagnifyX, int pixelMagnifyY, int virtualWidth, TripleBuffer<CortexFrame> frames, int pixels){
 		this.pixelMagnifyX = pixelMagnifyX;
 		this.pixelMagnifyY = pixelMagnifyY;
-		if(nodes.size() % virtualWidth != 0) throw new RuntimeException(
-			"nodes.size()="+nodes.size()+" which is not divisible by width "+virtualWidth);
-		this.nodes = nodes;
+		if(virtualWidth < 1) throw new RuntimeException("width="+virtualWidth);
+		this.frames = frames;
+		this.pixels = pixels;
 		this.virtualWidth = virtualWidth;
-		virtualHeight = (int)Math.ceil(nodes.size()/virtualWidth);
-		if(virtualHeight < 1) throw new RuntimeException("nodes.size() is too small "+nodes.size());
-		intArrayPixels = new int[virtualWidth*pixelMagnifyX * virtualHeight*pixelMagnifyY];
-		memoryImageSource = new MemoryImageSource(virtualWidth*pixelMagnifyX, virtualHeight*pixelMagnifyY,
-			intArrayPixels, 0, virtualWidth*pixelMagnifyX);
-		imageWrapsIntArrayPixels = Toolkit.getDefaultToolkit().createImage(memoryImageSource);
+		virtualHeight = (pixels+virtualWidth-1)/virtualWidth;
+		if(virtualHeight < 1) throw new RuntimeException("pixels is too small "+pixels);
+		image = new BufferedImage(virtualWidth, virtualHeight, BufferedImage.TYPE_INT_RGB);
+		rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
 	}
-	
-	//long countPaints;
-	
-	double totalBrightLastTime;
 
 	public void paint(Graphics g){
-		//int color = (countPaints&1)==1 ? 0xffffff : 0;
-		//countPaints++;
-		//System.out.println("countpaints="+countPaints);
-		synchronized(Node.class){
-			for(int i=0; i<intArrayPixels.length; i++){
-				//TODO optimize by not repeating these calculations for
-				//the many subpixels of each virtual pixel.
-				int xPixel = i%(virtualWidth*pixelMagnifyX);
-				int yPixel = i/(virtualWidth*pixelMagnifyX);
-				int virtualXPixel = xPixel / pixelMagnifyX;
-				int virtualYPixel = yPixel / pixelMagnifyY;
-				Node n = nodes.get(virtualYPixel*virtualWidth + virtualXPixel);
-				float red = Math.min((float)n.getChanceStdDev()*10, 1f);
-				float green = (float)n.getChance();
-				float blue = (float)n.getAccuracyMeasuredLastRun();
-				intArrayPixels[i] = new Color(red, green, blue).getRGB();
+		long start = System.nanoTime();
+		CortexFrame frame = frames.latest();
+		if(frame.size != pixels) throw new RuntimeException(
+			"CortexFrame has "+frame.size+" Nodes but display has "+pixels+" pixels");
+		if(frame.step != imageStep){
+			for(int i=0; i<frame.size; i++){
+				rgb[i] = rgb(Math.min(frame.chanceStdDev[i]*10, 1f), frame.chance[i], frame.accuracy[i]);
 			}
+			imageStep = frame.step;
 		}
-		memoryImageSource.newPixels();
-		imageWrapsIntArrayPixels = Toolkit.getDefaultToolkit().createImage(memoryImageSource);
-		//g.drawImage(imageWrapsIntArrayPixels, 0, 0, this);
-		g.drawImage(imageWrapsIntArrayPixels, 0, 0, null);
+		g.drawImage(image, 0, 0, virtualWidth*pixelMagnifyX, virtualHeight*pixelMagnifyY, null);
+		CortexMetrics m = metrics;
+		if(m != null) m.addRender(System.nanoTime()-start);
+	}
+	
+	/** Same as new Color(red, green, blue).getRGB() without the alpha byte, but clamps to 0..1 instead of throwing */
+	static int rgb(float red, float green, float blue){
+		return (byte255(red)<<16) | (byte255(green)<<8) | byte255(blue);
+	}
+	
+	static int byte255(float f){
+		return f<=0 ? 0 : f>=1 ? 255 : (int)(f*255+.5f);
 	}
 
 	/*public void mouseDragged(MouseEvent e){
@@ -0,0 +1,64 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.ui;
+import bayesiancortex.CortexFrame;
+import bayesiancortex.CortexRecording;
+import bayesiancortex.TripleBuffer;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import javax.swing.*;
+
+/** Replays a bcr file from CortexRecorder in a OneNodePerPixelDisplay, without the simulation.
+The main thread reads frames at framesPerSecond and publishes them the same way
+InteractiveVisualCortexWindow does after each step. Stops on the last frame.
+<br><br>
+Usage: java bayesiancortex.ui.RecordingPlayer file [framesPerSecond [virtualWidth [magnify]]]
+<br>
+framesPerSecond defaults to 30. virtualWidth defaults to the square root of the Nodes recorded, and magnify to 6.
+*/
+public class RecordingPlayer{
+
+	public static void main(String args[]) throws IOException{
+		CortexRecording recording = new CortexRecording(new File(args[0]));
+		double framesPerSecond = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+		int virtualWidth = args.length > 2 ? Integer.parseInt(args[2]) : (int)Math.round(Math.sqrt(recording.size));
+		int magnify = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+		final TripleBuffer<CortexFrame> frames = CortexFrame.newTripleBuffer(recording.size);
+		final OneNodePerPixelDisplay display = new OneNodePerPixelDisplay(magnify, magnify, virtualWidth, frames,
+			recording.size);
+		final JLabel label = new JLabel("red=chance std dev, green=chance, blue=accuracy");
+		JFrame window = new JFrame("BayesianCortex recording "+args[0]);
+		window.setLayout(new BorderLayout());
+		window.add(label, BorderLayout.NORTH);
+		window.add(display, BorderLayout.CENTER);
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		window.setSize(virtualWidth*magnify+10, display.virtualHeight*magnify+40);
+		window.setVisible(true);
+		new Timer(16, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				display.repaint();
+			}
+		}).start();
+		long nanosPerFrame = (long)(1e9/framesPerSecond), nextFrame = System.nanoTime();
+		while(recording.next()){
+			recording.copyTo(frames.back());
+			frames.publish();
+			final long step = recording.step;
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){ label.setText("step "+step); }
+			});
+			long sleep = nextFrame-System.nanoTime();
+			if(sleep > 0){
+				try{
+					Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+				}catch(InterruptedException e){}
+			}
+			nextFrame = Math.max(nextFrame+nanosPerFrame, System.nanoTime());
+		}
+		recording.close();
+	}
+
+}
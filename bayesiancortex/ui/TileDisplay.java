@@ -0,0 +1,138 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.ui;
+import bayesiancortex.CortexMetrics;
+import bayesiancortex.TilePyramid;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import javax.swing.JPanel;
+
+/** Shows a TilePyramid with the same colors as OneNodePerPixelDisplay
+(red=chance std dev, green=chance, blue=accuracy), zoomed with the mouse wheel
+and panned by dragging, for canvases of Nodes much bigger than the window.
+<br><br>
+Each paint uses the level of the pyramid where a tile is at least 1 screen pixel,
+colors only the tiles of that level in view into a BufferedImage, and drawImage magnifies them.
+So painting costs about the screen pixels at any zoom, not the number of Nodes,
+and the tiles are only colored again if the pyramid or the view changed.
+Nothing is allocated per paint except when the window gets bigger.
+<br><br>
+The thread that calls TilePyramid.update doesn't wait for painting, and painting doesn't lock it.
+*/
+public class TileDisplay extends JPanel{
+
+	private static final long serialVersionUID = 1L;
+
+	final TilePyramid pyramid;
+
+	/** Screen pixels per Node. 0 until the first paint fits the whole canvas in the window. */
+	double zoom;
+
+	/** The Node position at the top left corner of the window */
+	double originX, originY;
+
+	/** Tiles in view, colored into image, and the version of the pyramid they were colored from */
+	BufferedImage image;
+	int rgb[];
+	int imageLevel = -1, imageX0, imageY0, imageX1, imageY1;
+	long imageVersion = -1;
+
+	/** If not null, each paint adds its time to this */
+	public volatile CortexMetrics metrics;
+
+	public TileDisplay(TilePyramid pyramid){
+		this.pyramid = pyramid;
+		setBackground(Color.BLACK);
+		MouseAdapter mouse = new MouseAdapter(){
+			int lastX, lastY;
+			public void mousePressed(MouseEvent e){
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+			public void mouseDragged(MouseEvent e){
+				if(zoom == 0) return;
+				originX -= (e.getX()-lastX)/zoom;
+				originY -= (e.getY()-lastY)/zoom;
+				lastX = e.getX();
+				lastY = e.getY();
+				repaint();
+			}
+			public void mouseWheelMoved(MouseWheelEvent e){
+				if(zoom == 0) return;
+				//Keep the Node under the mouse under the mouse
+				double x = originX+e.getX()/zoom, y = originY+e.getY()/zoom;
+				zoom *= Math.pow(1.25, -e.getPreciseWheelRotation());
+				zoom = Math.max(Math.scalb(1., -pyramid.levels), Math.min(zoom, 64));
+				originX = x-e.getX()/zoom;
+				originY = y-e.getY()/zoom;
+				repaint();
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	/** The level of pyramid painted at zoom: the lowest where a tile is at least 1 screen pixel */
+	int level(){
+		int level = 0;
+		while(level < pyramid.levels-1 && zoom*(1<<level) < 1) level++;
+		return level;
+	}
+
+	public void paint(Graphics g){
+		long start = System.nanoTime();
+		int w = getWidth(), h = getHeight();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, w, h);
+		if(w <= 0 || h <= 0) return;
+		if(zoom == 0) zoom = Math.min((double)w/pyramid.width, (double)h/pyramid.height);
+		long version = pyramid.version;
+		int level = level(), tile = 1<<level;
+		int x0 = Math.max(0, (int)Math.floor(originX/tile));
+		int y0 = Math.max(0, (int)Math.floor(originY/tile));
+		int x1 = Math.min(pyramid.levelWidth[level], (int)Math.ceil((originX+w/zoom)/tile));
+		int y1 = Math.min(pyramid.levelHeight[level], (int)Math.ceil((originY+h/zoom)/tile));
+		if(x0 < x1 && y0 < y1){
+			if(image == null || image.getWidth() < x1-x0 || image.getHeight() < y1-y0){
+				image = new BufferedImage(Math.max(x1-x0, w+2), Math.max(y1-y0, h+2), BufferedImage.TYPE_INT_RGB);
+				rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+				imageLevel = -1;
+			}
+			if(version != imageVersion || level != imageLevel
+					|| x0 != imageX0 || y0 != imageY0 || x1 != imageX1 || y1 != imageY1){
+				color(level, x0, y0, x1, y1);
+				imageVersion = version;
+				imageLevel = level;
+				imageX0 = x0;
+				imageY0 = y0;
+				imageX1 = x1;
+				imageY1 = y1;
+			}
+			int sx = (int)Math.round((x0*tile-originX)*zoom), sy = (int)Math.round((y0*tile-originY)*zoom);
+			int ex = (int)Math.round((x1*tile-originX)*zoom), ey = (int)Math.round((y1*tile-originY)*zoom);
+			g.drawImage(image, sx, sy, ex, ey, 0, 0, x1-x0, y1-y0, null);
+		}
+		CortexMetrics m = metrics;
+		if(m != null) m.addRender(System.nanoTime()-start);
+	}
+
+	/** Colors tiles x0 to x1-1 and y0 to y1-1 of level into the top left of image. Tiles with no Nodes are black. */
+	void color(int level, int x0, int y0, int x1, int y1){
+		int imageWidth = image.getWidth();
+		for(int y=y0; y<y1; y++){
+			int row = (y-y0)*imageWidth-x0;
+			for(int x=x0; x<x1; x++){
+				rgb[row+x] = pyramid.count(level, x, y) == 0 ? 0 : OneNodePerPixelDisplay.rgb(
+					Math.min(pyramid.chanceStdDev(level, x, y)*10, 1f), pyramid.chance(level, x, y),
+					pyramid.accuracy(level, x, y));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+/** Ben F Rayfield offers BayesianCortex under GNU GPL 2+ open source license(s) */
+package bayesiancortex.vector;
+
+import bayesiancortex.FloatWeightKernels;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/** WeightKernels.scalarFloat32 with the 8 float weights of each Node as 1 256-bit FloatVector:
+1 load, the 8 products of the observed childs built from 3 broadcasts and masks, 1 multiply-add, 1 store,
+and the sum for normWeights in 3 rotations. Lane k is weight k, so lanes with bit 1, 2 or 4 of k are
+those where x, y or z is true. Exactly the same numbers as the scalar loops, since each lane does the same
+float operations in the same order.
+<br><br>
+Needs --add-modules jdk.incubator.vector for both javac and java (JDK 16 and later, incubating in 17).
+WeightKernels loads this by name and uses its scalar loops if it can't,
+so a build without that flag can leave this package out.
+*/
+public class VectorWeightKernels implements FloatWeightKernels{
+
+	static final VectorSpecies<Float> species = FloatVector.SPECIES_256;
+
+	static final VectorMask<Float> xLanes = VectorMask.fromLong(species, 0b10101010),
+		yLanes = VectorMask.fromLong(species, 0b11001100),
+		zLanes = VectorMask.fromLong(species, 0b11110000);
+
+	static final VectorShuffle<Float> rotate4 = VectorShuffle.fromValues(species, 4, 5, 6, 7, 0, 1, 2, 3),
+		rotate2 = VectorShuffle.fromValues(species, 2, 3, 4, 5, 6, 7, 0, 1),
+		rotate1 = VectorShuffle.fromValues(species, 1, 2, 3, 4, 5, 6, 7, 0);
+
+	/** Throws UnsupportedOperationException if the CPU has vectors smaller than 256 bits,
+	where this would be emulated slower than the scalar loops
+	*/
+	public VectorWeightKernels(){
+		if(FloatVector.SPECIES_PREFERRED.vectorBitSize() < species.vectorBitSize()){
+			throw new UnsupportedOperationException("Preferred vectors are "
+				+FloatVector.SPECIES_PREFERRED.vectorBitSize()+" bits");
+		}
+	}
+
+	public void updateWeights(float in[], float out[], double observe[], double decay[], int childs[],
+			int from, int to){
+		for(int i=from; i<to; i++){
+			int w = 8*i, c = 3*i;
+			if(childs[c] == -1){
+				if(in != out) System.arraycopy(in, w, out, w, 8);
+				continue;
+			}
+			float x = (float)observe[c], y = (float)observe[c+1], z = (float)observe[c+2], d = (float)decay[i];
+			FloatVector chanceOfChilds = FloatVector.broadcast(species, 1-z).blend(z, zLanes)
+				.mul(FloatVector.broadcast(species, 1-y).blend(y, yLanes))
+				.mul(FloatVector.broadcast(species, 1-x).blend(x, xLanes));
+			FloatVector.fromArray(species, in, w).mul(1-d).add(chanceOfChilds.mul(d)).intoArray(out, w);
+		}
+	}
+
+	public void normWeights(float w[], int from, int to){
+		for(int i=from; i<to; i++){
+			FloatVector v = FloatVector.fromArray(species, w, 8*i);
+			FloatVector sum = v.add(v.rearrange(rotate4));
+			sum = sum.add(sum.rearrange(rotate2));
+			sum = sum.add(sum.rearrange(rotate1));
+			v.div(sum.lane(0)).intoArray(w, 8*i);
+		}
+	}
+
+}